@@ -0,0 +1,263 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of analysis results of positions, keyed by their 64 bit
+ * position hash, see {@link PositionKey}. Searches which reach the same
+ * position again, on another path, in another game or in another thread,
+ * look its result up instead of analyzing it again.
+ *
+ * The cache is a set associative table of primitive arrays: a hash maps to
+ * a set of {@link #WAYS} entries, and when a set is full, the entry used
+ * least recently is evicted, so the cache never holds more than its
+ * capacity and keeps the positions which are needed most. The sets are
+ * guarded by a fixed number of locks, so threads rarely wait for each
+ * other, and no objects are allocated per entry. Hits, misses and evictions
+ * are counted; the numbers of the {@link #shared() shared} cache are
+ * reported by {@link Metrics}.
+ *
+ * Two different positions with the same hash share an entry, which with
+ * 64 bit hashes happens about once in 2^64 / entries lookups.
+ */
+public final class AnalysisCache {
+
+    /**
+     * Value returned for a hash which is not in the cache.
+     */
+    public static final long MISSING = Long.MIN_VALUE;
+
+    /**
+     * Number of entries of a set.
+     */
+    static final int WAYS = 4;
+
+    private static final int LOCKS = 64;
+
+    /**
+     * Capacity of the shared cache unless set by the system property
+     * {@code nim.cache.entries}.
+     */
+    private static final int SHARED_ENTRIES = Integer.getInteger(
+            "nim.cache.entries", 1 << 18);
+
+    private static volatile boolean sharedCreated;
+
+    private final long[] hashes;
+
+    private final long[] values;
+
+    /**
+     * Time of the last use of every entry, 0 for an empty entry. Every lock
+     * has a clock of its own, since only the entries of the same set are
+     * compared.
+     */
+    private final long[] used;
+
+    private final long[] clocks = new long[LOCKS];
+
+    private final Object[] locks = new Object[LOCKS];
+
+    private final int setMask;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder entries = new LongAdder();
+
+    /**
+     * Creates an empty cache.
+     * @param capacity maximum number of entries, rounded up to a power of
+     *        two of at least {@link #WAYS}
+     */
+    public AnalysisCache(int capacity) {
+        if (capacity < 1 || capacity > 1 << 28) {
+            throw new IllegalArgumentException("Invalid capacity.");
+        }
+        int size = Math.max(WAYS, Integer.highestOneBit(capacity - 1) << 1);
+        this.hashes = new long[size];
+        this.values = new long[size];
+        this.used = new long[size];
+        this.setMask = size / WAYS - 1;
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Gets the cache shared by all boards and strategies of the process,
+     * which is created on first use.
+     * @return the shared cache
+     */
+    public static AnalysisCache shared() {
+        return Shared.CACHE;
+    }
+
+    /**
+     * Whether the shared cache has been created, so asking for its numbers
+     * does not create it.
+     */
+    static boolean isSharedCreated() {
+        return sharedCreated;
+    }
+
+    /**
+     * Holder of the shared cache, initialized on first use.
+     */
+    private static final class Shared {
+
+        private static final AnalysisCache CACHE = new AnalysisCache(
+                SHARED_ENTRIES);
+
+        static {
+            sharedCreated = true;
+        }
+    }
+
+    /**
+     * Looks up the result of a position.
+     * @param hash hash of the position
+     * @return the stored value, or {@link #MISSING}
+     */
+    public long get(long hash) {
+        int set = set(hash);
+        int first = set * WAYS;
+        synchronized (locks[set & LOCKS - 1]) {
+            for (int i = first; i < first + WAYS; i++) {
+                if (used[i] != 0 && hashes[i] == hash) {
+                    used[i] = ++clocks[set & LOCKS - 1];
+                    hits.increment();
+                    return values[i];
+                }
+            }
+        }
+        misses.increment();
+        return MISSING;
+    }
+
+    /**
+     * Stores the result of a position, replacing its previous result or the
+     * least recently used entry of its set.
+     * @param hash hash of the position
+     * @param value result, anything but {@link #MISSING}
+     */
+    public void put(long hash, long value) {
+        if (value == MISSING) {
+            throw new IllegalArgumentException("The value must not be "
+                    + "MISSING.");
+        }
+        int set = set(hash);
+        int first = set * WAYS;
+        synchronized (locks[set & LOCKS - 1]) {
+            int victim = first;
+            for (int i = first; i < first + WAYS; i++) {
+                if (used[i] != 0 && hashes[i] == hash) {
+                    victim = i;
+                    break;
+                }
+                if (used[i] < used[victim]) {
+                    victim = i;
+                }
+            }
+            if (used[victim] == 0) {
+                entries.increment();
+            } else if (hashes[victim] != hash) {
+                evictions.increment();
+            }
+            hashes[victim] = hash;
+            values[victim] = value;
+            used[victim] = ++clocks[set & LOCKS - 1];
+        }
+    }
+
+    /**
+     * Maps a hash to its set. The position hashes are random in all bits,
+     * but mixing the high bits in keeps sets of hashes which only differ in
+     * their high bits apart.
+     */
+    private int set(long hash) {
+        return (int) (hash ^ hash >>> 32) & setMask;
+    }
+
+    /**
+     * Removes all entries. The counters are kept.
+     */
+    public void clear() {
+        for (int lock = 0; lock < LOCKS; lock++) {
+            synchronized (locks[lock]) {
+                for (int set = lock; set <= setMask; set += LOCKS) {
+                    for (int i = set * WAYS; i < (set + 1) * WAYS; i++) {
+                        if (used[i] != 0) {
+                            used[i] = 0;
+                            entries.decrement();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return maximum number of entries
+     */
+    public int getCapacity() {
+        return hashes.length;
+    }
+
+    /**
+     * @return number of entries in use
+     */
+    public long getSize() {
+        return entries.sum();
+    }
+
+    /**
+     * @return number of lookups which found their position
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of lookups which did not find their position
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of entries replaced by another position
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return share of the lookups which found their position, 0 without
+     *         lookups
+     */
+    public double getHitRate() {
+        long found = hits.sum();
+        long total = found + misses.sum();
+        return total == 0 ? 0 : (double) found / total;
+    }
+
+    /**
+     * Resets the counters of hits, misses and evictions.
+     */
+    public void resetCounters() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d of %d entries, %d hits, %d "
+                + "misses (%.1f%%), %d evictions", getSize(), getCapacity(),
+                getHits(), getMisses(), getHitRate() * 100, getEvictions());
+    }
+
+}
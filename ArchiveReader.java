@@ -0,0 +1,601 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads archives written by {@link GameArchive}. The files are mapped into
+ * memory, and the queries scan the blocks in parallel on a fork/join pool,
+ * reading only the columns they need: the win rates and game lengths read
+ * a few bytes per game, and only finding the mistakes of the human replays
+ * the moves.
+ *
+ * The size of a board is its total number of sticks. A mistake is a move
+ * of the human which turns a position winning for the human into one
+ * winning for the machine; it is described by the rules, by the position
+ * before the move, with its rows sorted, and by the number of sticks taken
+ * from a row of how many sticks.
+ *
+ * Usage: {@code java ArchiveReader [--threads 4] [--mistakes 10]
+ * [--replay <game>] games.archive ...}
+ */
+public final class ArchiveReader {
+
+    /**
+     * Size of the regions of the files mapped into memory at once.
+     */
+    private static final long MAPPING_SIZE = 1L << 30;
+
+    /**
+     * Largest board size counted on its own; larger boards share the last
+     * entry of the statistics.
+     */
+    public static final int MAX_SIZE = 1 << 10;
+
+    /**
+     * Bodies of all blocks of all files, in order.
+     */
+    private final ByteBuffer[] blocks;
+
+    /**
+     * Index of the first game of every block, and the number of games at
+     * the end.
+     */
+    private final long[] firstGames;
+
+    /**
+     * A block without games, scanned if the archives have no blocks at all.
+     */
+    private static final ByteBuffer EMPTY_BLOCK = ByteBuffer.allocate(
+            GameArchive.COLUMN_HEADER).asReadOnlyBuffer();
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Maps archive files into memory. An incomplete or damaged last block of
+     * a file, e.g. of an archive which is still being written, is ignored.
+     * @param files paths of the archives, whose games are numbered in this
+     *        order
+     * @throws IOException if a file can not be read
+     * @throws IllegalArgumentException if a file is not an archive
+     */
+    public ArchiveReader(Path... files) throws IOException {
+        List<ByteBuffer> bodies = new ArrayList<>();
+        for (Path file : files) {
+            map(file, bodies);
+        }
+        blocks = bodies.toArray(new ByteBuffer[0]);
+        firstGames = new long[blocks.length + 1];
+        for (int i = 0; i < blocks.length; i++) {
+            firstGames[i + 1] = firstGames[i] + blocks[i].getInt(0);
+        }
+    }
+
+    private static void map(Path file, List<ByteBuffer> bodies)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(GameArchive.FILE_HEADER);
+            channel.read(header, 0);
+            if (size < GameArchive.FILE_HEADER
+                    || header.getInt(0) != GameArchive.MAGIC
+                    || header.getInt(4) != GameArchive.VERSION) {
+                throw new IllegalArgumentException(file + " is not a game "
+                        + "archive.");
+            }
+            int first = bodies.size();
+            long position = GameArchive.FILE_HEADER;
+            while (position + GameArchive.BLOCK_HEADER <= size) {
+                MappedByteBuffer region = channel.map(
+                        FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAPPING_SIZE, size - position));
+                int offset = 0;
+                while (offset + GameArchive.BLOCK_HEADER <= region.limit()) {
+                    int length = region.getInt(offset);
+                    int end = offset + GameArchive.BLOCK_HEADER + length;
+                    if (length < GameArchive.COLUMN_HEADER || end < 0
+                            || end > region.limit()) {
+                        break;
+                    }
+                    ByteBuffer body = region.slice(offset
+                            + GameArchive.BLOCK_HEADER, length);
+                    bodies.add(body);
+                    offset = end;
+                }
+                if (offset == 0) {
+                    // The rest of the file is not a complete block
+                    break;
+                }
+                position += offset;
+            }
+            // Only the last block can be incomplete or damaged
+            if (bodies.size() > first && !isIntact(bodies.get(
+                    bodies.size() - 1), channel, position)) {
+                bodies.remove(bodies.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Checks the CRC32C of the block ending at a position of a file.
+     */
+    private static boolean isIntact(ByteBuffer body, FileChannel channel,
+            long end) throws IOException {
+        ByteBuffer crcBytes = ByteBuffer.allocate(4);
+        channel.read(crcBytes, end - body.limit() - 4);
+        CRC32C crc = new CRC32C();
+        crc.update(body.duplicate());
+        return (int) crc.getValue() == crcBytes.getInt(0);
+    }
+
+    /**
+     * Sets the number of threads of the queries.
+     * @param threads number of threads, at least one
+     * @return this reader
+     */
+    public ArchiveReader threads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * Gets the number of games in the archives.
+     * @return number of games
+     */
+    public long getGames() {
+        return firstGames[blocks.length];
+    }
+
+    /**
+     * Gets a column of a block as a buffer of its own.
+     */
+    private static ByteBuffer column(ByteBuffer block, int column) {
+        int offset = GameArchive.COLUMN_HEADER;
+        for (int i = 0; i < column; i++) {
+            offset += block.getInt(4 + 4 * i);
+        }
+        return block.slice(offset, block.getInt(4 + 4 * column));
+    }
+
+    /**
+     * Counts the games, wins of the human and moves of all games, by size
+     * of the board.
+     * @return the statistics
+     */
+    public Statistics summarize() {
+        long start = System.nanoTime();
+        Statistics statistics = scan(this::summarize, Statistics::merge);
+        statistics.nanos = System.nanoTime() - start;
+        return statistics;
+    }
+
+    private Statistics summarize(ByteBuffer block) {
+        Statistics statistics = new Statistics();
+        int games = block.getInt(0);
+        ByteBuffer flags = column(block, GameArchive.FLAGS);
+        ByteBuffer sticks = column(block, GameArchive.STICKS);
+        ByteBuffer moveCounts = column(block, GameArchive.MOVE_COUNTS);
+        for (int game = 0; game < games; game++) {
+            int flag = flags.get(game);
+            int size = (int) Math.min(BoardCodec.readVarint(sticks),
+                    MAX_SIZE);
+            long moves = BoardCodec.readVarint(moveCounts);
+            statistics.games++;
+            statistics.moves += moves;
+            statistics.gamesBySize[size]++;
+            if (humanWon(flag, moves)) {
+                statistics.humanWins++;
+                statistics.winsBySize[size]++;
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Decides the winner of a game from its flags and its number of moves:
+     * the opener makes the last move if the number is odd, and the last
+     * mover wins under normal rules and loses under misere rules.
+     */
+    private static boolean humanWon(int flags, long moves) {
+        boolean humanOpened = (flags & GameArchive.MACHINE_OPENED) == 0;
+        boolean humanMovedLast = (moves % 2 == 1) == humanOpened;
+        return humanMovedLast != ((flags & GameArchive.MISERE) != 0);
+    }
+
+    /**
+     * Finds the most common mistakes of the human. A mistake is keyed by
+     * the rules, the position and the move, since the same move can win
+     * under one rule set and lose under the other.
+     * @param limit maximum number of mistakes to return
+     * @return the mistakes with the number of times they were made, most
+     *         common first
+     */
+    public Map<String, Long> mistakes(int limit) {
+        Map<String, Long> counts = scan(this::mistakes, (left, right) -> {
+            right.forEach((key, count) -> left.merge(key, count, Long::sum));
+            return left;
+        });
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(
+                counts.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed()
+                .thenComparing(Map.Entry.comparingByKey()));
+        Map<String, Long> top = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry
+                : entries.subList(0, Math.min(limit, entries.size()))) {
+            top.put(entry.getKey(), entry.getValue());
+        }
+        return top;
+    }
+
+    private Map<String, Long> mistakes(ByteBuffer block) {
+        Map<String, Long> counts = new HashMap<>();
+        int games = block.getInt(0);
+        ByteBuffer flags = column(block, GameArchive.FLAGS);
+        ByteBuffer rowCounts = column(block, GameArchive.ROW_COUNTS);
+        ByteBuffer moveCounts = column(block, GameArchive.MOVE_COUNTS);
+        ByteBuffer rowColumn = column(block, GameArchive.ROWS);
+        ByteBuffer moveColumn = column(block, GameArchive.MOVES);
+        int[] rows = new int[0];
+        StringBuilder key = new StringBuilder();
+        for (int game = 0; game < games; game++) {
+            int flag = flags.get(game);
+            boolean misere = (flag & GameArchive.MISERE) != 0;
+            rows = readRows(rowColumn, readInt(rowCounts), rows);
+            long moves = BoardCodec.readVarint(moveCounts);
+            boolean human = (flag & GameArchive.MACHINE_OPENED) == 0;
+            int row = 0;
+            for (long i = 0; i < moves; i++, human = !human) {
+                row += (int) GameArchive.unzigzag(
+                        BoardCodec.readVarint(moveColumn));
+                int taken = readInt(moveColumn);
+                if (human && Positions.isWinning(rows, misere)) {
+                    rows[row] -= taken;
+                    boolean lost = isLost(rows, misere);
+                    rows[row] += taken;
+                    if (!lost) {
+                        describe(key, misere, rows, rows[row], taken);
+                        counts.merge(key.toString(), 1L, Long::sum);
+                    }
+                }
+                rows[row] -= taken;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Checks whether the player to move loses, which for an empty board
+     * means that the last move won under normal rules.
+     */
+    private static boolean isLost(int[] rows, boolean misere) {
+        for (int sticks : rows) {
+            if (sticks != 0) {
+                return !Positions.isWinning(rows, misere);
+            }
+        }
+        return !misere;
+    }
+
+    /**
+     * Describes a mistake by the rules, the position and the move.
+     */
+    private static void describe(StringBuilder key, boolean misere,
+            int[] rows, int row, int taken) {
+        int[] sorted = rows.clone();
+        Arrays.sort(sorted);
+        key.setLength(0);
+        key.append(misere ? "MISERE " : "NORMAL ");
+        for (int sticks : sorted) {
+            if (sticks > 0) {
+                key.append(sticks).append(' ');
+            }
+        }
+        key.append("-> took ").append(taken).append(" of ").append(row);
+    }
+
+    /**
+     * Reads the rows of a game, reusing an array of the right length.
+     */
+    private static int[] readRows(ByteBuffer column, int count, int[] rows) {
+        int[] result = rows.length == count ? rows : new int[count];
+        int previous = 0;
+        for (int row = 0; row < count; row++) {
+            previous += (int) GameArchive.unzigzag(
+                    BoardCodec.readVarint(column));
+            result[row] = previous;
+        }
+        return result;
+    }
+
+    private static int readInt(ByteBuffer column) {
+        long value = BoardCodec.readVarint(column);
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Number out of range.");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Replays a game of the archives. The moves can be stepped through
+     * backwards with {@link Board#undo()} and forwards again with
+     * {@link Board#redo()}.
+     * @param game index of the game, starting at zero
+     * @return board after the last move of the game, a {@link Misere} board
+     *         for a misere game
+     * @throws IllegalArgumentException if there is no such game or it is
+     *         damaged
+     */
+    public Nim replay(long game) {
+        if (game < 0 || game >= getGames()) {
+            throw new IllegalArgumentException("There is no game " + game
+                    + ".");
+        }
+        int index = Arrays.binarySearch(firstGames, game);
+        // Several empty blocks can not occur, a block has at least one game
+        int blockIndex = index >= 0 ? index : -index - 2;
+        ByteBuffer block = blocks[blockIndex];
+        int target = (int) (game - firstGames[blockIndex]);
+        ByteBuffer rowCounts = column(block, GameArchive.ROW_COUNTS);
+        ByteBuffer moveCounts = column(block, GameArchive.MOVE_COUNTS);
+        ByteBuffer rowColumn = column(block, GameArchive.ROWS);
+        ByteBuffer moveColumn = column(block, GameArchive.MOVES);
+        try {
+            // Skip the rows and moves of the games before the target
+            for (int i = 0; i < target; i++) {
+                skipVarints(rowColumn, readInt(rowCounts));
+                skipVarints(moveColumn, 2 * BoardCodec.readVarint(
+                        moveCounts));
+            }
+            int flag = column(block, GameArchive.FLAGS).get(target);
+            int[] rows = readRows(rowColumn, readInt(rowCounts), new int[0]);
+            long moves = BoardCodec.readVarint(moveCounts);
+            Player opener = (flag & GameArchive.MACHINE_OPENED) != 0
+                    ? Player.MACHINE : Player.HUMAN;
+            Nim board = (flag & GameArchive.MISERE) != 0
+                    ? new Misere(rows, opener) : new Nim(rows, opener);
+            int row = 0;
+            for (long i = 0; i < moves; i++) {
+                row += (int) GameArchive.unzigzag(
+                        BoardCodec.readVarint(moveColumn));
+                board.play(Moves.encode(row, readInt(moveColumn),
+                        board.getCurrentPlayer()));
+            }
+            return board;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Game " + game + " is "
+                    + "damaged.", e);
+        }
+    }
+
+    private static void skipVarints(ByteBuffer column, long count) {
+        for (long i = 0; i < count; i++) {
+            while (column.get() < 0) {
+                // Continuation bytes have the high bit set
+            }
+        }
+    }
+
+    /**
+     * Runs a query on all blocks and merges the results.
+     */
+    private <T> T scan(Function<ByteBuffer, T> query,
+            BinaryOperator<T> merge) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new ScanTask<>(query, merge, 0,
+                    blocks.length));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Fork/join task for a range of blocks, which halves its range until it
+     * is a single block.
+     */
+    private final class ScanTask<T> extends RecursiveTask<T> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Function<ByteBuffer, T> query;
+
+        private final transient BinaryOperator<T> merge;
+
+        private final int from;
+
+        private final int to;
+
+        ScanTask(Function<ByteBuffer, T> query, BinaryOperator<T> merge,
+                int from, int to) {
+            this.query = query;
+            this.merge = merge;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from <= 1) {
+                return query.apply(from < to ? blocks[from]
+                        : EMPTY_BLOCK);
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask<T> left = new ScanTask<>(query, merge, from, middle);
+            left.fork();
+            T right = new ScanTask<>(query, merge, middle, to).compute();
+            return merge.apply(left.join(), right);
+        }
+    }
+
+    /**
+     * Counts of the games of the archives.
+     */
+    public static final class Statistics {
+
+        private long games;
+
+        private long humanWins;
+
+        private long moves;
+
+        private final long[] gamesBySize = new long[MAX_SIZE + 1];
+
+        private final long[] winsBySize = new long[MAX_SIZE + 1];
+
+        private long nanos;
+
+        private Statistics merge(Statistics other) {
+            games += other.games;
+            humanWins += other.humanWins;
+            moves += other.moves;
+            for (int size = 0; size <= MAX_SIZE; size++) {
+                gamesBySize[size] += other.gamesBySize[size];
+                winsBySize[size] += other.winsBySize[size];
+            }
+            return this;
+        }
+
+        /**
+         * @return number of games
+         */
+        public long getGames() {
+            return games;
+        }
+
+        /**
+         * @return number of games won by the human
+         */
+        public long getHumanWins() {
+            return humanWins;
+        }
+
+        /**
+         * @return average number of moves per game, or 0 without games
+         */
+        public double getAverageLength() {
+            return games == 0 ? 0 : (double) moves / games;
+        }
+
+        /**
+         * Gets the number of games on boards of a size.
+         * @param size total number of sticks, at most {@link #MAX_SIZE},
+         *        which stands for all larger boards too
+         * @return number of games
+         */
+        public long getGames(int size) {
+            return gamesBySize[size];
+        }
+
+        /**
+         * Gets the share of the games on boards of a size won by the human.
+         * @param size total number of sticks, at most {@link #MAX_SIZE},
+         *        which stands for all larger boards too
+         * @return win rate between 0 and 1, or 0 without games
+         */
+        public double getHumanWinRate(int size) {
+            return gamesBySize[size] == 0 ? 0
+                    : (double) winsBySize[size] / gamesBySize[size];
+        }
+
+        /**
+         * @return time taken by the query in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder(String.format(Locale.ROOT,
+                    "%d games, human won %.2f%%, %.2f moves per game, "
+                    + "scanned in %.3f s%n%8s %12s %10s%n", games,
+                    games == 0 ? 0 : 100.0 * humanWins / games,
+                    getAverageLength(), nanos / 1e9, "sticks", "games",
+                    "human won"));
+            for (int size = 0; size <= MAX_SIZE; size++) {
+                if (gamesBySize[size] > 0) {
+                    out.append(String.format(Locale.ROOT,
+                            "%8s %12d %9.2f%%%n", size == MAX_SIZE
+                            ? ">=" + size : String.valueOf(size),
+                            gamesBySize[size],
+                            100 * getHumanWinRate(size)));
+                }
+            }
+            return out.toString();
+        }
+    }
+
+    /**
+     * Main method of the archive reader.
+     * @param args options as described in the class comment
+     * @throws IOException if an archive can not be read
+     */
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int mistakes = 10;
+        long replay = -1;
+        int first = 0;
+        for (; first + 1 < args.length && args[first].startsWith("--");
+                first += 2) {
+            String value = args[first + 1];
+            switch (args[first]) {
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--mistakes":
+                    mistakes = Integer.parseInt(value);
+                    break;
+                case "--replay":
+                    replay = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option "
+                            + args[first]);
+            }
+        }
+        Path[] files = new Path[args.length - first];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = Path.of(args[first + i]);
+        }
+        ArchiveReader reader = new ArchiveReader(files).threads(threads);
+        if (replay >= 0) {
+            Nim board = reader.replay(replay);
+            while (board.undo()) {
+                // Step back to the starting position
+            }
+            System.out.print((board instanceof Misere ? "Misere" : "Normal")
+                    + " game " + replay + ":\n" + board.toString(false)
+                    + "\n");
+            while (board.redo()) {
+                long move = board.getEncodedLastMove();
+                System.out.println("Player " + Moves.player(move).name()
+                        .toLowerCase(Locale.ROOT) + " removed "
+                        + Moves.numberOfSticks(move) + " stick(s) from row "
+                        + (Moves.row(move) + 1) + ".");
+            }
+            return;
+        }
+        System.out.print(reader.summarize());
+        System.out.println("Most common mistakes of the human:");
+        reader.mistakes(mistakes).forEach((mistake, count) ->
+                System.out.println(String.format(Locale.ROOT, "%12d  %s",
+                        count, mistake)));
+    }
+
+}
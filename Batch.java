@@ -0,0 +1,172 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Batch mode of the shell, which replays a script of shell commands without
+ * any interaction. Scripts are read from a file through memory mapping, or
+ * from a pipe through a reader. No prompts are printed, and all
+ * output, including error messages, goes through one buffered writer which
+ * is flushed whenever its buffer is full and at the end. Afterwards the
+ * number of commands processed and the elapsed time are reported on the
+ * error stream.
+ */
+public final class Batch {
+
+    /**
+     * Size of the output buffer, i.e. the amount of output collected before
+     * it is written to the console.
+     */
+    static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Maximal size of one memory mapped region of the script file.
+     */
+    private static final long MAPPING_SIZE = 1L << 30;
+
+    private final Session session;
+
+    private final StringBuilder line = new StringBuilder();
+
+    private long commands;
+
+    private boolean quit;
+
+    /**
+     * Creates a batch run whose session writes to the given output.
+     * @param out writer for the output and the error messages
+     */
+    public Batch(Writer out) {
+        this.session = new Session(out, out);
+    }
+
+    /**
+     * Lets the session record every finished game in an archive.
+     * @param archive archive of the games, or null to record none
+     */
+    public void setArchive(GameArchive archive) {
+        session.setArchive(archive);
+    }
+
+    /**
+     * Executes one command unless the script has quit already.
+     * @param command command line
+     */
+    private void execute(CharSequence command) {
+        if (!quit) {
+            commands++;
+            quit = !session.execute(command);
+        }
+    }
+
+    /**
+     * Adds a character of the script to the current line and executes the
+     * line when it is complete. The line buffer is reused for every line.
+     * @param c character of the script
+     */
+    private void append(char c) {
+        if (c == '\n') {
+            execute(line);
+            line.setLength(0);
+        } else if (c != '\r') {
+            line.append(c);
+        }
+    }
+
+    /**
+     * Runs all commands of a script file. The file is mapped into memory in
+     * regions of up to a gigabyte, which are split into lines directly.
+     * @param script path of the script
+     * @throws IOException if the file can not be read
+     */
+    public void runFile(Path script) throws IOException {
+        try (FileChannel channel = FileChannel.open(script,
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size && !quit;
+                    position += MAPPING_SIZE) {
+                MappedByteBuffer buffer = channel.map(
+                        FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAPPING_SIZE, size - position));
+                while (buffer.hasRemaining() && !quit) {
+                    append((char) (buffer.get() & 0xFF));
+                }
+            }
+        }
+        if (line.length() > 0) {
+            execute(line);
+        }
+    }
+
+    /**
+     * Runs all commands read from a stream, e.g. a pipe on stdin.
+     * @param in stream of the script
+     * @throws IOException if the stream can not be read
+     */
+    public void runStream(InputStream in) throws IOException {
+        Reader reader = new InputStreamReader(in, StandardCharsets.US_ASCII);
+        char[] buffer = new char[1 << 16];
+        int read;
+        while (!quit && (read = reader.read(buffer)) >= 0) {
+            for (int i = 0; i < read && !quit; i++) {
+                append(buffer[i]);
+            }
+        }
+        if (line.length() > 0) {
+            execute(line);
+        }
+    }
+
+    /**
+     * Gets the number of commands processed so far.
+     * @return number of executed command lines, including QUIT
+     */
+    public long getCommands() {
+        return commands;
+    }
+
+    /**
+     * Runs a script from a file or, without a file, from stdin and reports
+     * the number of commands and the elapsed time. The output produced so
+     * far is written even if the script fails.
+     * @param file path of the script, or null to read stdin
+     * @param archive archive of the finished games, or null
+     * @throws IOException if the script can not be read
+     */
+    public static void run(String file, GameArchive archive)
+            throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(FileDescriptor.out),
+                StandardCharsets.US_ASCII), OUTPUT_BUFFER_SIZE);
+        Batch batch = new Batch(out);
+        batch.setArchive(archive);
+        long start = System.nanoTime();
+        try {
+            if (file == null) {
+                batch.runStream(System.in);
+            } else {
+                batch.runFile(Path.of(file));
+            }
+        } finally {
+            out.flush();
+        }
+        long nanos = System.nanoTime() - start;
+        System.err.println(String.format(Locale.ROOT,
+                "Processed %d commands in %.3f s (%.0f commands/s).",
+                batch.getCommands(), nanos / 1e9,
+                batch.getCommands() * 1e9 / Math.max(1, nanos)));
+    }
+
+}
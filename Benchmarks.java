@@ -0,0 +1,345 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Micro benchmark harness for the board engines. Every benchmark is run on
+ * generated boards of several sizes, with safe (nim sum 0) and unsafe
+ * starting positions and with normal and misere rules. For every
+ * combination the throughput (operations per second) and the allocation
+ * rate (bytes per operation) of the measured thread are reported.
+ *
+ * The harness works like a small JMH: each benchmark is warmed up first and
+ * then measured in several fixed time windows. Operations that change the
+ * board are undone after every invocation, so every invocation sees the same
+ * starting position.
+ *
+ * Usage: {@code java Benchmarks [--sizes 3,1000,1000000] [--max-heap 1023]
+ * [--warmup 500] [--time 1000] [--iterations 5] [--seed 42]
+ * [--filter machineRemove]}
+ */
+public final class Benchmarks {
+
+    private static final String DEFAULT_SIZES = "3,1000,100000,1000000";
+
+    /**
+     * Sink for the results of the measured operations, so the JIT can not
+     * remove the calls as dead code.
+     */
+    private static volatile long sink;
+
+    private final List<Benchmark> benchmarks = new ArrayList<>();
+
+    private int[] sizes;
+
+    private int maxHeap = 1023;
+
+    private long warmupMillis = 500;
+
+    private long timeMillis = 1000;
+
+    private int iterations = 5;
+
+    private long seed = 42;
+
+    private String filter = "";
+
+    /**
+     * The benchmarks class is only instantiated by its main method.
+     */
+    private Benchmarks() {
+        registerBenchmarks();
+    }
+
+    /**
+     * A single measured operation on a prepared board.
+     */
+    private interface Operation {
+
+        /**
+         * Executes the operation once and restores the starting position
+         * if the operation changed the board.
+         * @param board board prepared by the fixture
+         * @param sticks rows the board has been created from
+         * @return some value derived from the result, fed into the sink
+         */
+        long run(Nim board, int[] sticks);
+    }
+
+    /**
+     * A named operation together with the kind of board it is measured on.
+     */
+    private static final class Benchmark {
+
+        private final String name;
+
+        private final boolean endgame;
+
+        private final Operation operation;
+
+        Benchmark(String name, boolean endgame, Operation operation) {
+            this.name = name;
+            this.endgame = endgame;
+            this.operation = operation;
+        }
+    }
+
+    /**
+     * Result of a measurement, i.e. the throughput of all time windows and
+     * the allocated bytes per operation.
+     */
+    private static final class Result {
+
+        private double minOps = Double.MAX_VALUE;
+
+        private double maxOps;
+
+        private double sumOps;
+
+        private long operations;
+
+        private long allocatedBytes;
+
+        private long nanos;
+    }
+
+    private void registerBenchmarks() {
+        benchmarks.add(new Benchmark("machineRemove", false, (board, sticks) -> {
+            board.currentPlayer = Player.MACHINE;
+            board.machineRemove();
+            return undoLastMove(board);
+        }));
+        benchmarks.add(new Benchmark("remove", false, (board, sticks) -> {
+            board.currentPlayer = Player.HUMAN;
+            board.remove(firstNonEmptyRow(board), 1);
+            return undoLastMove(board);
+        }));
+        benchmarks.add(new Benchmark("isGameOver", true,
+                (board, sticks) -> board.isGameOver() ? 1 : 0));
+        benchmarks.add(new Benchmark("clone", false,
+                (board, sticks) -> board.clone().getRowCount()));
+        for (NimSumReduction reduction : NimSumReduction.values()) {
+            benchmarks.add(new Benchmark("nimSum" + reduction, false,
+                    (board, sticks) -> reduction.nimSum(sticks)));
+        }
+        benchmarks.add(new Benchmark("toString", false, (board, sticks) -> {
+            Shell.setVerboseMode(false);
+            return board.toString().length();
+        }));
+        benchmarks.add(new Benchmark("toStringVerbose", false, (board, sticks) -> {
+            Shell.setVerboseMode(true);
+            return board.toString().length();
+        }));
+    }
+
+    /**
+     * Puts the sticks removed by the last move back onto the board.
+     */
+    private static long undoLastMove(Nim board) {
+        long move = board.getEncodedLastMove();
+        board.undo();
+        return move;
+    }
+
+    private static int firstNonEmptyRow(Nim board) {
+        int row = 0;
+        while (board.getSticks(row) == 0) {
+            row++;
+        }
+        return row;
+    }
+
+    /**
+     * Runs all benchmarks matching the filter on all board sizes.
+     */
+    private void run() {
+        System.out.println(String.format(Locale.ROOT,
+                "%-16s %-7s %-6s %11s %16s %16s %14s %14s",
+                "benchmark", "rules", "start", "rows", "ops/s",
+                "min..max ops/s", "B/op", "MB/s"));
+        for (int size : sizes) {
+            for (boolean misere : new boolean[] {false, true}) {
+                for (boolean safe : new boolean[] {true, false}) {
+                    int[] sticks = generate(size, safe);
+                    int[] endgame = new int[size];
+                    endgame[size - 1] = 1;
+                    for (Benchmark benchmark : benchmarks) {
+                        // The endgame board does not depend on the nim sum
+                        // of the generated board, it is measured only once.
+                        if (!benchmark.name.contains(filter)
+                                || benchmark.endgame && !safe) {
+                            continue;
+                        }
+                        int[] rows = benchmark.endgame ? endgame : sticks;
+                        Nim board = createBoard(rows, misere);
+                        Result result = measure(benchmark, board, rows);
+                        print(benchmark, misere, safe, size, result);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Nim createBoard(int[] sticks, boolean misere) {
+        int[] copy = sticks.clone();
+        if (misere) {
+            return new Misere(copy, Player.HUMAN);
+        }
+        return new Nim(copy, Player.HUMAN);
+    }
+
+    /**
+     * Generates a board of the given size with random heaps between 1 and
+     * maxHeap. A safe board has a nim sum of 0, an unsafe one does not.
+     */
+    private int[] generate(int size, boolean safe) {
+        SplittableRandom random = new SplittableRandom(seed + size);
+        int[] sticks = new int[size];
+        int nimSum = 0;
+        for (int i = 0; i < size; i++) {
+            sticks[i] = random.nextInt(maxHeap) + 1;
+            nimSum ^= sticks[i];
+        }
+        int last = size - 1;
+        int others = nimSum ^ sticks[last];
+        if (safe) {
+            if (others == 0) {
+                // All other rows cancel out, the first row is changed so
+                // the last one does not have to be empty.
+                int changed = sticks[0] ^ (sticks[0] == 1 ? 2 : 1);
+                others ^= sticks[0] ^ changed;
+                sticks[0] = changed;
+            }
+            sticks[last] = others;
+        } else if (nimSum == 0) {
+            sticks[last] = sticks[last] == 1 ? 2 : sticks[last] - 1;
+        }
+        return sticks;
+    }
+
+    /**
+     * Warms up the benchmark and measures it afterwards in several time
+     * windows. Operations are executed in batches which grow until a batch
+     * takes at least a millisecond, so the clock is not read after every
+     * cheap operation.
+     */
+    private Result measure(Benchmark benchmark, Nim board, int[] sticks) {
+        runFor(benchmark, board, sticks, warmupMillis, null);
+        Result result = new Result();
+        for (int i = 0; i < iterations; i++) {
+            runFor(benchmark, board, sticks, timeMillis, result);
+        }
+        return result;
+    }
+
+    private static void runFor(Benchmark benchmark, Nim board, int[] sticks,
+                               long millis, Result result) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean)
+                        ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long deadline = millis * 1_000_000L;
+        long batch = 1;
+        long operations = 0;
+        long value = 0;
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            long batchStart = System.nanoTime();
+            for (long i = 0; i < batch; i++) {
+                value += benchmark.operation.run(board, sticks);
+            }
+            operations += batch;
+            long now = System.nanoTime();
+            if (now - batchStart < 1_000_000L) {
+                batch *= 2;
+            }
+            elapsed = now - start;
+        } while (elapsed < deadline);
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        sink = value;
+        if (result != null) {
+            double ops = operations * 1e9 / elapsed;
+            result.minOps = Math.min(result.minOps, ops);
+            result.maxOps = Math.max(result.maxOps, ops);
+            result.sumOps += ops;
+            result.operations += operations;
+            result.allocatedBytes += allocated;
+            result.nanos += elapsed;
+        }
+    }
+
+    private void print(Benchmark benchmark, boolean misere, boolean safe,
+                       int size, Result result) {
+        double bytesPerOp = (double) result.allocatedBytes
+                / result.operations;
+        double megabytesPerSecond = result.allocatedBytes * 1e3
+                / result.nanos;
+        System.out.println(String.format(Locale.ROOT,
+                "%-16s %-7s %-6s %11d %16.1f %7.0f..%-8.0f %14.1f %14.1f",
+                benchmark.name, misere ? "misere" : "normal",
+                benchmark.endgame ? "end" : safe ? "safe" : "unsafe", size,
+                result.sumOps / iterations, result.minOps, result.maxOps,
+                bytesPerOp, megabytesPerSecond));
+    }
+
+    private void parseArguments(String[] args) {
+        String sizeList = DEFAULT_SIZES;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--sizes":
+                    sizeList = value;
+                    break;
+                case "--max-heap":
+                    maxHeap = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmupMillis = Long.parseLong(value);
+                    break;
+                case "--time":
+                    timeMillis = Long.parseLong(value);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--filter":
+                    filter = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option "
+                            + args[i]);
+            }
+        }
+        String[] parts = sizeList.split(",");
+        sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+            if (sizes[i] < 2) {
+                throw new IllegalArgumentException("Boards need at least "
+                        + "two rows to be safe.");
+            }
+        }
+        if (maxHeap < 2) {
+            throw new IllegalArgumentException("The maximum heap must be at "
+                    + "least 2.");
+        }
+    }
+
+    /**
+     * Main method of the benchmark harness.
+     * @param args options as described in the class comment
+     */
+    public static void main(String[] args) {
+        Benchmarks harness = new Benchmarks();
+        harness.parseArguments(args);
+        harness.run();
+    }
+
+}
@@ -1,9 +1,22 @@
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.SplittableRandom;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
 /**
  * The NIM game. Two players remove alternately at least one up to at most all
  * sticks from a single row (= pile = heap) of sticks. The winner is determined
  * by who removes the last available stick(s) from the table.
  *
  * A human plays against the machine.
+ *
+ * Besides the {@link Move} based methods, moves can be executed, inspected
+ * and enumerated as primitive {@code long} values encoded by {@link Moves},
+ * which does not allocate any objects per move.
  */
 public interface Board extends Cloneable {
 
@@ -41,7 +54,42 @@ public interface Board extends Cloneable {
     void machineRemove();
 
     /**
-     * Gets the last move made on the game.
+     * Executes an encoded move of the player whose turn it is.
+     *
+     * @param move The move, encoded as described in {@link Moves}.
+     * @throws IllegalStateException It is not the turn of the move's player.
+     * @throws IllegalArgumentException The provided move is illegal.
+     */
+    void play(long move);
+
+    /**
+     * Takes back the last move made on the game, irrespective of which
+     * player has performed it.
+     *
+     * @return {@code true} if a move was undone, {@code false} if no move
+     *         has been made yet.
+     */
+    boolean undo();
+
+    /**
+     * Makes the last move taken back by {@link #undo()} again. Executing any
+     * other move discards the moves which could be redone.
+     *
+     * @return {@code true} if a move was redone, {@code false} if there is
+     *         no move to redo.
+     */
+    boolean redo();
+
+    /**
+     * Gets the player who makes the next move.
+     *
+     * @return The player whose turn it is.
+     */
+    Player getCurrentPlayer();
+
+    /**
+     * Gets the last move made on the game. The returned object may be reused
+     * by the board for later moves, so it is only valid until the next move.
      *
      * @return The number of sticks and the 0-indexed row from which they were
      *         removed in the last move (irrespective of which player has
@@ -49,6 +97,113 @@ public interface Board extends Cloneable {
      */
     Move getLastMove();
 
+    /**
+     * Gets the last move made on the game as an encoded move.
+     *
+     * @return The last move encoded as described in {@link Moves}, or
+     *         {@link Moves#NONE} if no move has been made yet.
+     */
+    long getEncodedLastMove();
+
+    /**
+     * Iterates over the winning moves of the player whose turn it is, i.e.
+     * all moves after which the opponent loses against perfect play.
+     *
+     * @return An iterator over the encoded winning moves.
+     */
+    PrimitiveIterator.OfLong winningMoves();
+
+    /**
+     * Counts the winning moves of the player whose turn it is.
+     *
+     * @return The number of moves returned by {@link #winningMoves()}.
+     */
+    long countWinningMoves();
+
+    /**
+     * Streams the winning moves of the player whose turn it is.
+     *
+     * @return A sequential stream of the encoded winning moves.
+     */
+    default LongStream winningMoveStream() {
+        return StreamSupport.longStream(Spliterators.spliterator(
+                winningMoves(), countWinningMoves(), Spliterator.ORDERED
+                        | Spliterator.DISTINCT | Spliterator.NONNULL),
+                false);
+    }
+
+    /**
+     * Iterates over all legal moves of the player whose turn it is, in
+     * ascending order of rows and, per row, of the number of sticks.
+     *
+     * @return An iterator over the encoded legal moves.
+     */
+    default PrimitiveIterator.OfLong legalMoves() {
+        return new PrimitiveIterator.OfLong() {
+
+            private int row = -1;
+
+            private int count;
+
+            private int sticks;
+
+            @Override
+            public boolean hasNext() {
+                while (count >= sticks) {
+                    if (++row >= getRowCount()) {
+                        return false;
+                    }
+                    count = 0;
+                    sticks = getSticks(row);
+                }
+                return true;
+            }
+
+            @Override
+            public long nextLong() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return Moves.encode(row, ++count, getCurrentPlayer());
+            }
+        };
+    }
+
+    /**
+     * Counts the legal moves of the player whose turn it is, which is the
+     * total number of sticks on the table.
+     *
+     * @return The number of moves returned by {@link #legalMoves()}.
+     */
+    default long countLegalMoves() {
+        long count = 0;
+        for (int row = 0; row < getRowCount(); row++) {
+            count += getSticks(row);
+        }
+        return count;
+    }
+
+    /**
+     * Chooses one of the legal moves of the player whose turn it is, each
+     * with the same probability. The default implementation picks a stick
+     * on the table and removes it together with all sticks before it in its
+     * row, which takes one pass over the rows.
+     *
+     * @param random The generator the choice is made with.
+     * @return The chosen move, encoded as described in {@link Moves}.
+     */
+    default long randomMove(SplittableRandom random) {
+        long choice = random.nextLong(countLegalMoves());
+        for (int row = 0; ; row++) {
+            int sticks = getSticks(row);
+            if (choice < sticks) {
+                return Moves.encode(row, (int) choice + 1,
+                        getCurrentPlayer());
+            }
+            choice -= sticks;
+        }
+    }
+
     /**
      * Checks if the game is over, i.e., if one player has won and thus no
      * sticks are left on the table.
@@ -69,7 +224,17 @@ public interface Board extends Cloneable {
     Player getWinner();
 
     /**
-     * Creates and returns a deep copy of this board.
+     * Lets the board publish its moves, undone moves and the end of its game
+     * to an event bus, which hands them over to the subscribed listeners on
+     * their own threads. Clones of the board do not publish.
+     *
+     * @param bus bus to publish to, or {@code null} to stop publishing
+     */
+    void setEventBus(EventBus bus);
+
+    /**
+     * Creates and returns a copy of this board, which is independent of this
+     * board but may share storage with it until either of them is changed.
      *
      * @return A clone of this object.
      */
@@ -85,4 +250,59 @@ public interface Board extends Cloneable {
     @Override
     String toString();
 
+    /**
+     * Gets the string representation of the current board, either plain or
+     * with additional details such as the binary representation of the rows
+     * and the nim sum.
+     *
+     * @param verbose Whether the additional details are included.
+     * @return The string representation of the current game status in lines
+     *         with ascending row numbers.
+     */
+    String toString(boolean verbose);
+
+    /**
+     * Writes a range of rows of the board to a sink, in the format of
+     * {@link #toString(boolean)}, without building the whole representation
+     * in memory. In verbose mode the details about the whole board, such as
+     * the nim sum, follow the rows without a final line break.
+     *
+     * @param out The sink the rows are written to.
+     * @param verbose Whether the additional details are included.
+     * @param from The first zero indexed row to write.
+     * @param to The row after the last row to write.
+     * @throws IOException If the sink fails.
+     * @throws IllegalArgumentException If the range is not within the board.
+     */
+    default void render(Appendable out, boolean verbose, int from, int to)
+            throws IOException {
+        if (from < 0 || to < from || to > getRowCount()) {
+            throw new IllegalArgumentException("Rows out of range.");
+        }
+        for (int row = from; row < to; row++) {
+            out.append(String.valueOf(row + 1)).append(": ")
+                    .append(String.valueOf(getSticks(row))).append('\n');
+        }
+    }
+
+    /**
+     * Writes a range of rows like
+     * {@link #render(Appendable, boolean, int, int)}, but without the
+     * details about the whole board which follow the rows in verbose mode.
+     * So a long range can be written in parts: all but the last one with
+     * this method, and the last one with render. Boards whose render writes
+     * such details override this method.
+     *
+     * @param out The sink the rows are written to.
+     * @param verbose Whether the rows are written in verbose mode.
+     * @param from The first zero indexed row to write.
+     * @param to The row after the last row to write.
+     * @throws IOException If the sink fails.
+     * @throws IllegalArgumentException If the range is not within the board.
+     */
+    default void renderRows(Appendable out, boolean verbose, int from,
+            int to) throws IOException {
+        render(out, verbose, from, to);
+    }
+
 }
\ No newline at end of file
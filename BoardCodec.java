@@ -0,0 +1,210 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary encoding of a {@link Nim} or {@link Misere} board,
+ * including its history of moves, so an encoded board can be restored with
+ * undo and redo intact. Numbers are written as unsigned variable length
+ * integers of seven bits per byte, so small boards take a few bytes.
+ *
+ * The encoding starts with a byte of flags: bit 0 for misere rules, bit 1
+ * if it is the machine's turn and bit 2 if the board has a last move. It is
+ * followed by the number of rows, the sticks of every row, the last move if
+ * there is one, the number of moves in the history, the position of the
+ * history and the moves of the history. A move is written as its row
+ * shifted left by one with the player in the lowest bit, followed by the
+ * number of sticks.
+ */
+public final class BoardCodec {
+
+    private static final int MISERE = 1;
+
+    private static final int MACHINE_TURN = 1 << 1;
+
+    private static final int LAST_MOVE = 1 << 2;
+
+    private BoardCodec() {
+    }
+
+    /**
+     * Computes the length of the encoding of a board.
+     * @param board normal or misere board
+     * @return number of bytes written by {@link #encode(Board, ByteBuffer)}
+     */
+    public static int encodedLength(Board board) {
+        Nim nim = checkBoard(board);
+        long length = 1 + varintLength(nim.sticks.size());
+        for (int row = 0; row < nim.sticks.size(); row++) {
+            length += varintLength(nim.sticks.get(row));
+        }
+        if (nim.lastMove != Moves.NONE) {
+            length += moveLength(nim.lastMove);
+        }
+        MoveLog history = nim.history;
+        length += varintLength(history.limit()) + varintLength(history.size());
+        for (int i = 0; i < history.limit(); i++) {
+            length += moveLength(history.get(i));
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The board is too large to be "
+                    + "encoded.");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Encodes a board into a new array.
+     * @param board normal or misere board
+     * @return the encoded board
+     */
+    public static byte[] encode(Board board) {
+        byte[] bytes = new byte[encodedLength(board)];
+        encode(board, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Writes the encoding of a board at the position of a buffer.
+     * @param board normal or misere board
+     * @param out buffer with at least {@link #encodedLength(Board)} bytes
+     *        remaining
+     */
+    public static void encode(Board board, ByteBuffer out) {
+        Nim nim = checkBoard(board);
+        int flags = (nim instanceof Misere ? MISERE : 0)
+                | (nim.currentPlayer == Player.MACHINE ? MACHINE_TURN : 0)
+                | (nim.lastMove != Moves.NONE ? LAST_MOVE : 0);
+        out.put((byte) flags);
+        writeVarint(out, nim.sticks.size());
+        for (int row = 0; row < nim.sticks.size(); row++) {
+            writeVarint(out, nim.sticks.get(row));
+        }
+        if (nim.lastMove != Moves.NONE) {
+            writeMove(out, nim.lastMove);
+        }
+        MoveLog history = nim.history;
+        writeVarint(out, history.limit());
+        writeVarint(out, history.size());
+        for (int i = 0; i < history.limit(); i++) {
+            writeMove(out, history.get(i));
+        }
+    }
+
+    /**
+     * Reads an encoded board from the position of a buffer and advances the
+     * position behind it.
+     * @param in buffer holding an encoded board
+     * @return the restored board, a {@link Misere} board for misere rules
+     * @throws IllegalArgumentException if the encoding is invalid
+     */
+    public static Nim decode(ByteBuffer in) {
+        try {
+            int flags = in.get();
+            int[] rows = new int[readInt(in)];
+            for (int row = 0; row < rows.length; row++) {
+                rows[row] = readInt(in);
+            }
+            Player player = (flags & MACHINE_TURN) != 0 ? Player.MACHINE
+                    : Player.HUMAN;
+            Nim nim = (flags & MISERE) != 0 ? new Misere(rows, player)
+                    : new Nim(rows, player);
+            if ((flags & LAST_MOVE) != 0) {
+                nim.lastMove = readMove(in);
+            }
+            int limit = readInt(in);
+            int position = readInt(in);
+            if (position > limit) {
+                throw new IllegalArgumentException("Invalid history.");
+            }
+            for (int i = 0; i < limit; i++) {
+                nim.history.append(readMove(in));
+            }
+            for (int i = position; i < limit; i++) {
+                nim.history.undo();
+            }
+            return nim;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated board.", e);
+        }
+    }
+
+    private static Nim checkBoard(Board board) {
+        if (!(board instanceof Nim)) {
+            throw new IllegalArgumentException("Only normal and misere "
+                    + "boards can be encoded.");
+        }
+        return (Nim) board;
+    }
+
+    private static int moveLength(long move) {
+        return varintLength((long) Moves.row(move) << 1)
+                + varintLength(Moves.numberOfSticks(move));
+    }
+
+    private static void writeMove(ByteBuffer out, long move) {
+        writeVarint(out, (long) Moves.row(move) << 1
+                | (Moves.player(move) == Player.MACHINE ? 1 : 0));
+        writeVarint(out, Moves.numberOfSticks(move));
+    }
+
+    private static long readMove(ByteBuffer in) {
+        long rowAndPlayer = readVarint(in);
+        if (rowAndPlayer >>> 1 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid move.");
+        }
+        return Moves.encode((int) (rowAndPlayer >>> 1), readInt(in),
+                (rowAndPlayer & 1) != 0 ? Player.MACHINE : Player.HUMAN);
+    }
+
+    /**
+     * Computes the length of an unsigned variable length integer.
+     * @param value non-negative value
+     * @return number of bytes, between 1 and 10
+     */
+    static int varintLength(long value) {
+        return Math.max(1, (70 - Long.numberOfLeadingZeros(value)) / 7);
+    }
+
+    /**
+     * Writes an unsigned variable length integer.
+     * @param out buffer to write to
+     * @param value non-negative value
+     */
+    static void writeVarint(ByteBuffer out, long value) {
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) (v & 0x7F | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    /**
+     * Reads an unsigned variable length integer.
+     * @param in buffer to read from
+     * @return the value
+     * @throws IllegalArgumentException if the integer has more than ten
+     *         bytes
+     */
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Invalid variable length "
+                + "integer.");
+    }
+
+    private static int readInt(ByteBuffer in) {
+        long value = readVarint(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Number out of range.");
+        }
+        return (int) value;
+    }
+
+}
@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Streaming renderer of the rows of a board. Rows are rendered page by page
+ * into reused character buffers, without creating strings, and written
+ * straight to an {@link Appendable}. Rendered pages are kept in a small
+ * direct-mapped cache. A move invalidates only the cached page of its row,
+ * so printing a large board again after a move renders one page instead of
+ * the whole board.
+ *
+ * Every row is rendered as its one-based number, a colon, the number of
+ * sticks and, in verbose mode, the sticks in binary in parentheses, followed
+ * by a line break. A renderer belongs to one board and is not thread-safe.
+ */
+public final class BoardRenderer {
+
+    /**
+     * Number of rows of a page, as a power of two.
+     */
+    static final int PAGE_BITS = 10;
+
+    /**
+     * Number of cached pages.
+     */
+    static final int CACHED_PAGES = 64;
+
+    private static final int PAGE_ROWS = 1 << PAGE_BITS;
+
+    /**
+     * Longest line: a row number and a number of sticks of up to ten digits,
+     * 31 binary digits and the separators.
+     */
+    private static final int MAX_LINE = 10 + 2 + 10 + 2 + 31 + 1 + 1;
+
+    private final Page[] pages = new Page[CACHED_PAGES];
+
+    private final char[] digits = new char[48];
+
+    private final CharBuffer digitView = CharBuffer.wrap(digits);
+
+    /**
+     * A rendered page of rows together with the start of every line.
+     */
+    private static final class Page {
+
+        private int number = -1;
+
+        private boolean verbose;
+
+        private char[] chars = new char[0];
+
+        private CharBuffer view = CharBuffer.wrap(chars);
+
+        private int[] lineStarts = new int[1];
+
+        private int rows;
+    }
+
+    /**
+     * Marks the cached page of a row as outdated. Must be called whenever
+     * the number of sticks of a row changes.
+     * @param row zero indexed row
+     */
+    public void invalidate(int row) {
+        int number = row >>> PAGE_BITS;
+        Page page = pages[number % CACHED_PAGES];
+        if (page != null && page.number == number) {
+            page.number = -1;
+        }
+    }
+
+    /**
+     * Writes a range of rows.
+     * @param rows rows of the board
+     * @param out sink of the rendered rows
+     * @param verbose whether the binary representation is included
+     * @param from first row, zero indexed
+     * @param to row after the last row
+     * @throws IOException if the sink fails
+     */
+    public void renderRows(RowStore rows, Appendable out, boolean verbose,
+            int from, int to) throws IOException {
+        renderRows(rows::get, rows.size(), out, verbose, from, to);
+    }
+
+    /**
+     * Writes a range of rows of a board with another row storage.
+     * @param sticks number of sticks of a zero indexed row
+     * @param rowCount number of rows of the board
+     * @param out sink of the rendered rows
+     * @param verbose whether the binary representation is included
+     * @param from first row, zero indexed
+     * @param to row after the last row
+     * @throws IOException if the sink fails
+     */
+    public void renderRows(IntUnaryOperator sticks, int rowCount,
+            Appendable out, boolean verbose, int from, int to)
+            throws IOException {
+        int row = from;
+        while (row < to) {
+            int number = row >>> PAGE_BITS;
+            Page page = page(sticks, rowCount, number, verbose);
+            int first = row - (number << PAGE_BITS);
+            int last = Math.min(to - (number << PAGE_BITS), page.rows);
+            write(out, page.chars, page.view, page.lineStarts[first],
+                    page.lineStarts[last]);
+            row = (number + 1) << PAGE_BITS;
+        }
+    }
+
+    /**
+     * Writes the verbose line with the nim sum, without a line break.
+     * @param out sink of the line
+     * @param nimSum nim sum of the board
+     * @throws IOException if the sink fails
+     */
+    public void renderNimSum(Appendable out, int nimSum) throws IOException {
+        out.append("Nim sum: ");
+        int n = decimal(nimSum, digits, 0);
+        digits[n++] = ' ';
+        digits[n++] = '(';
+        n = binary(nimSum, digits, n);
+        digits[n++] = ')';
+        write(out, digits, digitView, 0, n);
+    }
+
+    /**
+     * Gets a page from the cache or renders it into the cache.
+     */
+    private Page page(IntUnaryOperator sticks, int rowCount, int number,
+            boolean verbose) {
+        int slot = number % CACHED_PAGES;
+        Page page = pages[slot];
+        if (page == null) {
+            page = new Page();
+            pages[slot] = page;
+        } else if (page.number == number && page.verbose == verbose) {
+            return page;
+        }
+        int first = number << PAGE_BITS;
+        int count = Math.min(PAGE_ROWS, rowCount - first);
+        if (page.lineStarts.length <= count) {
+            page.lineStarts = new int[count + 1];
+        }
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            if (page.chars.length - length < MAX_LINE) {
+                int capacity = Math.max(page.chars.length * 2,
+                        count * MAX_LINE / 4);
+                page.chars = Arrays.copyOf(page.chars,
+                        Math.max(capacity, length + MAX_LINE));
+                page.view = CharBuffer.wrap(page.chars);
+            }
+            page.lineStarts[i] = length;
+            length = line(first + i, sticks.applyAsInt(first + i), verbose,
+                    page.chars, length);
+        }
+        page.lineStarts[count] = length;
+        page.rows = count;
+        page.number = number;
+        page.verbose = verbose;
+        return page;
+    }
+
+    /**
+     * Renders one row into a buffer.
+     * @return position after the line
+     */
+    private static int line(int row, int sticks, boolean verbose,
+            char[] chars, int position) {
+        int n = decimal(row + 1, chars, position);
+        chars[n++] = ':';
+        chars[n++] = ' ';
+        n = decimal(sticks, chars, n);
+        if (verbose) {
+            chars[n++] = ' ';
+            chars[n++] = '(';
+            n = binary(sticks, chars, n);
+            chars[n++] = ')';
+        }
+        chars[n++] = '\n';
+        return n;
+    }
+
+    /**
+     * Writes a non-negative number in decimal.
+     * @return position after the number
+     */
+    private static int decimal(int value, char[] chars, int position) {
+        int length = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            length++;
+        }
+        int v = value;
+        for (int i = position + length - 1; i >= position; i--) {
+            chars[i] = (char) ('0' + v % 10);
+            v /= 10;
+        }
+        return position + length;
+    }
+
+    /**
+     * Writes a non-negative number in binary, like
+     * {@link Integer#toBinaryString(int)}.
+     * @return position after the number
+     */
+    private static int binary(int value, char[] chars, int position) {
+        int n = position;
+        for (int bit = Math.max(0, 31 - Integer.numberOfLeadingZeros(value));
+                bit >= 0; bit--) {
+            chars[n++] = (char) ('0' + (value >>> bit & 1));
+        }
+        return n;
+    }
+
+    /**
+     * Writes a part of a buffer with the bulk method of the sink, if it has
+     * one.
+     * @param view char buffer wrapping {@code chars}, for other sinks
+     */
+    private static void write(Appendable out, char[] chars, CharBuffer view,
+            int start, int end) throws IOException {
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(chars, start, end - start);
+        } else if (out instanceof Writer) {
+            ((Writer) out).write(chars, start, end - start);
+        } else {
+            out.append(view, start, end);
+        }
+    }
+
+}
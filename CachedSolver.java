@@ -0,0 +1,179 @@
+import java.util.PrimitiveIterator;
+import java.util.SplittableRandom;
+
+/**
+ * Strategy which plays perfectly by searching the game tree, without the
+ * closed-form solutions of the boards. Every analyzed position is stored
+ * in an {@link AnalysisCache} under its position hash, so a position which
+ * is reached again, by another order of the same moves, as a permutation
+ * of the rows or, in normal play, with a pair of equal rows more or less,
+ * is not searched again. This makes the search feasible for small boards
+ * and endgames, e.g. at the end of the play-outs of the {@link MctsPlayer},
+ * and for rule variants whose outcome has no formula.
+ *
+ * It works on normal and misere boards, whose hashes are kept up to date by
+ * the board, and on {@link GrundyBoard}s, whose hash is computed from the
+ * rows; Grundy games are played normal, so equal rows cancel there too.
+ * A search which exceeds the node budget gives up, and the strategy then
+ * plays a random move. An instance must only be used by one thread at a
+ * time, but any number of instances may share a cache.
+ */
+public final class CachedSolver implements Strategy {
+
+    /**
+     * Outcome of a position which is lost by the player to move.
+     */
+    public static final int LOSS = 0;
+
+    /**
+     * Outcome of a position which is won by the player to move.
+     */
+    public static final int WIN = 1;
+
+    /**
+     * Outcome of a position which could not be analyzed.
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * Deepest search, which keeps the recursion far from the end of the
+     * stack.
+     */
+    private static final int MAX_DEPTH = 1_000;
+
+    /**
+     * Base of the hashes of Grundy boards, so they differ from the hashes
+     * of normal and misere boards with the same rows.
+     */
+    private static final long GRUNDY_HASH = 0x4752554E4459L;
+
+    private final AnalysisCache cache;
+
+    private final long budget;
+
+    private long nodes;
+
+    /**
+     * Creates a solver.
+     * @param cache cache of the analyzed positions
+     * @param budget maximum number of positions analyzed per search
+     */
+    public CachedSolver(AnalysisCache cache, long budget) {
+        if (cache == null || budget < 1) {
+            throw new IllegalArgumentException("A cache and a positive "
+                    + "budget are required.");
+        }
+        this.cache = cache;
+        this.budget = budget;
+    }
+
+    /**
+     * Checks whether positions of a board can be analyzed.
+     * @param board any board
+     * @return whether the board is a normal, misere or Grundy board
+     */
+    public static boolean supports(Board board) {
+        return board instanceof Nim || board instanceof GrundyBoard;
+    }
+
+    /**
+     * Gets the hash of the current position of a supported board.
+     */
+    private static long hash(Board board) {
+        if (board instanceof Nim) {
+            return ((Nim) board).getPositionHash();
+        }
+        long hash = GRUNDY_HASH * (31 + ((GrundyBoard) board).getGame()
+                .hashCode());
+        for (int row = 0; row < board.getRowCount(); row++) {
+            hash ^= PositionKey.code(board.getSticks(row));
+        }
+        return hash;
+    }
+
+    /**
+     * Analyzes the current position of a board. The board is changed during
+     * the search, but afterwards it is in its previous position again.
+     * @param board supported board whose game is not over
+     * @return {@link #WIN}, {@link #LOSS}, or {@link #UNKNOWN} if the board
+     *         is not supported or the budget was exceeded
+     */
+    public int outcome(Board board) {
+        if (!supports(board)) {
+            return UNKNOWN;
+        }
+        nodes = 0;
+        return search(board, 0);
+    }
+
+    private int search(Board board, int depth) {
+        long hash = hash(board);
+        long cached = cache.get(hash);
+        if (cached != AnalysisCache.MISSING) {
+            return (int) cached;
+        }
+        if (++nodes > budget || depth == MAX_DEPTH) {
+            return UNKNOWN;
+        }
+        Player mover = board.getCurrentPlayer();
+        int result = LOSS;
+        for (long move : legalMoves(board)) {
+            board.play(move);
+            int reply = board.isGameOver()
+                    ? board.getWinner() == mover ? LOSS : WIN
+                    : search(board, depth + 1);
+            board.undo();
+            if (reply == LOSS) {
+                result = WIN;
+                break;
+            } else if (reply == UNKNOWN) {
+                result = UNKNOWN;
+            }
+        }
+        if (result != UNKNOWN) {
+            cache.put(hash, result);
+        }
+        return result;
+    }
+
+    /**
+     * Collects the legal moves before any of them is played, since playing
+     * them changes the board.
+     */
+    private static long[] legalMoves(Board board) {
+        long[] moves = new long[(int) board.countLegalMoves()];
+        PrimitiveIterator.OfLong legal = board.legalMoves();
+        for (int i = 0; i < moves.length; i++) {
+            moves[i] = legal.nextLong();
+        }
+        return moves;
+    }
+
+    /**
+     * Chooses a winning move if the search finds one, otherwise a random
+     * move.
+     * @param board supported board on which the strategy's player moves
+     *        next
+     * @param random generator for the random move
+     * @return the chosen move
+     */
+    @Override
+    public long chooseMove(Board board, SplittableRandom random) {
+        if (supports(board)) {
+            Board copy = board.clone();
+            Player mover = copy.getCurrentPlayer();
+            for (long move : legalMoves(copy)) {
+                copy.play(move);
+                boolean won = copy.isGameOver()
+                        ? copy.getWinner() == mover
+                        : outcome(copy) == LOSS;
+                copy.undo();
+                if (won) {
+                    return move;
+                }
+            }
+        }
+        return board.randomMove(random);
+    }
+
+}
@@ -0,0 +1,149 @@
+import java.util.Arrays;
+
+/**
+ * Reusable tokenizer for command lines of the shell. A line is split into
+ * tokens at runs of whitespace, and every token is parsed as an integer in
+ * the same pass, so the numbers of arbitrarily long argument lists are
+ * available without a second scan, without substrings and without
+ * exceptions for tokens which are not numbers.
+ *
+ * The tokenizer keeps its arrays between lines and only grows them, so
+ * tokenizing does not allocate once it has seen the longest line. It is not
+ * thread-safe; every session uses its own tokenizer.
+ */
+public final class CommandTokenizer {
+
+    /**
+     * Value of tokens which are not a valid integer, and of tokens which do
+     * not exist.
+     */
+    public static final int INVALID_NUMBER = -1;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private CharSequence line = "";
+
+    private int[] starts = new int[INITIAL_CAPACITY];
+
+    private int[] ends = new int[INITIAL_CAPACITY];
+
+    private int[] values = new int[INITIAL_CAPACITY];
+
+    private int count;
+
+    /**
+     * Splits a line into tokens and parses them as integers. The line must
+     * not be changed as long as its tokens are used.
+     * @param input the command line
+     */
+    public void tokenize(CharSequence input) {
+        this.line = input;
+        this.count = 0;
+        int length = input.length();
+        int i = 0;
+        while (true) {
+            while (i < length && Character.isWhitespace(input.charAt(i))) {
+                i++;
+            }
+            if (i == length) {
+                return;
+            }
+            if (count == starts.length) {
+                grow();
+            }
+            starts[count] = i;
+            boolean negative = false;
+            char c = input.charAt(i);
+            if (c == '-' || c == '+') {
+                negative = c == '-';
+                i++;
+            }
+            long value = 0;
+            boolean valid = i < length
+                    && !Character.isWhitespace(input.charAt(i));
+            for (; i < length && !Character.isWhitespace(c = input.charAt(i));
+                    i++) {
+                if (valid && c >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                    valid = value <= Integer.MAX_VALUE + 1L;
+                } else {
+                    valid = false;
+                }
+            }
+            ends[count] = i;
+            if (negative) {
+                value = -value;
+            }
+            values[count] = valid && value <= Integer.MAX_VALUE
+                    ? (int) value : INVALID_NUMBER;
+            count++;
+        }
+    }
+
+    private void grow() {
+        int capacity = starts.length * 2;
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    /**
+     * Gets the number of tokens of the line.
+     * @return number of tokens
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Gets a token parsed as an integer.
+     * @param i index of the token
+     * @return the number, or {@link #INVALID_NUMBER} if the token is not a
+     *         valid integer or does not exist
+     */
+    public int intValue(int i) {
+        return i < count ? values[i] : INVALID_NUMBER;
+    }
+
+    /**
+     * Gets the first character of a token in upper case.
+     * @param i index of the token
+     * @return the upper case first character, or a space if the token does
+     *         not exist
+     */
+    public char initial(int i) {
+        return i < count ? Character.toUpperCase(line.charAt(starts[i]))
+                : ' ';
+    }
+
+    /**
+     * Compares a token to a word, ignoring case.
+     * @param i index of the token
+     * @param word the word to compare with
+     * @return true if the token exists and equals the word
+     */
+    public boolean equalsIgnoreCase(int i, String word) {
+        if (i >= count || ends[i] - starts[i] != word.length()) {
+            return false;
+        }
+        for (int j = 0; j < word.length(); j++) {
+            if (Character.toUpperCase(line.charAt(starts[i] + j))
+                    != Character.toUpperCase(word.charAt(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the numbers of the tokens from {@code from} on into a new array.
+     * @param from index of the first token
+     * @return the numbers, {@link #INVALID_NUMBER} for invalid tokens
+     */
+    public int[] intValues(int from) {
+        int[] result = new int[Math.max(0, count - from)];
+        System.arraycopy(values, from, result, 0, result.length);
+        return result;
+    }
+
+}
@@ -0,0 +1,550 @@
+import java.io.IOException;
+import java.util.PrimitiveIterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Thread-safe board for games which are watched by many spectators while
+ * they are played. It wraps a board which from then on must only be used
+ * through the wrapper.
+ *
+ * Moves are serialized by the write lock of a {@link StampedLock}. Reads of
+ * single values, such as the sticks of a row or the player whose turn it
+ * is, are optimistic: they read the board without locking and only retry
+ * under the read lock if a move happened in the meantime, or if the read
+ * failed on a half changed board, so readers do not write any shared
+ * memory and scale across cores.
+ *
+ * Reads of the whole board, such as printing it or iterating over its moves,
+ * work on a snapshot of the position, which is taken once per position and
+ * shared by all readers. Taking a snapshot costs one reference per segment
+ * of rows, see {@link RowStore#snapshot()}, and the printed board is cached
+ * with the snapshot, so a position is rendered only once however many
+ * spectators print it.
+ */
+public final class ConcurrentBoard implements Board {
+
+    private final Board board;
+
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Guards taking snapshots, which changes the wrapped board and must
+     * therefore not happen in two readers at once.
+     */
+    private final Object snapshotLock = new Object();
+
+    /**
+     * Number of moves made or taken back so far. Only changed under the
+     * write lock.
+     */
+    private long version;
+
+    /**
+     * Snapshot of the current position, or {@code null} if there was a move
+     * since the last snapshot.
+     */
+    private volatile Snapshot snapshot;
+
+    private static final int MOVED = 0;
+
+    private static final int UNDONE = 1;
+
+    private static final int GAME_OVER = 2;
+
+    /**
+     * Bus the moves are published to, or null. Only changed under the write
+     * lock.
+     */
+    private EventBus events;
+
+    /**
+     * Events of the moves made under the write lock, in their order, which
+     * have not been handed to their bus yet.
+     */
+    private final Queue<Event> unpublished = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean publishing = new AtomicBoolean();
+
+    /**
+     * An event waiting to be published: its bus, its type and the move or
+     * the ordinal of the winner.
+     */
+    private static final class Event {
+
+        private final EventBus bus;
+
+        private final int type;
+
+        private final long value;
+
+        Event(EventBus bus, int type, long value) {
+            this.bus = bus;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    /**
+     * An unchanging copy of one position together with its rendered forms.
+     */
+    private static final class Snapshot {
+
+        private final Board board;
+
+        private final long version;
+
+        private String plain;
+
+        private String verbose;
+
+        Snapshot(Board board, long version) {
+            this.board = board;
+            this.version = version;
+        }
+
+        /**
+         * Renders the board once per mode. Rendering uses caches of the
+         * board, so it is serialized.
+         */
+        synchronized String text(boolean verboseMode) {
+            if (verboseMode) {
+                if (verbose == null) {
+                    verbose = board.toString(true);
+                }
+                return verbose;
+            }
+            if (plain == null) {
+                plain = board.toString(false);
+            }
+            return plain;
+        }
+
+        synchronized void render(StringBuilder out, boolean verboseMode,
+                int from, int to) throws IOException {
+            board.render(out, verboseMode, from, to);
+        }
+
+        synchronized void renderRows(StringBuilder out, boolean verboseMode,
+                int from, int to) throws IOException {
+            board.renderRows(out, verboseMode, from, to);
+        }
+    }
+
+    /**
+     * Wraps a board. The board must not be used directly afterwards.
+     * @param board board to make thread-safe
+     */
+    public ConcurrentBoard(Board board) {
+        if (board == null) {
+            throw new IllegalArgumentException("The board must not be null.");
+        }
+        this.board = board;
+    }
+
+    /**
+     * Reads a value of the wrapped board optimistically. A read which
+     * overlaps a move may see the board half changed and fail, e.g. with an
+     * index out of bounds, before the stamp can reject it, so a failing
+     * optimistic read is repeated under the read lock like one which was
+     * overtaken by a move.
+     */
+    private int readInt(IntSupplier read) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int value = read.getAsInt();
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            } catch (RuntimeException e) {
+                // Read again under the lock, which rethrows a real failure.
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return read.getAsInt();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Reads a value of the wrapped board optimistically, see
+     * {@link #readInt(IntSupplier)}.
+     */
+    private long readLong(LongSupplier read) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                long value = read.getAsLong();
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            } catch (RuntimeException e) {
+                // Read again under the lock, which rethrows a real failure.
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return read.getAsLong();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Reads a value of the wrapped board optimistically, see
+     * {@link #readInt(IntSupplier)}.
+     */
+    private boolean readBoolean(BooleanSupplier read) {
+        return readInt(() -> read.getAsBoolean() ? 1 : 0) != 0;
+    }
+
+    /**
+     * Reads a value of the wrapped board optimistically, see
+     * {@link #readInt(IntSupplier)}.
+     */
+    private <T> T read(Supplier<T> read) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T value = read.get();
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            } catch (RuntimeException e) {
+                // Read again under the lock, which rethrows a real failure.
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return read.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return board.getRowCount();
+    }
+
+    @Override
+    public int getSticks(int row) {
+        return readInt(() -> board.getSticks(row));
+    }
+
+    @Override
+    public Player getCurrentPlayer() {
+        return read(board::getCurrentPlayer);
+    }
+
+    @Override
+    public long getEncodedLastMove() {
+        return readLong(board::getEncodedLastMove);
+    }
+
+    /**
+     * Gets the last move as a new object, since the move object of the
+     * wrapped board is reused by later moves.
+     * @return the last move, or {@code null} if no move has been made yet
+     */
+    @Override
+    public Move getLastMove() {
+        long move = getEncodedLastMove();
+        if (move == Moves.NONE) {
+            return null;
+        }
+        return new Move(Moves.row(move), Moves.numberOfSticks(move),
+                Moves.player(move));
+    }
+
+    @Override
+    public boolean isGameOver() {
+        return readBoolean(board::isGameOver);
+    }
+
+    @Override
+    public Player getWinner() {
+        return read(board::getWinner);
+    }
+
+    /**
+     * Gets the number of moves made or taken back on this board, which
+     * changes with every position. Spectators can compare it to find out
+     * whether the board has changed since they last looked at it.
+     * @return version of the current position
+     */
+    public long getVersion() {
+        long stamp = lock.tryOptimisticRead();
+        long current = version;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                current = version;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public void remove(int row, int s) {
+        long stamp = lock.writeLock();
+        try {
+            board.remove(row, s);
+            moved();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        publish();
+    }
+
+    @Override
+    public void machineRemove() {
+        long stamp = lock.writeLock();
+        try {
+            board.machineRemove();
+            moved();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        publish();
+    }
+
+    @Override
+    public void play(long move) {
+        long stamp = lock.writeLock();
+        try {
+            board.play(move);
+            moved();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        publish();
+    }
+
+    @Override
+    public boolean undo() {
+        boolean undone;
+        long stamp = lock.writeLock();
+        try {
+            long move = board.getEncodedLastMove();
+            undone = board.undo();
+            if (undone) {
+                changed();
+                if (events != null) {
+                    unpublished.add(new Event(events, UNDONE, move));
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        publish();
+        return undone;
+    }
+
+    @Override
+    public boolean redo() {
+        boolean redone;
+        long stamp = lock.writeLock();
+        try {
+            redone = board.redo();
+            if (redone) {
+                moved();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        publish();
+        return redone;
+    }
+
+    /**
+     * Lets this board publish its moves. The events name this board, so
+     * listeners may read it while it is played on. The wrapped board does
+     * not publish anything itself.
+     */
+    @Override
+    public void setEventBus(EventBus bus) {
+        long stamp = lock.writeLock();
+        try {
+            events = bus;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Starts a new position. Must be called under the write lock.
+     */
+    private void changed() {
+        version++;
+        snapshot = null;
+    }
+
+    /**
+     * Starts the position after a move and queues its events. Must be
+     * called under the write lock.
+     */
+    private void moved() {
+        changed();
+        if (events != null) {
+            unpublished.add(new Event(events, MOVED,
+                    board.getEncodedLastMove()));
+            if (board.isGameOver()) {
+                unpublished.add(new Event(events, GAME_OVER,
+                        board.getWinner().ordinal()));
+            }
+        }
+    }
+
+    /**
+     * Hands the queued events to their bus, outside of the write lock, so a
+     * publisher waiting for room in a subscription does not keep the
+     * listeners from reading this board. Only one thread publishes at a
+     * time, which keeps the events in the order of the moves.
+     */
+    private void publish() {
+        while (!unpublished.isEmpty() && publishing.compareAndSet(false,
+                true)) {
+            try {
+                Event event;
+                while ((event = unpublished.poll()) != null) {
+                    if (event.type == MOVED) {
+                        event.bus.moved(this, event.value);
+                    } else if (event.type == UNDONE) {
+                        event.bus.undone(this, event.value);
+                    } else {
+                        event.bus.gameOver(this,
+                                Player.values()[(int) event.value]);
+                    }
+                }
+            } finally {
+                publishing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Gets the snapshot of the current position, taking it if there was a
+     * move since the last one. Readers only wait for a move in progress if
+     * the position it leaves has not been snapshotted yet.
+     */
+    private Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        long stamp = lock.readLock();
+        try {
+            synchronized (snapshotLock) {
+                current = snapshot;
+                if (current == null) {
+                    current = new Snapshot(board.clone(), version);
+                    snapshot = current;
+                }
+                return current;
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copies the current position. The copy is not thread-safe and has no
+     * history of moves.
+     * @return independent board with the current position
+     */
+    public Board copy() {
+        Snapshot current = snapshot();
+        // The shared snapshot is never changed, so copying it only reads it.
+        synchronized (current) {
+            return current.board.clone();
+        }
+    }
+
+    /**
+     * Gets the version of the position printed by {@link #toString(boolean)}
+     * and copied by {@link #copy()}, which may be older than
+     * {@link #getVersion()} if a move happened in between.
+     * @return version of the snapshot of the current position
+     */
+    public long getSnapshotVersion() {
+        return snapshot().version;
+    }
+
+    /**
+     * Copies the current position into a new thread-safe board.
+     * @return independent concurrent board with the current position
+     */
+    @Override
+    public ConcurrentBoard clone() {
+        return new ConcurrentBoard(copy());
+    }
+
+    @Override
+    public PrimitiveIterator.OfLong winningMoves() {
+        return copy().winningMoves();
+    }
+
+    @Override
+    public long countWinningMoves() {
+        return snapshot().board.countWinningMoves();
+    }
+
+    @Override
+    public PrimitiveIterator.OfLong legalMoves() {
+        return copy().legalMoves();
+    }
+
+    @Override
+    public long countLegalMoves() {
+        return snapshot().board.countLegalMoves();
+    }
+
+    @Override
+    public String toString() {
+        return toString(Shell.getVerboseMode());
+    }
+
+    @Override
+    public String toString(boolean verbose) {
+        return snapshot().text(verbose);
+    }
+
+    /**
+     * Writes a range of rows of a snapshot of the current position. The rows
+     * are rendered into a buffer first, so a slow sink does not hold up
+     * other spectators.
+     */
+    @Override
+    public void render(Appendable out, boolean verbose, int from, int to)
+            throws IOException {
+        StringBuilder rows = new StringBuilder();
+        snapshot().render(rows, verbose, from, to);
+        out.append(rows);
+    }
+
+    /**
+     * Writes a range of rows of a snapshot of the current position without
+     * the details which follow them in verbose mode, like
+     * {@link #render(Appendable, boolean, int, int)}.
+     */
+    @Override
+    public void renderRows(Appendable out, boolean verbose, int from, int to)
+            throws IOException {
+        StringBuilder rows = new StringBuilder();
+        snapshot().renderRows(rows, verbose, from, to);
+        out.append(rows);
+    }
+
+}
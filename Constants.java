@@ -32,5 +32,18 @@ public final class Constants {
      */
     public static final String GAME_NOT_RUNNING_ERROR = "There is no game "
             + "running at the moment";
-}
 
+    /**
+     * This string is printed when UNDO is called, but there is no move of
+     * the human which could be taken back.
+     */
+    public static final String NOTHING_TO_UNDO_ERROR = "Error! There is no "
+            + "move to undo.";
+
+    /**
+     * This string is printed when REDO is called, but no move has been
+     * taken back by UNDO.
+     */
+    public static final String NOTHING_TO_REDO_ERROR = "Error! There is no "
+            + "move to redo.";
+}
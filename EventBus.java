@@ -0,0 +1,420 @@
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the moves and game ends of boards to listeners, see
+ * {@link Board#setEventBus(EventBus)}. Every subscription has a bounded
+ * ring buffer of its own and a consumer thread which hands the events over
+ * to its {@link MoveListener} in batches, so a slow listener, such as a log
+ * writer or a network broadcast, only holds up its own subscription and
+ * never the game.
+ *
+ * Publishing an event costs a compare and swap and a few stores per
+ * subscription and allocates nothing. What happens when the buffer of a
+ * subscription is full is chosen per subscription, see
+ * {@link Backpressure}. Boards of several threads may publish to the same
+ * bus; the events of one board arrive in the order they happened.
+ */
+public final class EventBus implements AutoCloseable {
+
+    /**
+     * How a subscription reacts to events published faster than its
+     * listener consumes them.
+     */
+    public enum Backpressure {
+
+        /**
+         * Events which do not fit into the buffer are dropped.
+         */
+        DROP,
+
+        /**
+         * The publishing board waits until there is room in the buffer, so
+         * no event is lost, but a slow listener slows down the game.
+         */
+        BLOCK,
+
+        /**
+         * Once the buffer is half full, only every n-th move is kept until
+         * the listener catches up; undone moves and game ends are kept as
+         * long as they fit. Suits dashboards which need a current picture
+         * rather than every move.
+         */
+        SAMPLE
+    }
+
+    /**
+     * Types of the events in the buffers.
+     */
+    private static final byte MOVED = 0;
+
+    private static final byte UNDONE = 1;
+
+    private static final byte GAME_OVER = 2;
+
+    /**
+     * Time a consumer without events sleeps before looking again, unless
+     * enough events arrive to wake it up earlier. It is also the longest
+     * time an event waits in the buffer of an idle subscription.
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Time a blocked publisher sleeps before looking for room again.
+     */
+    private static final long BLOCKED_NANOS = TimeUnit.MICROSECONDS.toNanos(
+            50);
+
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    private volatile boolean closed;
+
+    /**
+     * Subscribes a listener whose buffer drops events when it is full.
+     * @param listener listener of the events
+     * @param capacity number of events the buffer holds, rounded up to a
+     *        power of two
+     * @return the subscription, which must be closed when it is not needed
+     *         anymore
+     */
+    public Subscription subscribe(MoveListener listener, int capacity) {
+        return subscribe(listener, Backpressure.DROP, capacity, 1);
+    }
+
+    /**
+     * Subscribes a listener.
+     * @param listener listener of the events
+     * @param backpressure reaction to a full buffer
+     * @param capacity number of events the buffer holds, rounded up to a
+     *        power of two
+     * @param sampleRate for {@link Backpressure#SAMPLE}, keep every
+     *        {@code sampleRate}-th move while the buffer is half full
+     * @return the subscription, which must be closed when it is not needed
+     *         anymore
+     */
+    public Subscription subscribe(MoveListener listener,
+            Backpressure backpressure, int capacity, int sampleRate) {
+        if (listener == null || backpressure == null) {
+            throw new IllegalArgumentException("The listener and the "
+                    + "backpressure must not be null.");
+        }
+        if (capacity < 1 || capacity > 1 << 30 || sampleRate < 1) {
+            throw new IllegalArgumentException("Invalid capacity or sample "
+                    + "rate.");
+        }
+        Subscription subscription = new Subscription(listener, backpressure,
+                capacity, sampleRate);
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The event bus is closed.");
+            }
+            Subscription[] current = subscriptions;
+            Subscription[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = subscription;
+            subscriptions = next;
+        }
+        subscription.consumer.start();
+        return subscription;
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                Subscription[] next = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, next.length - i);
+                subscriptions = next;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Publishes a move made on a board.
+     * @param board board of the move
+     * @param move encoded move
+     */
+    public void moved(Board board, long move) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(MOVED, board, move);
+        }
+    }
+
+    /**
+     * Publishes a move taken back on a board.
+     * @param board board of the move
+     * @param move encoded move which was undone
+     */
+    public void undone(Board board, long move) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(UNDONE, board, move);
+        }
+    }
+
+    /**
+     * Publishes the end of a game.
+     * @param board board of the game
+     * @param winner winner of the game
+     */
+    public void gameOver(Board board, Player winner) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(GAME_OVER, board, winner.ordinal());
+        }
+    }
+
+    /**
+     * Closes all subscriptions after their listeners have received the
+     * events published so far. Events published afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        Subscription[] current;
+        synchronized (this) {
+            closed = true;
+            current = subscriptions;
+        }
+        for (Subscription subscription : current) {
+            subscription.close();
+        }
+    }
+
+    /**
+     * A listener together with its buffer and consumer thread.
+     *
+     * The buffer is a ring of slots for many publishers and one consumer.
+     * A publisher claims a sequence number by a compare and swap on the
+     * tail, fills the slot of the number and marks it as published by
+     * storing the number plus one into the slot's sequence. The consumer
+     * takes all consecutive published slots as a batch and then moves the
+     * head behind them, which frees the slots for the publishers.
+     */
+    public final class Subscription implements AutoCloseable {
+
+        private final MoveListener listener;
+
+        private final Backpressure backpressure;
+
+        private final int sampleRate;
+
+        private final int mask;
+
+        /**
+         * Number of waiting events at which a publisher wakes up the idle
+         * consumer. Below it, the consumer finds the events when its idle
+         * time is over, which saves a system call per event and batches the
+         * events of busy games.
+         */
+        private final int wakeUpBacklog;
+
+        private final byte[] types;
+
+        private final Board[] boards;
+
+        private final long[] values;
+
+        /**
+         * Sequence number plus one of the event in every slot, set once the
+         * event can be consumed.
+         */
+        private final AtomicLongArray published;
+
+        /**
+         * Next sequence number to be claimed by a publisher.
+         */
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * Next sequence number to be consumed.
+         */
+        private volatile long head;
+
+        private volatile boolean idle;
+
+        private volatile boolean stopped;
+
+        private final AtomicLong sampled = new AtomicLong();
+
+        private final AtomicLong dropped = new AtomicLong();
+
+        private volatile long delivered;
+
+        private volatile long failures;
+
+        private final Thread consumer;
+
+        private Subscription(MoveListener listener, Backpressure backpressure,
+                int capacity, int sampleRate) {
+            int size = Integer.highestOneBit(capacity - 1) << 1;
+            size = capacity == 1 ? 1 : size;
+            this.listener = listener;
+            this.backpressure = backpressure;
+            this.sampleRate = sampleRate;
+            this.mask = size - 1;
+            this.wakeUpBacklog = size / 4;
+            this.types = new byte[size];
+            this.boards = new Board[size];
+            this.values = new long[size];
+            this.published = new AtomicLongArray(size);
+            this.consumer = new Thread(this::consume, "nim-events-"
+                    + listener.getClass().getSimpleName());
+            consumer.setDaemon(true);
+        }
+
+        /**
+         * Puts an event into the buffer, or drops it.
+         */
+        private void offer(byte type, Board board, long value) {
+            long sequence;
+            while (true) {
+                sequence = tail.get();
+                long used = sequence - head;
+                if (stopped) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (used > mask) {
+                    if (backpressure != Backpressure.BLOCK) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    wakeUp();
+                    LockSupport.parkNanos(BLOCKED_NANOS);
+                    continue;
+                }
+                if (backpressure == Backpressure.SAMPLE && type == MOVED
+                        && used > mask / 2
+                        && sampled.getAndIncrement() % sampleRate != 0) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    break;
+                }
+            }
+            int slot = (int) sequence & mask;
+            types[slot] = type;
+            boards[slot] = board;
+            values[slot] = value;
+            published.set(slot, sequence + 1);
+            if (idle && sequence - head >= wakeUpBacklog) {
+                wakeUp();
+            }
+        }
+
+        private void wakeUp() {
+            LockSupport.unpark(consumer);
+        }
+
+        /**
+         * Loop of the consumer thread: hands over all published events as
+         * one batch, or waits for new ones.
+         */
+        private void consume() {
+            long next = head;
+            while (true) {
+                long end = next;
+                while (end - next <= mask
+                        && published.get((int) end & mask) == end + 1) {
+                    end++;
+                }
+                if (end == next) {
+                    if (stopped && tail.get() == next) {
+                        return;
+                    }
+                    idle = true;
+                    if (published.get((int) next & mask) != next + 1) {
+                        LockSupport.parkNanos(IDLE_NANOS);
+                    }
+                    idle = false;
+                    continue;
+                }
+                for (long sequence = next; sequence < end; sequence++) {
+                    deliver((int) sequence & mask);
+                }
+                try {
+                    listener.endOfBatch((int) (end - next));
+                } catch (RuntimeException e) {
+                    failures++;
+                }
+                delivered += end - next;
+                head = end;
+                next = end;
+            }
+        }
+
+        private void deliver(int slot) {
+            Board board = boards[slot];
+            boards[slot] = null;
+            try {
+                switch (types[slot]) {
+                    case MOVED:
+                        listener.moved(board, values[slot]);
+                        break;
+                    case UNDONE:
+                        listener.undone(board, values[slot]);
+                        break;
+                    default:
+                        listener.gameOver(board,
+                                Player.values()[(int) values[slot]]);
+                }
+            } catch (RuntimeException e) {
+                // A failing listener must not lose the following events
+                failures++;
+            }
+        }
+
+        /**
+         * Gets the number of events dropped because the buffer was full or
+         * by sampling.
+         * @return number of dropped events
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * Gets the number of events handed over to the listener.
+         * @return number of delivered events
+         */
+        public long getDelivered() {
+            return delivered;
+        }
+
+        /**
+         * Gets the number of calls of the listener which threw an exception.
+         * @return number of failed calls
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * Gets the number of events waiting in the buffer.
+         * @return number of published but not yet delivered events
+         */
+        public long getBacklog() {
+            return tail.get() - head;
+        }
+
+        /**
+         * Unsubscribes the listener after it has received the events
+         * published so far, and waits for its consumer thread to end.
+         */
+        @Override
+        public void close() {
+            unsubscribe(this);
+            stopped = true;
+            wakeUp();
+            try {
+                consumer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,292 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only archive of finished games. Every game is kept with its rules,
+ * its opener, its starting position and all of its moves, so it can be
+ * analyzed and replayed later, see {@link ArchiveReader}.
+ *
+ * Games are collected in blocks of up to {@link #BLOCK_GAMES} games, which
+ * are stored column by column: the flags of all games of the block, then
+ * their numbers of rows, their numbers of sticks, their numbers of moves,
+ * their rows and finally their moves. Queries which only need a few small
+ * columns, such as the winner and the length of the games, skip the rest of
+ * the block. All numbers are unsigned variable length integers, see
+ * {@link BoardCodec}. The rows of a game are stored as the difference to
+ * the previous row and the row of a move as the difference to the row of
+ * the previous move, both zigzag encoded, so a typical game takes a few
+ * bytes per move. The player of a move is not stored, since the players
+ * alternate starting with the opener.
+ *
+ * An archive file starts with a magic number and the version of the format.
+ * A block consists of the length of its body, the CRC32C of the body and
+ * the body: the number of games, the lengths of the six columns and the
+ * columns. Opening an archive cuts off an incomplete or damaged last block,
+ * which is what a crash leaves behind. Blocks are written when they are
+ * full and when the archive is flushed or closed.
+ */
+public final class GameArchive implements AutoCloseable {
+
+    /**
+     * Maximum number of games per block.
+     */
+    static final int BLOCK_GAMES = 1 << 14;
+
+    static final int MAGIC = 0x4E494D41;
+
+    static final int VERSION = 1;
+
+    static final int FILE_HEADER = 8;
+
+    static final int BLOCK_HEADER = 8;
+
+    /**
+     * Indexes of the columns of a block.
+     */
+    static final int FLAGS = 0;
+
+    static final int ROW_COUNTS = 1;
+
+    static final int STICKS = 2;
+
+    static final int MOVE_COUNTS = 3;
+
+    static final int ROWS = 4;
+
+    static final int MOVES = 5;
+
+    static final int COLUMNS = 6;
+
+    /**
+     * Length of the body of a block before its columns.
+     */
+    static final int COLUMN_HEADER = 4 + 4 * COLUMNS;
+
+    /**
+     * Flag of a misere game.
+     */
+    static final int MISERE = 1;
+
+    /**
+     * Flag of a game opened by the machine.
+     */
+    static final int MACHINE_OPENED = 1 << 1;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer[] columns = new ByteBuffer[COLUMNS];
+
+    private final CRC32C crc = new CRC32C();
+
+    private int games;
+
+    private long archived;
+
+    /**
+     * Opens an archive file, which is created if it does not exist, and
+     * appends to it.
+     * @param file path of the archive
+     * @throws IOException if the file can not be opened
+     * @throws IllegalArgumentException if the file is not an archive
+     */
+    public GameArchive(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long end = recover();
+            channel.truncate(end);
+            channel.position(end);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        for (int i = 0; i < COLUMNS; i++) {
+            columns[i] = ByteBuffer.allocate(i < ROWS ? BLOCK_GAMES * 2
+                    : BLOCK_GAMES * 8);
+        }
+    }
+
+    /**
+     * Writes the header of a new file, or finds the end of the last complete
+     * block of an existing one.
+     * @return length of the valid part of the file
+     */
+    private long recover() throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+        if (size < FILE_HEADER) {
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            channel.write(header, 0);
+            return FILE_HEADER;
+        }
+        channel.read(header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Not a game archive.");
+        }
+        long position = FILE_HEADER;
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER);
+        while (position + BLOCK_HEADER <= size) {
+            blockHeader.clear();
+            channel.read(blockHeader, position);
+            int length = blockHeader.getInt(0);
+            if (length < COLUMN_HEADER
+                    || position + BLOCK_HEADER + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            channel.read(body, position + BLOCK_HEADER);
+            body.flip();
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != blockHeader.getInt(4)) {
+                break;
+            }
+            archived += body.getInt(0);
+            position += BLOCK_HEADER + length;
+        }
+        return position;
+    }
+
+    /**
+     * Gets the number of games in the archive, including the ones not
+     * written yet.
+     * @return number of archived games
+     */
+    public synchronized long getGames() {
+        return archived + games;
+    }
+
+    /**
+     * Adds a finished game to the archive.
+     * @param board normal or misere board whose game is over
+     * @throws IllegalArgumentException if the board is of another kind or
+     *         its game is not over
+     * @throws UncheckedIOException if a full block can not be written
+     */
+    public synchronized void record(Board board) {
+        if (!(board instanceof Nim) || !board.isGameOver()) {
+            throw new IllegalArgumentException("Only finished normal and "
+                    + "misere games can be archived.");
+        }
+        Nim nim = (Nim) board;
+        MoveLog history = nim.history;
+        int moves = history.size();
+        // All rows are empty, so every row started with the sticks taken
+        int[] rows = new int[nim.getRowCount()];
+        long sticks = 0;
+        for (int i = 0; i < moves; i++) {
+            long move = history.get(i);
+            rows[Moves.row(move)] += Moves.numberOfSticks(move);
+            sticks += Moves.numberOfSticks(move);
+        }
+        boolean machineOpened = moves > 0
+                && Moves.player(history.get(0)) == Player.MACHINE;
+        ensure(FLAGS, 1).put((byte) ((nim instanceof Misere ? MISERE : 0)
+                | (machineOpened ? MACHINE_OPENED : 0)));
+        BoardCodec.writeVarint(ensure(ROW_COUNTS, 10), rows.length);
+        BoardCodec.writeVarint(ensure(STICKS, 10), sticks);
+        BoardCodec.writeVarint(ensure(MOVE_COUNTS, 10), moves);
+        int previous = 0;
+        for (int sticksOfRow : rows) {
+            BoardCodec.writeVarint(ensure(ROWS, 10),
+                    zigzag(sticksOfRow - previous));
+            previous = sticksOfRow;
+        }
+        previous = 0;
+        for (int i = 0; i < moves; i++) {
+            long move = history.get(i);
+            ByteBuffer column = ensure(MOVES, 20);
+            BoardCodec.writeVarint(column, zigzag(Moves.row(move) - previous));
+            BoardCodec.writeVarint(column, Moves.numberOfSticks(move));
+            previous = Moves.row(move);
+        }
+        if (++games == BLOCK_GAMES) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private ByteBuffer ensure(int column, int bytes) {
+        ByteBuffer buffer = columns[column];
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(
+                    buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            columns[column] = larger;
+            buffer = larger;
+        }
+        return buffer;
+    }
+
+    /**
+     * Encodes a signed difference so small negative values are small too.
+     */
+    static long zigzag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    /**
+     * Decodes a difference encoded by {@link #zigzag(long)}.
+     */
+    static long unzigzag(long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    /**
+     * Writes the games recorded so far as a block to the operating system.
+     * @throws IOException if the block can not be written
+     */
+    public synchronized void flush() throws IOException {
+        if (games == 0) {
+            return;
+        }
+        int length = COLUMN_HEADER;
+        for (ByteBuffer column : columns) {
+            length += column.position();
+        }
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER + length);
+        block.putInt(length).putInt(0).putInt(games);
+        for (ByteBuffer column : columns) {
+            block.putInt(column.position());
+        }
+        for (ByteBuffer column : columns) {
+            column.flip();
+            block.put(column);
+            column.clear();
+        }
+        crc.reset();
+        crc.update(block.array(), BLOCK_HEADER, length);
+        block.putInt(4, (int) crc.getValue());
+        block.flip();
+        while (block.hasRemaining()) {
+            channel.write(block);
+        }
+        archived += games;
+        games = 0;
+    }
+
+    /**
+     * Writes the remaining games, forces the archive to the disk and closes
+     * it.
+     * @throws IOException if the archive can not be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+}
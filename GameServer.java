@@ -0,0 +1,627 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking server which hosts independent game sessions for clients
+ * connecting over local TCP. Every connection gets its own {@link Session},
+ * i.e. its own board, opener and verbose setting, and speaks the command
+ * language of the shell: one command per line, answered by the output of
+ * the command followed by the shell prompt. The prompt marks the end of
+ * every response, so clients may pipeline commands without waiting for the
+ * answers.
+ *
+ * Connections are accepted on the thread calling {@link #run()} and
+ * distributed round robin to a fixed number of event loops, each of which
+ * serves its connections with one selector.
+ *
+ * The output of a connection is queued in direct buffers of a fixed size,
+ * which every event loop keeps in a pool for its connections, and is never
+ * copied again before it is written. The rows of a PRINT are rendered page
+ * by page, only while less than one buffer of output waits for the socket,
+ * so printing a large board does not hold its text in memory. The commands
+ * after a PRINT wait until its last page has been rendered.
+ *
+ * With a {@link SessionStore}, the sessions survive a restart of the
+ * server. Every connection is then greeted with the id of its new session,
+ * and {@code RESUME <id>} continues a session of an earlier connection or
+ * of the server before its restart.
+ */
+public final class GameServer implements AutoCloseable {
+
+    /**
+     * Longest accepted command line. Longer lines close the connection.
+     */
+    static final int MAX_LINE_LENGTH = 1 << 24;
+
+    /**
+     * Amount of pending output above which a connection is not read from
+     * until the client has received most of it.
+     */
+    private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Number of free output buffers an event loop keeps for reuse.
+     */
+    private static final int POOLED_BUFFERS = 64;
+
+    private final ServerSocketChannel server;
+
+    private final EventLoop[] loops;
+
+    private final SessionStore store;
+
+    /**
+     * Archive of the games finished in the sessions, or null.
+     */
+    private volatile GameArchive archive;
+
+    private volatile boolean running = true;
+
+    /**
+     * Opens the server socket on the loopback interface and starts the
+     * event loops.
+     * @param port port to listen on, 0 for any free port
+     * @param threads number of event loops
+     * @throws IOException if the server socket can not be opened
+     */
+    public GameServer(int port, int threads) throws IOException {
+        this(port, threads, null);
+    }
+
+    /**
+     * Opens the server socket on the loopback interface and starts the
+     * event loops, with sessions persisted in a store.
+     * @param port port to listen on, 0 for any free port
+     * @param threads number of event loops
+     * @param store store of the sessions, or null if they are not persisted
+     * @throws IOException if the server socket can not be opened
+     */
+    public GameServer(int port, int threads, SessionStore store)
+            throws IOException {
+        this.store = store;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                port));
+        loops = new EventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "nim-server-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Lets the sessions of connections accepted from now on record their
+     * finished games in an archive.
+     * @param archive archive of the games, or null to record none
+     */
+    public void setArchive(GameArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Gets the port the server listens on.
+     * @return the local port
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the server is closed.
+     * @throws IOException if accepting fails for another reason than closing
+     */
+    public void run() throws IOException {
+        int next = 0;
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (IOException e) {
+                if (!running) {
+                    return;
+                }
+                throw e;
+            }
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    /**
+     * Stops accepting connections and shuts the event loops down.
+     * @throws IOException if closing the server socket fails
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        server.close();
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Event loop serving a share of the connections with one selector.
+     */
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+
+        private final Queue<SocketChannel> pending =
+                new ConcurrentLinkedQueue<>();
+
+        private final ByteBuffer readBuffer =
+                ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        /**
+         * Free output buffers of the connections of the loop.
+         */
+        private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    registerPending();
+                    Iterator<SelectionKey> keys =
+                            selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        serve(key);
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Registers the accepted connections. A connection which fails
+         * during its setup, e.g. because the client has reset it already,
+         * is closed without affecting the other connections of the loop.
+         */
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                Connection connection = null;
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    connection = new Connection(channel, buffers);
+                    SelectionKey key = channel.register(selector,
+                            SelectionKey.OP_READ, connection);
+                    connection.greet();
+                    connection.flush(key);
+                } catch (IOException | RuntimeException e) {
+                    if (connection != null) {
+                        connection.close();
+                    } else {
+                        try {
+                            channel.close();
+                        } catch (IOException closing) {
+                            // The connection is gone either way.
+                        }
+                    }
+                }
+            }
+        }
+
+        private void serve(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    connection.read(readBuffer);
+                }
+                if (key.isValid()) {
+                    connection.flush(key);
+                }
+            } catch (IOException | RuntimeException e) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Output of a connection in a queue of buffers, taken from the pool of
+     * its event loop and given back once they have been written. Every
+     * character is written as one byte.
+     */
+    private static final class Output implements Appendable {
+
+        private final ArrayDeque<ByteBuffer> pool;
+
+        /**
+         * Filled buffers, ready to be written.
+         */
+        private final ArrayDeque<ByteBuffer> filled = new ArrayDeque<>();
+
+        /**
+         * Buffer being filled, or null.
+         */
+        private ByteBuffer tail;
+
+        private long pending;
+
+        Output(ArrayDeque<ByteBuffer> pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public Output append(char c) {
+            if (tail == null || !tail.hasRemaining()) {
+                next();
+            }
+            tail.put((byte) c);
+            pending++;
+            return this;
+        }
+
+        @Override
+        public Output append(CharSequence text) {
+            CharSequence chars = text == null ? "null" : text;
+            return append(chars, 0, chars.length());
+        }
+
+        @Override
+        public Output append(CharSequence text, int start, int end) {
+            if (text == null) {
+                return append("null", start, end);
+            }
+            int i = start;
+            while (i < end) {
+                if (tail == null || !tail.hasRemaining()) {
+                    next();
+                }
+                int last = Math.min(end, i + tail.remaining());
+                for (; i < last; i++) {
+                    tail.put((byte) text.charAt(i));
+                }
+            }
+            pending += end - start;
+            return this;
+        }
+
+        /**
+         * Queues the buffer being filled and continues with a free one.
+         */
+        private void next() {
+            seal();
+            tail = pool.isEmpty() ? ByteBuffer.allocateDirect(BUFFER_SIZE)
+                    : pool.pop();
+        }
+
+        /**
+         * Queues the buffer being filled, if it holds any output.
+         */
+        private void seal() {
+            if (tail != null && tail.position() > 0) {
+                tail.flip();
+                filled.add(tail);
+                tail = null;
+            }
+        }
+
+        /**
+         * @return number of bytes not written yet
+         */
+        long pending() {
+            return pending;
+        }
+
+        /**
+         * Writes as much of the output as the channel takes.
+         * @return true if all of the output has been written
+         */
+        boolean write(SocketChannel channel) throws IOException {
+            seal();
+            ByteBuffer head;
+            while ((head = filled.peek()) != null) {
+                pending -= channel.write(head);
+                if (head.hasRemaining()) {
+                    return false;
+                }
+                release(filled.poll());
+            }
+            return true;
+        }
+
+        private void release(ByteBuffer buffer) {
+            if (pool.size() < POOLED_BUFFERS) {
+                buffer.clear();
+                pool.push(buffer);
+            }
+        }
+
+        /**
+         * Gives all buffers back to the pool, dropping the output.
+         */
+        void clear() {
+            while (!filled.isEmpty()) {
+                release(filled.poll());
+            }
+            if (tail != null) {
+                release(tail);
+                tail = null;
+            }
+            pending = 0;
+        }
+    }
+
+    /**
+     * State of one client connection: its session, the partial command line
+     * received so far, the output not yet written to the client and the
+     * rows of a PRINT not yet rendered.
+     */
+    private final class Connection implements RowPrinter {
+
+        /**
+         * Number of rows of a PRINT rendered at a time, one page of the
+         * renderer of the board.
+         */
+        private static final int PRINT_PAGE_ROWS = 1 << BoardRenderer.PAGE_BITS;
+
+        private final SocketChannel channel;
+
+        private final StringBuilder line = new StringBuilder();
+
+        private final Output output;
+
+        private final CommandTokenizer tokens = new CommandTokenizer();
+
+        private SessionStore.Journal journal;
+
+        private Session session;
+
+        /**
+         * Input received after a PRINT which has not been rendered
+         * completely, or null.
+         */
+        private ByteBuffer unread;
+
+        /**
+         * Board of the PRINT being rendered, or null.
+         */
+        private Board printBoard;
+
+        private boolean printVerbose;
+
+        private int printNext;
+
+        private int printTo;
+
+        private boolean quit;
+
+        Connection(SocketChannel channel, ArrayDeque<ByteBuffer> buffers) {
+            this.channel = channel;
+            this.output = new Output(buffers);
+            if (store == null) {
+                this.session = new Session(output, output);
+            } else {
+                this.journal = store.create();
+                this.session = new Session(output, output, journal);
+            }
+            session.setArchive(archive);
+            session.setRowPrinter(this);
+        }
+
+        void greet() {
+            if (journal != null) {
+                output.append("Session " + journal.getId() + ".\n");
+            }
+            output.append(Constants.HUMAN_OPENER).append('\n')
+                    .append(Constants.SHELL_PROMPT);
+        }
+
+        /**
+         * Reads what is available and executes every complete line in
+         * order, unless the connection still has work left from earlier
+         * input. Once a buffer of output is pending, the rest of the input
+         * waits until the output has been written.
+         */
+        void read(ByteBuffer buffer) throws IOException {
+            if (isBusy()) {
+                return;
+            }
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            buffer.flip();
+            advance(buffer);
+            if (buffer.hasRemaining() && !quit) {
+                unread = ByteBuffer.allocate(buffer.remaining());
+                unread.put(buffer).flip();
+            }
+        }
+
+        /**
+         * Renders the pages of a PRINT and executes the lines of some input,
+         * as long as less than a buffer of output is pending.
+         * @param input input to execute, or null
+         */
+        private void advance(ByteBuffer input) throws IOException {
+            while (!quit && output.pending() < BUFFER_SIZE) {
+                if (printBoard != null) {
+                    printPage();
+                } else if (input != null && input.hasRemaining()) {
+                    execute(input);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Executes the complete lines of some input in order. Stops at the
+         * QUIT command and at a PRINT, whose rows have to be rendered before
+         * the next command.
+         */
+        private void execute(ByteBuffer input) throws IOException {
+            while (input.hasRemaining() && !quit && printBoard == null) {
+                char c = (char) (input.get() & 0xFF);
+                if (c == '\n') {
+                    executeLine();
+                } else if (c != '\r') {
+                    if (line.length() >= MAX_LINE_LENGTH) {
+                        throw new IOException("Command line too long.");
+                    }
+                    line.append(c);
+                }
+            }
+        }
+
+        private void executeLine() {
+            boolean open = true;
+            if (journal != null && isResume()) {
+                resume(tokens.intValue(1));
+            } else {
+                open = session.execute(line);
+                if (!open) {
+                    journal = null;
+                }
+            }
+            line.setLength(0);
+            if (!open) {
+                quit = true;
+            } else if (printBoard == null) {
+                // After a PRINT, the prompt follows its last page
+                output.append(Constants.SHELL_PROMPT);
+            }
+        }
+
+        @Override
+        public void print(Board board, boolean verbose, int from, int to) {
+            printBoard = board;
+            printVerbose = verbose;
+            printNext = from;
+            printTo = to;
+        }
+
+        /**
+         * Renders the next page of the rows of the PRINT, and after the last
+         * page the details of the board, the line break and the prompt.
+         */
+        private void printPage() throws IOException {
+            int end = (int) Math.min(printTo, ((long) printNext
+                    / PRINT_PAGE_ROWS + 1) * PRINT_PAGE_ROWS);
+            if (end < printTo) {
+                printBoard.renderRows(output, printVerbose, printNext, end);
+                printNext = end;
+            } else {
+                printBoard.render(output, printVerbose, printNext, printTo);
+                output.append('\n').append(Constants.SHELL_PROMPT);
+                printBoard = null;
+            }
+        }
+
+        /**
+         * Checks whether the connection has to finish a PRINT or the input
+         * after it before it reads again.
+         */
+        private boolean isBusy() {
+            return printBoard != null || unread != null;
+        }
+
+        /**
+         * Writes as much pending output as the socket takes, and continues
+         * the work left from earlier input whenever the output has been
+         * written. At most about {@link #MAX_PENDING_OUTPUT} bytes are
+         * produced per call, so a fast client does not hold up the other
+         * connections of the event loop. Reading is suspended while there is
+         * work left or a lot of output is pending, so a client which does
+         * not read its answers can not make the server buffer without bound.
+         */
+        void flush(SelectionKey key) throws IOException {
+            long produced = 0;
+            boolean written = output.write(channel);
+            while (written && !quit && isBusy()
+                    && produced < MAX_PENDING_OUTPUT) {
+                advance(unread);
+                if (unread != null && !unread.hasRemaining()) {
+                    unread = null;
+                }
+                produced += output.pending();
+                written = output.write(channel);
+            }
+            if (!written) {
+                key.interestOps(output.pending() > MAX_PENDING_OUTPUT
+                        || isBusy() || quit ? SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else if (quit) {
+                close();
+            } else if (isBusy()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Checks if the line is a RESUME command, which is handled by the
+         * connection instead of its session.
+         */
+        private boolean isResume() {
+            tokens.tokenize(line);
+            return tokens.size() == 2 && tokens.equalsIgnoreCase(0, "RESUME");
+        }
+
+        /**
+         * Continues a session of the store instead of the current one.
+         */
+        private void resume(int id) {
+            SessionStore.Journal resumed = id < 0 ? null : store.resume(id);
+            if (resumed == null) {
+                output.append("Error! Session " + id
+                        + " can not be resumed.\n");
+                return;
+            }
+            journal.detach();
+            journal = resumed;
+            session = new Session(output, output, journal);
+            session.setArchive(archive);
+            session.setRowPrinter(this);
+            output.append("Session " + id + " resumed.\n");
+        }
+
+        void close() {
+            if (journal != null) {
+                journal.detach();
+                journal = null;
+            }
+            output.clear();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // The connection is gone either way.
+            }
+        }
+    }
+
+}
@@ -0,0 +1,582 @@
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.SplittableRandom;
+import java.util.stream.LongStream;
+
+/**
+ * Board for the take-away games given by an {@link OctalGame}, such as
+ * subtraction games or Kayles, played under normal rules: the player who
+ * makes the last move wins. The machine plays optimally with the
+ * Sprague-Grundy theory. Every row is worth the Grundy value of its size,
+ * which is looked up in the shared {@link GrundyTable} of the rules, and
+ * the board is lost for the player to move if the xor of these values, the
+ * Grundy sum, is zero. The Grundy sum is kept up to date by every move.
+ *
+ * Moves which leave one row or none remove sticks from the end of a row and
+ * are encoded like all moves, see {@link Moves}. Moves which split a row
+ * leave some sticks in the row and put the rest into a new last row; they
+ * are encoded by {@link #encodeSplit(int, int, int, Player)}. Boards of
+ * games with splits are limited to {@link #MAX_SPLIT_ROWS} rows and sticks
+ * per row.
+ */
+public class GrundyBoard implements Board {
+
+    /**
+     * Limit of the rows and of the sticks per row of games with splits.
+     */
+    public static final int MAX_SPLIT_ROWS = 1 << 26;
+
+    private static final long SPLIT = 1L << 62;
+
+    private static final int SPLIT_COUNT_SHIFT = 26;
+
+    private static final int SPLIT_LEFT_SHIFT = 36;
+
+    private static final long SPLIT_FIELD_MASK = MAX_SPLIT_ROWS - 1;
+
+    private static final long SPLIT_COUNT_MASK = (1 << 10) - 1;
+
+    private final OctalGame game;
+
+    private final GrundyTable table;
+
+    private int[] rows;
+
+    private int rowCount;
+
+    private int grundySum;
+
+    private int movableRows;
+
+    private Player currentPlayer;
+
+    private long lastMove = Moves.NONE;
+
+    private Move lastMoveView = new Move(0, 0, Player.HUMAN);
+
+    private MoveLog history = new MoveLog();
+
+    /**
+     * Bus the moves are published to, or null.
+     */
+    private EventBus events;
+
+    /**
+     * Creates a new game under the given rules.
+     * @param game rules of the game
+     * @param sticks number of sticks per row, each at least one
+     * @param beginner player who makes the first move
+     */
+    public GrundyBoard(OctalGame game, int[] sticks, Player beginner) {
+        long total = 0;
+        for (int s : sticks) {
+            if (s < 1) {
+                throw new IllegalArgumentException("Every row needs at "
+                        + "least one stick.");
+            }
+            total += s;
+        }
+        if (game.hasSplits() && (game.getMaxRemoval() > SPLIT_COUNT_MASK
+                || sticks.length + total >= MAX_SPLIT_ROWS)) {
+            throw new IllegalArgumentException("The board is too large for "
+                    + game + ".");
+        }
+        this.game = game;
+        this.table = GrundyTable.forGame(game);
+        this.rows = sticks.clone();
+        this.rowCount = sticks.length;
+        this.currentPlayer = beginner;
+        for (int row = 0; row < rowCount; row++) {
+            count(rows[row], 1);
+        }
+    }
+
+    /**
+     * Encodes a move which removes sticks from the middle of a row and
+     * splits it into two.
+     * @param row zero indexed row
+     * @param s number of sticks removed
+     * @param left sticks left in the row, the rest moves to a new last row
+     * @param player player making the move
+     * @return the encoded move
+     */
+    public static long encodeSplit(int row, int s, int left, Player player) {
+        return Moves.encode(0, 0, player) | SPLIT | row
+                | (long) s << SPLIT_COUNT_SHIFT
+                | (long) left << SPLIT_LEFT_SHIFT;
+    }
+
+    /**
+     * Checks whether an encoded move splits a row.
+     * @param move encoded move
+     * @return true if it was encoded by
+     *         {@link #encodeSplit(int, int, int, Player)}
+     */
+    public static boolean isSplit(long move) {
+        return (move & SPLIT) != 0;
+    }
+
+    /**
+     * Gets the row of a move of this board.
+     * @param move encoded move
+     * @return zero indexed row
+     */
+    public static int row(long move) {
+        return isSplit(move) ? (int) (move & SPLIT_FIELD_MASK)
+                : Moves.row(move);
+    }
+
+    /**
+     * Gets the number of sticks removed by a move of this board.
+     * @param move encoded move
+     * @return number of sticks removed
+     */
+    public static int numberOfSticks(long move) {
+        return isSplit(move)
+                ? (int) (move >>> SPLIT_COUNT_SHIFT & SPLIT_COUNT_MASK)
+                : Moves.numberOfSticks(move);
+    }
+
+    /**
+     * Gets the sticks a split leaves in its row.
+     * @param move encoded split
+     * @return sticks left in the row, or -1 if the move is no split
+     */
+    public static int splitLeft(long move) {
+        return isSplit(move)
+                ? (int) (move >>> SPLIT_LEFT_SHIFT & SPLIT_FIELD_MASK) : -1;
+    }
+
+    /**
+     * Gets the rules of the game.
+     * @return rules of the board
+     */
+    public OctalGame getGame() {
+        return game;
+    }
+
+    /**
+     * Gets the Grundy sum of the board.
+     * @return xor of the Grundy values of all rows
+     */
+    public int getGrundySum() {
+        return grundySum;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getSticks(int row) {
+        if (row >= 0 && row < rowCount) {
+            return rows[row];
+        }
+        return -1;
+    }
+
+    /**
+     * Executes a human move which removes sticks from the end of a row.
+     * @param row The number of the zero indexed row ascending top down.
+     * @param s The number of sticks to remove from row {@code row}.
+     */
+    @Override
+    public void remove(int row, int s) {
+        if (currentPlayer != Player.HUMAN) {
+            throw new IllegalStateException("It's the machines turn.");
+        }
+        play(Moves.encode(row, s, currentPlayer));
+    }
+
+    /**
+     * Executes a human move which removes sticks from the middle of a row.
+     * @param row The number of the zero indexed row ascending top down.
+     * @param s The number of sticks to remove from row {@code row}.
+     * @param left sticks left in the row, the rest moves to a new last row
+     */
+    public void split(int row, int s, int left) {
+        if (currentPlayer != Player.HUMAN) {
+            throw new IllegalStateException("It's the machines turn.");
+        }
+        play(encodeSplit(row, s, left, currentPlayer));
+    }
+
+    /**
+     * Executes a machine move. If the Grundy sum is not zero, the machine
+     * moves to a position with Grundy sum zero; otherwise it makes the
+     * first legal move.
+     */
+    @Override
+    public void machineRemove() {
+        if (currentPlayer != Player.MACHINE) {
+            throw new IllegalStateException("It's the humans turn.");
+        }
+        long move = chooseMachineMove();
+        if (move == Moves.NONE) {
+            changePlayer();
+            return;
+        }
+        applyMove(move);
+    }
+
+    /**
+     * Chooses the move the machine makes, without executing it. A winning
+     * move is made on the first row whose Grundy value has the highest bit
+     * of the Grundy sum, because that row has an option with the value of
+     * the row xor the Grundy sum.
+     * @return the encoded move, or {@link Moves#NONE} if no move is left
+     */
+    protected long chooseMachineMove() {
+        if (grundySum != 0) {
+            int bit = Integer.highestOneBit(grundySum);
+            for (int row = 0; row < rowCount; row++) {
+                int g = table.grundy(rows[row]);
+                if ((g & bit) != 0) {
+                    return findOption(row, g ^ grundySum, true);
+                }
+            }
+        }
+        for (int row = 0; row < rowCount; row++) {
+            if (game.hasMove(rows[row])) {
+                return findOption(row, 0, false);
+            }
+        }
+        return Moves.NONE;
+    }
+
+    /**
+     * Finds a move on a row, to an option with a given Grundy value or to
+     * any option. Once the table has found the period {@code p} of the
+     * values, which starts after the preperiod {@code q}, a split leaving
+     * {@code left > q + p} sticks in the row has the same values as the
+     * split leaving {@code left - p} there and {@code p} sticks more in the
+     * new row. So the first matching split leaves at most {@code q + p}
+     * sticks in the row, and only those splits are tried, whatever the size
+     * of the row.
+     * @param row row of the move
+     * @param target Grundy value of the row after the move
+     * @param matchTarget whether the option must have the target value
+     * @return the first move found, or {@link Moves#NONE}
+     */
+    private long findOption(int row, int target, boolean matchTarget) {
+        int sticks = rows[row];
+        int max = Math.min(sticks, game.getMaxRemoval());
+        int maxLeft = table.getPeriod() == 0 ? Integer.MAX_VALUE
+                : table.getPreperiod() + table.getPeriod();
+        for (int j = 1; j <= max; j++) {
+            int rest = sticks - j;
+            if (rest == 0 && game.canRemoveRow(j)
+                    && (!matchTarget || target == 0)
+                    || rest > 0 && game.canLeaveOne(j)
+                    && (!matchTarget || table.grundy(rest) == target)) {
+                return Moves.encode(row, j, currentPlayer);
+            }
+            if (game.canLeaveTwo(j)) {
+                int lastLeft = Math.min(rest / 2, maxLeft);
+                for (int left = 1; left <= lastLeft; left++) {
+                    if (!matchTarget || (table.grundy(left)
+                            ^ table.grundy(rest - left)) == target) {
+                        return encodeSplit(row, j, left, currentPlayer);
+                    }
+                }
+            }
+        }
+        return Moves.NONE;
+    }
+
+    /**
+     * Executes an encoded move for the player whose turn it is.
+     * @param move encoded move, see {@link Moves} and
+     *        {@link #encodeSplit(int, int, int, Player)}
+     */
+    @Override
+    public void play(long move) {
+        if (Moves.player(move) != currentPlayer) {
+            throw new IllegalStateException("It's not the turn of the "
+                    + "player of the move.");
+        }
+        int row = row(move);
+        if (row < 0 || row >= rowCount) {
+            throw new IllegalArgumentException("Not a valid move.");
+        }
+        int s = numberOfSticks(move);
+        int left = isSplit(move) ? splitLeft(move) : rows[row] - s;
+        int right = rows[row] - s - left;
+        if (!game.isLegal(rows[row], left, right)
+                || isSplit(move) && (left == 0 || right == 0)) {
+            throw new IllegalArgumentException("Not a valid move.");
+        }
+        applyMove(move);
+    }
+
+    /**
+     * Executes a move after it has been checked, and passes the turn to the
+     * other player.
+     * @param move encoded move
+     */
+    private void applyMove(long move) {
+        doMove(move);
+        lastMove = move;
+        history.append(move);
+        changePlayer();
+        if (events != null) {
+            published(move);
+        }
+    }
+
+    /**
+     * Publishes a move and, if it ended the game, the end of the game.
+     */
+    private void published(long move) {
+        events.moved(this, move);
+        if (isGameOver()) {
+            events.gameOver(this, getWinner());
+        }
+    }
+
+    @Override
+    public void setEventBus(EventBus bus) {
+        this.events = bus;
+    }
+
+    private void doMove(long move) {
+        int row = row(move);
+        int s = numberOfSticks(move);
+        if (isSplit(move)) {
+            int left = splitLeft(move);
+            int right = rows[row] - s - left;
+            setSticks(row, left);
+            if (rowCount == rows.length) {
+                rows = Arrays.copyOf(rows, rows.length * 2 + 1);
+            }
+            rows[rowCount++] = 0;
+            setSticks(rowCount - 1, right);
+        } else {
+            setSticks(row, rows[row] - s);
+        }
+    }
+
+    @Override
+    public boolean undo() {
+        if (!history.canUndo()) {
+            return false;
+        }
+        long move = history.undo();
+        int row = row(move);
+        int s = numberOfSticks(move);
+        if (isSplit(move)) {
+            int right = rows[rowCount - 1];
+            setSticks(rowCount - 1, 0);
+            rowCount--;
+            setSticks(row, rows[row] + s + right);
+        } else {
+            setSticks(row, rows[row] + s);
+        }
+        currentPlayer = Moves.player(move);
+        lastMove = history.last();
+        if (events != null) {
+            events.undone(this, move);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean redo() {
+        if (!history.canRedo()) {
+            return false;
+        }
+        long move = history.redo();
+        doMove(move);
+        currentPlayer = Moves.player(move);
+        lastMove = move;
+        changePlayer();
+        if (events != null) {
+            published(move);
+        }
+        return true;
+    }
+
+    @Override
+    public Player getCurrentPlayer() {
+        return currentPlayer;
+    }
+
+    /**
+     * Get the last move performed in the game. The returned object is
+     * reused by the board and changes with the next move. For a split it
+     * holds the row and the number of sticks removed.
+     * @return last move executed, or null if no move was made yet
+     */
+    @Override
+    public Move getLastMove() {
+        if (lastMove == Moves.NONE) {
+            return null;
+        }
+        lastMoveView.set(Moves.encode(row(lastMove),
+                numberOfSticks(lastMove), Moves.player(lastMove)));
+        return lastMoveView;
+    }
+
+    @Override
+    public long getEncodedLastMove() {
+        return lastMove;
+    }
+
+    /**
+     * Iterates over the moves to a position with Grundy sum zero.
+     * @return iterator over the encoded winning moves in ascending row order
+     */
+    @Override
+    public PrimitiveIterator.OfLong winningMoves() {
+        return moves(true).iterator();
+    }
+
+    @Override
+    public long countWinningMoves() {
+        return moves(true).count();
+    }
+
+    /**
+     * Iterates over all moves allowed by the rules.
+     * @return iterator over the encoded legal moves in ascending row order
+     */
+    @Override
+    public PrimitiveIterator.OfLong legalMoves() {
+        return moves(false).iterator();
+    }
+
+    @Override
+    public long countLegalMoves() {
+        return moves(false).count();
+    }
+
+    @Override
+    public long randomMove(SplittableRandom random) {
+        long[] legal = moves(false).toArray();
+        return legal[random.nextInt(legal.length)];
+    }
+
+    /**
+     * Collects the legal moves, or only the winning ones.
+     */
+    private LongStream moves(boolean winningOnly) {
+        LongStream.Builder moves = LongStream.builder();
+        if (winningOnly && grundySum == 0) {
+            return moves.build();
+        }
+        for (int row = 0; row < rowCount; row++) {
+            int sticks = rows[row];
+            int target = table.grundy(sticks) ^ grundySum;
+            int max = Math.min(sticks, game.getMaxRemoval());
+            for (int j = 1; j <= max; j++) {
+                int rest = sticks - j;
+                if (rest == 0 && game.canRemoveRow(j)
+                        && (!winningOnly || target == 0)
+                        || rest > 0 && game.canLeaveOne(j)
+                        && (!winningOnly || table.grundy(rest) == target)) {
+                    moves.add(Moves.encode(row, j, currentPlayer));
+                }
+                if (game.canLeaveTwo(j)) {
+                    for (int left = 1; left < rest; left++) {
+                        if (!winningOnly || (table.grundy(left)
+                                ^ table.grundy(rest - left)) == target) {
+                            moves.add(encodeSplit(row, j, left,
+                                    currentPlayer));
+                        }
+                    }
+                }
+            }
+        }
+        return moves.build();
+    }
+
+    /**
+     * A game is over when no row has a legal move left.
+     * @return true if game is over, false if it is still running.
+     */
+    @Override
+    public boolean isGameOver() {
+        return movableRows == 0;
+    }
+
+    /**
+     * The player who made the last move wins.
+     * @return winner of the game
+     */
+    @Override
+    public Player getWinner() {
+        if (lastMove == Moves.NONE) {
+            return currentPlayer == Player.HUMAN ? Player.MACHINE
+                    : Player.HUMAN;
+        }
+        return Moves.player(lastMove);
+    }
+
+    @Override
+    public GrundyBoard clone() {
+        GrundyBoard copy;
+        try {
+            copy = (GrundyBoard) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        copy.rows = rows.clone();
+        copy.lastMoveView = new Move(0, 0, Player.HUMAN);
+        copy.history = new MoveLog();
+        copy.events = null;
+        return copy;
+    }
+
+    private void changePlayer() {
+        currentPlayer = currentPlayer == Player.HUMAN ? Player.MACHINE
+                : Player.HUMAN;
+    }
+
+    /**
+     * Sets the number of sticks of a row and updates the Grundy sum and the
+     * number of rows with a legal move.
+     */
+    private void setSticks(int row, int value) {
+        count(rows[row], -1);
+        rows[row] = value;
+        count(value, 1);
+    }
+
+    private void count(int sticks, int delta) {
+        grundySum ^= table.grundy(sticks);
+        if (game.hasMove(sticks)) {
+            movableRows += delta;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toString(Shell.getVerboseMode());
+    }
+
+    /**
+     * String representation of the game, with the Grundy values of the rows
+     * and the Grundy sum if {@code verbose} is true.
+     * @param verbose whether verbose information is included
+     * @return string representation of the game
+     */
+    @Override
+    public String toString(boolean verbose) {
+        StringBuilder board = new StringBuilder();
+        for (int i = 0; i < rowCount; i++) {
+            board.append(i + 1).append(": ").append(rows[i]);
+            if (verbose) {
+                board.append(" (Grundy value ")
+                        .append(table.grundy(rows[i])).append(')');
+            }
+            board.append('\n');
+        }
+        if (verbose) {
+            board.append("Rules: ").append(game).append(", Grundy sum: ")
+                    .append(grundySum);
+        }
+        return board.toString();
+    }
+
+}
@@ -0,0 +1,220 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Table of the Grundy values of single rows under the rules of an
+ * {@link OctalGame}. The table is computed once per rule set, starting with
+ * a small number of rows, and doubled only when a larger row is looked up.
+ *
+ * After every extension the table is checked for periodicity with the
+ * theorem of Guy and Smith: if {@code g(n + p) == g(n)} holds for all
+ * {@code n0 <= n < 2 n0 + p + t}, where {@code t} is the number of digits of
+ * the code, the values are periodic from {@code n0} on. Once a period is
+ * found, the table is not extended any more and rows of any size are looked
+ * up in constant time.
+ *
+ * Tables are shared between all boards of a rule set and all threads. They
+ * are kept in a small cache, from which the least recently used table is
+ * evicted when too many rule sets are in use.
+ */
+public final class GrundyTable {
+
+    /**
+     * Largest number of values a table computes without finding a period.
+     * Rows above this size can only be used in periodic games.
+     */
+    static final int MAX_TABLE_SIZE = 1 << 16;
+
+    /**
+     * Number of rule sets whose tables are cached.
+     */
+    static final int MAX_CACHED_TABLES = 16;
+
+    private static final int INITIAL_SIZE = 256;
+
+    private static final Map<OctalGame, GrundyTable> CACHE =
+            new LinkedHashMap<>(MAX_CACHED_TABLES, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<OctalGame, GrundyTable> eldest) {
+                    return size() > MAX_CACHED_TABLES;
+                }
+            };
+
+    private final OctalGame game;
+
+    /**
+     * The computed values together with their period. Replaced as a whole
+     * on every extension, so readers always see a consistent state.
+     */
+    private volatile State state = new State(new int[0], 0, 0);
+
+    /**
+     * Immutable state of the table.
+     */
+    private static final class State {
+
+        private final int[] values;
+
+        private final int period;
+
+        private final int preperiod;
+
+        State(int[] values, int period, int preperiod) {
+            this.values = values;
+            this.period = period;
+            this.preperiod = preperiod;
+        }
+    }
+
+    private GrundyTable(OctalGame game) {
+        this.game = game;
+        extend(INITIAL_SIZE - 1);
+    }
+
+    /**
+     * Gets the table of a rule set, from the cache if it has been computed
+     * before.
+     * @param game rule set of the table
+     * @return the shared table
+     */
+    public static GrundyTable forGame(OctalGame game) {
+        synchronized (CACHE) {
+            return CACHE.computeIfAbsent(game, GrundyTable::new);
+        }
+    }
+
+    /**
+     * Gets the Grundy value of a single row.
+     * @param sticks number of sticks of the row
+     * @return the Grundy value
+     * @throws IllegalArgumentException if the game has no period within
+     *         {@link #MAX_TABLE_SIZE} values and the row is larger
+     */
+    public int grundy(int sticks) {
+        State current = state;
+        if (sticks >= current.values.length) {
+            if (current.period == 0) {
+                current = extend(sticks);
+            }
+            if (sticks >= current.values.length) {
+                return current.values[current.preperiod
+                        + (sticks - current.preperiod) % current.period];
+            }
+        }
+        return current.values[sticks];
+    }
+
+    /**
+     * Gets the period of the values, if it has been found.
+     * @return the period, or 0 if none has been found so far
+     */
+    public int getPeriod() {
+        return state.period;
+    }
+
+    /**
+     * Gets the number of values before the period starts.
+     * @return the preperiod, only meaningful if a period has been found
+     */
+    public int getPreperiod() {
+        return state.preperiod;
+    }
+
+    /**
+     * Gets the number of values the table holds.
+     * @return number of computed values
+     */
+    public int size() {
+        return state.values.length;
+    }
+
+    /**
+     * Extends the table by doubling until it holds the value of a row, or
+     * until a period has been found.
+     * @param sticks number of sticks of the row
+     * @return the new state, which covers the row or has a period
+     */
+    private synchronized State extend(int sticks) {
+        State current = state;
+        while (current.period == 0 && sticks >= current.values.length) {
+            int length = current.values.length;
+            if (length >= MAX_TABLE_SIZE) {
+                throw new IllegalArgumentException("Rows of " + game
+                        + " are limited to " + MAX_TABLE_SIZE + " sticks.");
+            }
+            int[] extended = Arrays.copyOf(current.values,
+                    Math.max(INITIAL_SIZE, length * 2));
+            compute(extended, length);
+            current = findPeriod(extended);
+            state = current;
+        }
+        return current;
+    }
+
+    /**
+     * Computes the values from {@code from} on as the minimal excludant of
+     * the values of all positions reachable by one move.
+     */
+    private void compute(int[] g, int from) {
+        int maxRemoval = game.getMaxRemoval();
+        int largest = 0;
+        for (int n = 0; n < from; n++) {
+            largest = Math.max(largest, g[n]);
+        }
+        boolean[] seen = new boolean[2];
+        for (int n = from; n < g.length; n++) {
+            int bound = Integer.highestOneBit(Math.max(1, largest)) * 2 + 1;
+            if (seen.length < bound) {
+                seen = new boolean[bound];
+            } else {
+                Arrays.fill(seen, false);
+            }
+            for (int j = 1; j <= Math.min(n, maxRemoval); j++) {
+                if (j == n && game.canRemoveRow(j)) {
+                    seen[0] = true;
+                }
+                if (j < n && game.canLeaveOne(j)) {
+                    seen[g[n - j]] = true;
+                }
+                if (game.canLeaveTwo(j)) {
+                    int rest = n - j;
+                    for (int left = 1; left <= rest / 2; left++) {
+                        seen[g[left] ^ g[rest - left]] = true;
+                    }
+                }
+            }
+            int mex = 0;
+            while (seen[mex]) {
+                mex++;
+            }
+            g[n] = mex;
+            largest = Math.max(largest, mex);
+        }
+    }
+
+    /**
+     * Looks for the smallest period which the theorem of Guy and Smith
+     * proves from the computed values.
+     * @return state of the values, with the period if one was found
+     */
+    private State findPeriod(int[] g) {
+        int t = game.getMaxRemoval();
+        for (int p = 1; p <= g.length / 2; p++) {
+            int n = g.length - p - 1;
+            while (n >= 0 && g[n + p] == g[n]) {
+                n--;
+            }
+            int n0 = n + 1;
+            if (2 * n0 + 2 * p + t <= g.length) {
+                return new State(g, p, n0);
+            }
+        }
+        return new State(g, 0, 0);
+    }
+
+}
@@ -0,0 +1,79 @@
+import java.util.PrimitiveIterator;
+
+/**
+ * The misere mode of the {@link HistogramNim} board, which plays exactly
+ * like {@link Misere}: the player who takes the last stick loses.
+ */
+public class HistogramMisere extends HistogramNim {
+
+    /**
+     * Creates a board.
+     * @param numberOfSticks number of sticks of every row, all at least 0
+     * @param player player who begins the game
+     */
+    public HistogramMisere(int[] numberOfSticks, Player player) {
+        super(numberOfSticks, player);
+    }
+
+    /**
+     * Chooses the move of the machine like {@link Misere}: once only one
+     * row with more than one stick is left, the machine leaves an odd
+     * number of rows with one stick for the human.
+     * @return the encoded move, or {@link Moves#NONE} if no sticks are left
+     */
+    @Override
+    protected long chooseMachineMove() {
+        if (rowsWithMoreSticks == 1) {
+            int row = firstRowWithMoreSticks();
+            return Moves.encode(row, getSticks(row)
+                    - Positions.endgameTarget(rowsWithOneStick),
+                    currentPlayer);
+        }
+        return super.chooseMachineMove();
+    }
+
+    /**
+     * Iterates over the winning moves in misere mode, the same as
+     * {@link Misere#winningMoves()}.
+     * @return iterator over the encoded winning moves in ascending row order
+     */
+    @Override
+    public PrimitiveIterator.OfLong winningMoves() {
+        if (rowsWithMoreSticks == 1) {
+            int row = firstRowWithMoreSticks();
+            return new RowMoveIterator(-1, 2, getSticks(row)
+                    ^ Positions.endgameTarget(rowsWithOneStick), 1);
+        } else if (rowsWithMoreSticks == 0) {
+            int limit = rowsWithOneStick % 2 == 0 ? rowsWithOneStick : 0;
+            return new RowMoveIterator(-1, 1, 1, limit);
+        }
+        return super.winningMoves();
+    }
+
+    /**
+     * Counts the winning moves in misere mode, see {@link #winningMoves()}.
+     * @return number of winning moves
+     */
+    @Override
+    public long countWinningMoves() {
+        if (rowsWithMoreSticks == 1) {
+            return 1;
+        } else if (rowsWithMoreSticks == 0) {
+            return rowsWithOneStick % 2 == 0 ? rowsWithOneStick : 0;
+        }
+        return super.countWinningMoves();
+    }
+
+    /**
+     * The winner is the player who did not take the last stick.
+     * @return player who won the game
+     */
+    @Override
+    public Player getWinner() {
+        if (Moves.player(lastMove) == Player.HUMAN) {
+            return Player.MACHINE;
+        }
+        return Player.HUMAN;
+    }
+
+}
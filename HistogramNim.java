@@ -0,0 +1,891 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Nim board for boards with many rows but few distinct numbers of sticks,
+ * such as generated boards with millions of rows of at most a few hundred
+ * sticks. It plays exactly like {@link Nim}: the same moves are legal, the
+ * machine makes the same moves and the board is printed the same way.
+ *
+ * Instead of the rows and a bit plane index over them, the board keeps a
+ * histogram: the distinct numbers of sticks, called sizes, with the number
+ * of rows of each size and a lower bound of the first row of each size.
+ * Every row only stores the index of its size, packed with 4, 8, 16 or 32
+ * bits per row, whatever the number of sizes needs. Since equal rows cancel
+ * out in the nim sum, the initial nim sum is the xor of the sizes with an
+ * odd number of rows. The end of game check, the counters of the misere
+ * rules and the numbers of winning and legal moves are computed from the
+ * histogram in time proportional to the number of sizes.
+ *
+ * The rows of every size are indexed by blocks of {@link #BLOCK_ROWS}
+ * rows, like the bit planes of {@link RowStore}: the number of rows of the
+ * size in every block, and a bitmap of the blocks with at least one such
+ * row. The first row of a size is found from its lower bound, which moves
+ * back whenever a row gets the size, by scanning the rest of the block of
+ * the bound and then the first following block with a row of the size.
+ * So the machine, which looks at the first rows of the sizes in question
+ * only, scans at most two blocks per size and a bitmap of one bit per
+ * block, independent of where the rows of the size are. Every step of
+ * {@link #winningMoves()} is bounded the same way. The index takes two
+ * bytes per size and block, which is small against the packed rows as
+ * long as there are fewer than a few hundred sizes.
+ *
+ * The packed rows and the index are copied on write, so clones of a board
+ * share them until either board changes a row.
+ */
+public class HistogramNim implements Board {
+
+    /**
+     * Number of rows per block of the index of the rows of every size.
+     */
+    static final int BLOCK_ROWS = 1 << 12;
+
+    private static final int BLOCK_SHIFT = 12;
+
+    protected Player currentPlayer;
+
+    protected long lastMove;
+
+    private Move lastMoveView = new Move(0, 0, Player.HUMAN);
+
+    private BoardRenderer renderer;
+
+    /**
+     * Bus the moves are published to, or null.
+     */
+    private EventBus events;
+
+    /**
+     * History of the moves of the game, used to undo and redo moves.
+     */
+    protected MoveLog history = new MoveLog();
+
+    private final int rowCount;
+
+    /**
+     * Index of the size of every row: row {@code r} takes the bits from
+     * {@code r << widthShift} on.
+     */
+    private long[] packed;
+
+    private int widthShift;
+
+    private long rowMask;
+
+    /**
+     * Whether the packed rows are shared with a clone and have to be copied
+     * before they are changed.
+     */
+    private boolean shared;
+
+    /**
+     * The sizes which occurred on the board, with index 0 for empty rows.
+     */
+    private int[] sizes;
+
+    /**
+     * Number of rows of every size.
+     */
+    private int[] counts;
+
+    /**
+     * Lower bound of the first row of every size: no row before it has the
+     * size.
+     */
+    private int[] firstRows;
+
+    private int sizeCount;
+
+    private final int blockCount;
+
+    /**
+     * Number of rows of every size in every block of {@link #BLOCK_ROWS}
+     * rows.
+     */
+    private char[][] blockCounts;
+
+    /**
+     * Blocks with at least one row of every size, one bit per block.
+     */
+    private long[][] occupied;
+
+    /**
+     * Open addressing table from a size to its index plus one.
+     */
+    private int[] slots;
+
+    /**
+     * Nim sum, i.e. the xor of all rows, of the current board.
+     */
+    protected int nimSum;
+
+    /**
+     * Number of rows which contain at least one stick.
+     */
+    protected int nonEmptyRows;
+
+    /**
+     * Number of rows which contain exactly one stick.
+     */
+    protected int rowsWithOneStick;
+
+    /**
+     * Number of rows which contain more than one stick.
+     */
+    protected int rowsWithMoreSticks;
+
+    /**
+     * Creates a board.
+     * @param numberOfSticks number of sticks of every row, all at least 0
+     * @param player player who begins the game
+     */
+    public HistogramNim(int[] numberOfSticks, Player player) {
+        this.rowCount = numberOfSticks.length;
+        this.currentPlayer = player;
+        this.lastMove = Moves.NONE;
+        this.blockCount = (int) (((long) rowCount + BLOCK_ROWS - 1)
+                >>> BLOCK_SHIFT);
+        this.sizes = new int[16];
+        this.counts = new int[16];
+        this.firstRows = new int[16];
+        this.blockCounts = new char[16][];
+        this.occupied = new long[16][];
+        this.slots = new int[32];
+        sizeCount = 1;
+        addBlocks(0);
+        for (int row = 0; row < rowCount; row++) {
+            int size = numberOfSticks[row];
+            if (size < 0) {
+                throw new IllegalArgumentException("Negative row.");
+            }
+            int index = indexOf(size);
+            if (counts[index]++ == 0) {
+                firstRows[index] = row;
+            }
+        }
+        widthShift = widthShift(sizeCount);
+        rowMask = (1L << (1 << widthShift)) - 1;
+        packed = new long[packedWords(rowCount, widthShift)];
+        for (int row = 0; row < rowCount; row++) {
+            int index = indexOf(numberOfSticks[row]);
+            put(row, index);
+            countInBlock(row, index, 1);
+        }
+        // Pairs of equal rows cancel out, so only the sizes with an odd
+        // number of rows remain in the nim sum
+        for (int i = 1; i < sizeCount; i++) {
+            if ((counts[i] & 1) == 1) {
+                nimSum ^= sizes[i];
+            }
+            count(sizes[i], counts[i]);
+        }
+    }
+
+    private static int widthShift(int sizeCount) {
+        int bits = 32 - Integer.numberOfLeadingZeros(sizeCount - 1);
+        return bits <= 4 ? 2 : bits <= 8 ? 3 : bits <= 16 ? 4 : 5;
+    }
+
+    private static int packedWords(int rows, int widthShift) {
+        return (int) (((long) rows << widthShift) + 63 >>> 6);
+    }
+
+    private int index(int row) {
+        long bit = (long) row << widthShift;
+        return (int) (packed[(int) (bit >>> 6)] >>> bit & rowMask);
+    }
+
+    private void put(int row, int index) {
+        long bit = (long) row << widthShift;
+        int word = (int) (bit >>> 6);
+        packed[word] = packed[word] & ~(rowMask << bit) | (long) index << bit;
+    }
+
+    /**
+     * Gets the index of a size, adding the size if it did not occur yet.
+     * The packed rows are widened if they can not hold the new index.
+     */
+    private int indexOf(int size) {
+        int mask = slots.length - 1;
+        int slot = slot(size);
+        while (slots[slot] != 0) {
+            int index = slots[slot] - 1;
+            if (sizes[index] == size) {
+                return index;
+            }
+            slot = slot + 1 & mask;
+        }
+        if (size == 0) {
+            // Index 0 is reserved for empty rows
+            slots[slot] = 1;
+            return 0;
+        }
+        if (sizeCount == sizes.length) {
+            sizes = Arrays.copyOf(sizes, sizeCount * 2);
+            counts = Arrays.copyOf(counts, sizeCount * 2);
+            firstRows = Arrays.copyOf(firstRows, sizeCount * 2);
+            blockCounts = Arrays.copyOf(blockCounts, sizeCount * 2);
+            occupied = Arrays.copyOf(occupied, sizeCount * 2);
+        }
+        int index = sizeCount++;
+        sizes[index] = size;
+        firstRows[index] = rowCount;
+        addBlocks(index);
+        slots[slot] = index + 1;
+        if (sizeCount * 2 > slots.length) {
+            rehash();
+        }
+        if (packed != null && index > rowMask) {
+            widen();
+        }
+        return index;
+    }
+
+    /**
+     * Creates the empty index of the rows of a new size.
+     */
+    private void addBlocks(int index) {
+        blockCounts[index] = new char[blockCount];
+        occupied[index] = new long[(blockCount + 63) >>> 6];
+    }
+
+    /**
+     * Adds (or subtracts) a row to the index of the rows of a size.
+     */
+    private void countInBlock(int row, int index, int rows) {
+        int block = row >>> BLOCK_SHIFT;
+        if ((blockCounts[index][block] += rows) == 0) {
+            occupied[index][block >>> 6] &= ~(1L << block);
+        } else {
+            occupied[index][block >>> 6] |= 1L << block;
+        }
+    }
+
+    /**
+     * Copies the packed rows and the index of the rows of every size, which
+     * are shared with a clone.
+     */
+    private void unshare() {
+        packed = packed.clone();
+        for (int i = 0; i < sizeCount; i++) {
+            blockCounts[i] = blockCounts[i].clone();
+            occupied[i] = occupied[i].clone();
+        }
+        shared = false;
+    }
+
+    /**
+     * Gets the home slot of a size from the high bits of a multiplicative
+     * hash.
+     */
+    private int slot(int size) {
+        return size * 0x9E3779B9 >>> Integer.numberOfLeadingZeros(
+                slots.length - 1);
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int index = 0; index < sizeCount; index++) {
+            int slot = slot(sizes[index]);
+            while (slots[slot] != 0) {
+                slot = slot + 1 & mask;
+            }
+            slots[slot] = index + 1;
+        }
+    }
+
+    /**
+     * Repacks the rows with a larger width, for an index which does not
+     * fit into the current one.
+     */
+    private void widen() {
+        int[] indexes = new int[rowCount];
+        for (int row = 0; row < rowCount; row++) {
+            indexes[row] = index(row);
+        }
+        widthShift++;
+        rowMask = (1L << (1 << widthShift)) - 1;
+        packed = new long[packedWords(rowCount, widthShift)];
+        for (int row = 0; row < rowCount; row++) {
+            put(row, indexes[row]);
+        }
+    }
+
+    /**
+     * Adds (or subtracts) rows with the given number of sticks to the
+     * counters of the board.
+     */
+    private void count(int size, int rows) {
+        if (size == 0) {
+            return;
+        }
+        nonEmptyRows += rows;
+        if (size == 1) {
+            rowsWithOneStick += rows;
+        } else {
+            rowsWithMoreSticks += rows;
+        }
+    }
+
+    /**
+     * Sets the number of sticks of a row and updates the histogram and the
+     * counters of the board. Every change of the rows has to go through
+     * this method.
+     * @param row zero indexed row
+     * @param value new number of sticks of the row
+     */
+    protected void setSticks(int row, int value) {
+        if (shared) {
+            unshare();
+        }
+        int previous = index(row);
+        int next = indexOf(value);
+        put(row, next);
+        counts[previous]--;
+        counts[next]++;
+        countInBlock(row, previous, -1);
+        countInBlock(row, next, 1);
+        if (row < firstRows[next]) {
+            firstRows[next] = row;
+        }
+        if (renderer != null) {
+            renderer.invalidate(row);
+        }
+        nimSum ^= sizes[previous] ^ value;
+        count(sizes[previous], -1);
+        count(value, 1);
+    }
+
+    /**
+     * Finds the first row of a size which has at least one row, and moves
+     * the lower bound of the size up to it. Only the block of the lower
+     * bound and the first following block with a row of the size are
+     * scanned.
+     */
+    private int firstRow(int index) {
+        int from = firstRows[index];
+        int block = from >>> BLOCK_SHIFT;
+        int row = -1;
+        if (blockCounts[index][block] > 0) {
+            int end = blockEnd(block);
+            for (row = from; row < end && index(row) != index; row++) {
+                // Rows of other sizes
+            }
+            if (row == end) {
+                row = -1;
+            }
+        }
+        if (row < 0) {
+            row = nextBlock(index, block + 1) << BLOCK_SHIFT;
+            while (index(row) != index) {
+                row++;
+            }
+        }
+        firstRows[index] = row;
+        return row;
+    }
+
+    /**
+     * Finds the first block at or after the given one with a row of a size.
+     * @return the block, or -1 if there is none
+     */
+    private int nextBlock(int index, int from) {
+        long[] bits = occupied[index];
+        int word = from >>> 6;
+        if (word >= bits.length) {
+            return -1;
+        }
+        long found = bits[word] & -1L << from;
+        while (found == 0) {
+            if (++word == bits.length) {
+                return -1;
+            }
+            found = bits[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(found);
+    }
+
+    /**
+     * Gets the row after the last row of a block.
+     */
+    private int blockEnd(int block) {
+        return (int) Math.min(rowCount, (long) (block + 1) << BLOCK_SHIFT);
+    }
+
+    /**
+     * Finds the next row whose size matches a mask: the rest of the block of
+     * the start is scanned, and then the first following block with a row
+     * of a matching size.
+     * @param any bits of which a size must have at least one
+     * @param minimum smallest matching size
+     * @param from zero indexed row to start the search at
+     * @return zero indexed row, or -1 if no row matches
+     */
+    private int nextRow(int any, int minimum, int from) {
+        if (from >= rowCount) {
+            return -1;
+        }
+        int block = from >>> BLOCK_SHIFT;
+        int end = blockEnd(block);
+        for (int row = from; row < end; row++) {
+            int size = sizes[index(row)];
+            if ((size & any) != 0 && size >= minimum) {
+                return row;
+            }
+        }
+        int next = blockCount;
+        for (int i = 1; i < sizeCount; i++) {
+            if (counts[i] > 0 && (sizes[i] & any) != 0
+                    && sizes[i] >= minimum) {
+                int found = nextBlock(i, block + 1);
+                if (found >= 0 && found < next) {
+                    next = found;
+                }
+            }
+        }
+        return next == blockCount ? -1 : nextRow(any, minimum,
+                next << BLOCK_SHIFT);
+    }
+
+    /**
+     * Finds the first row whose size matches a mask, by looking at the
+     * first rows of the matching sizes only.
+     * @param any bits of which a size must have at least one, or -1 for
+     *        all non-empty sizes
+     * @param minimum smallest matching size
+     * @return zero indexed row, or -1 if no row matches
+     */
+    private int firstRow(int any, int minimum) {
+        int first = rowCount;
+        for (int i = 1; i < sizeCount; i++) {
+            // The lower bound is enough to rule out a size
+            if (counts[i] > 0 && (sizes[i] & any) != 0
+                    && sizes[i] >= minimum && firstRows[i] < first) {
+                first = Math.min(first, firstRow(i));
+            }
+        }
+        return first == rowCount ? -1 : first;
+    }
+
+    /**
+     * Chooses the move of the machine, the same one as {@link Nim} does:
+     * half of the sticks of the first non-empty row of a safe board, or
+     * else the move which makes the nim sum 0 in the first row with the
+     * highest bit of the nim sum.
+     * @return the encoded move, or {@link Moves#NONE} if no sticks are left
+     */
+    protected long chooseMachineMove() {
+        if (nimSum == 0) {
+            int row = firstRow(-1, 1);
+            if (row < 0) {
+                return Moves.NONE;
+            }
+            return Moves.encode(row, Positions.sticksToTake(getSticks(row), 0),
+                    currentPlayer);
+        }
+        int row = firstRow(Integer.highestOneBit(nimSum), 1);
+        return Moves.encode(row, Positions.sticksToTake(getSticks(row),
+                nimSum), currentPlayer);
+    }
+
+    /**
+     * Finds the only row with more than one stick, if there is exactly one.
+     * @return zero indexed row
+     */
+    protected int firstRowWithMoreSticks() {
+        return firstRow(-1, 2);
+    }
+
+    /**
+     *  Executes human move, see {@link Nim#remove(int, int)}.
+     * @param row The number of the zero indexed row ascending top down.
+     * @param s The number of sticks to remove from row {@code row}.
+     */
+    @Override
+    public void remove(int row, int s) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0L;
+        if (currentPlayer != Player.HUMAN) {
+            throw new IllegalStateException("It's the machines turn.");
+        }
+        if (!checkForValidInput(row, s)) {
+            throw new IllegalArgumentException("Not a valid move.");
+        }
+        applyMove(Moves.encode(row, s, currentPlayer));
+        if (Metrics.ENABLED) {
+            Metrics.recordMove(Metrics.Operation.REMOVE, start, this);
+        }
+    }
+
+    /**
+     * Executes the machine move, see {@link #chooseMachineMove()}.
+     */
+    @Override
+    public void machineRemove() {
+        if (currentPlayer != Player.MACHINE) {
+            throw new IllegalStateException("It's the humans turn.");
+        }
+        long start = Metrics.ENABLED ? System.nanoTime() : 0L;
+        long move = chooseMachineMove();
+        if (move == Moves.NONE) {
+            changePlayer();
+            return;
+        }
+        applyMove(move);
+        if (Metrics.ENABLED) {
+            Metrics.recordMove(Metrics.Operation.MACHINE_REMOVE, start, this);
+        }
+    }
+
+    /**
+     * Executes a move after it has been checked, and passes the turn to the
+     * other player.
+     * @param move encoded move
+     */
+    protected void applyMove(long move) {
+        int row = Moves.row(move);
+        setSticks(row, getSticks(row) - Moves.numberOfSticks(move));
+        lastMove = move;
+        history.append(move);
+        changePlayer();
+        if (events != null) {
+            published(move);
+        }
+    }
+
+    private void published(long move) {
+        events.moved(this, move);
+        if (isGameOver()) {
+            events.gameOver(this, getWinner());
+        }
+    }
+
+    @Override
+    public void setEventBus(EventBus bus) {
+        this.events = bus;
+    }
+
+    @Override
+    public void play(long move) {
+        if (Moves.player(move) != currentPlayer) {
+            throw new IllegalStateException("It's not the turn of the "
+                    + "player of the move.");
+        }
+        if (!checkForValidInput(Moves.row(move),
+                Moves.numberOfSticks(move))) {
+            throw new IllegalArgumentException("Not a valid move.");
+        }
+        applyMove(move);
+    }
+
+    @Override
+    public boolean undo() {
+        if (!history.canUndo()) {
+            return false;
+        }
+        long move = history.undo();
+        int row = Moves.row(move);
+        setSticks(row, getSticks(row) + Moves.numberOfSticks(move));
+        currentPlayer = Moves.player(move);
+        lastMove = history.last();
+        if (events != null) {
+            events.undone(this, move);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean redo() {
+        if (!history.canRedo()) {
+            return false;
+        }
+        long move = history.redo();
+        int row = Moves.row(move);
+        setSticks(row, getSticks(row) - Moves.numberOfSticks(move));
+        currentPlayer = Moves.player(move);
+        lastMove = move;
+        changePlayer();
+        if (events != null) {
+            published(move);
+        }
+        return true;
+    }
+
+    @Override
+    public Player getCurrentPlayer() {
+        return currentPlayer;
+    }
+
+    @Override
+    public Move getLastMove() {
+        if (lastMove == Moves.NONE) {
+            return null;
+        }
+        lastMoveView.set(lastMove);
+        return lastMoveView;
+    }
+
+    @Override
+    public long getEncodedLastMove() {
+        return lastMove;
+    }
+
+    /**
+     * Iterates over the moves that make the nim sum 0, on all rows with the
+     * highest bit of the nim sum, like {@link Nim#winningMoves()}.
+     * @return iterator over the encoded winning moves in ascending row order
+     */
+    @Override
+    public PrimitiveIterator.OfLong winningMoves() {
+        if (nimSum == 0) {
+            return new RowMoveIterator(0, 1, 0, 0);
+        }
+        return new RowMoveIterator(Integer.highestOneBit(nimSum), 1, nimSum,
+                Integer.MAX_VALUE);
+    }
+
+    /**
+     * Counts the winning moves from the histogram.
+     * @return number of winning moves
+     */
+    @Override
+    public long countWinningMoves() {
+        if (nimSum == 0) {
+            return 0;
+        }
+        return countRows(Integer.highestOneBit(nimSum), 1);
+    }
+
+    /**
+     * Counts the rows whose size has one of the given bits and is at least
+     * the minimum.
+     */
+    protected long countRows(int any, int minimum) {
+        long rows = 0;
+        for (int i = 1; i < sizeCount; i++) {
+            if ((sizes[i] & any) != 0 && sizes[i] >= minimum) {
+                rows += counts[i];
+            }
+        }
+        return rows;
+    }
+
+    @Override
+    public long countLegalMoves() {
+        long moves = 0;
+        for (int i = 1; i < sizeCount; i++) {
+            moves += (long) sizes[i] * counts[i];
+        }
+        return moves;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Gets the number of sticks of a row.
+     * @param row zero indexed row
+     * @return the number of sticks of the row, or -1 if there is no such
+     *         row
+     */
+    @Override
+    public int getSticks(int row) {
+        if (row < 0 || row >= rowCount) {
+            return -1;
+        }
+        return sizes[index(row)];
+    }
+
+    /**
+     * Gets the number of distinct numbers of sticks of the non-empty rows.
+     * @return number of sizes with at least one row
+     */
+    public int getSizeCount() {
+        int used = 0;
+        for (int i = 1; i < sizeCount; i++) {
+            if (counts[i] > 0) {
+                used++;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * The winner is the player who took the last stick, i.e. not the one
+     * whose turn it is.
+     * @return winner of the game
+     */
+    @Override
+    public Player getWinner() {
+        return currentPlayer == Player.HUMAN ? Player.MACHINE : Player.HUMAN;
+    }
+
+    @Override
+    public boolean isGameOver() {
+        return nonEmptyRows == 0;
+    }
+
+    /**
+     * Copy of the current board without the history of moves, which shares
+     * the packed rows and their index with this board until either of them
+     * changes a row.
+     * @return independent copy of the current board
+     */
+    @Override
+    public HistogramNim clone() {
+        HistogramNim copy;
+        try {
+            copy = (HistogramNim) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        shared = true;
+        copy.shared = true;
+        copy.sizes = sizes.clone();
+        copy.counts = counts.clone();
+        copy.firstRows = firstRows.clone();
+        copy.blockCounts = blockCounts.clone();
+        copy.occupied = occupied.clone();
+        copy.slots = slots.clone();
+        copy.renderer = null;
+        copy.lastMoveView = new Move(0, 0, Player.HUMAN);
+        copy.history = new MoveLog();
+        copy.events = null;
+        return copy;
+    }
+
+    private boolean checkForValidInput(int row, int s) {
+        return row >= 0 && row < rowCount && s >= 1 && getSticks(row) >= s;
+    }
+
+    protected void changePlayer() {
+        currentPlayer = currentPlayer == Player.HUMAN ? Player.MACHINE
+                : Player.HUMAN;
+    }
+
+    @Override
+    public String toString() {
+        return toString(Shell.getVerboseMode());
+    }
+
+    @Override
+    public String toString(boolean verbose) {
+        StringBuilder text = new StringBuilder();
+        try {
+            render(text, verbose, 0, rowCount);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes a range of rows in the format of {@link Nim}, through a
+     * renderer which keeps the pages of unchanged rows.
+     * @param out sink of the rows
+     * @param verbose whether the binary representations and the nim sum are
+     *        included
+     * @param from first zero indexed row
+     * @param to row after the last row
+     * @throws IOException if the sink fails
+     */
+    @Override
+    public void render(Appendable out, boolean verbose, int from, int to)
+            throws IOException {
+        render(out, verbose, from, to, true);
+    }
+
+    /**
+     * Writes a range of rows without the nim sum, so a long range can be
+     * written in parts, see {@link Board#renderRows}. Every call is recorded
+     * as one rendering like a call of render.
+     * @param out sink of the rows
+     * @param verbose whether the binary representations are included
+     * @param from first zero indexed row
+     * @param to row after the last row
+     * @throws IOException if the sink fails
+     */
+    @Override
+    public void renderRows(Appendable out, boolean verbose, int from, int to)
+            throws IOException {
+        render(out, verbose, from, to, false);
+    }
+
+    private void render(Appendable out, boolean verbose, int from, int to,
+            boolean nimSumFollows) throws IOException {
+        if (from < 0 || to < from || to > rowCount) {
+            throw new IllegalArgumentException("Rows out of range.");
+        }
+        long start = Metrics.ENABLED ? System.nanoTime() : 0L;
+        if (renderer == null) {
+            renderer = new BoardRenderer();
+        }
+        renderer.renderRows(row -> sizes[index(row)], rowCount, out, verbose,
+                from, to);
+        if (verbose && nimSumFollows) {
+            renderer.renderNimSum(out, nimSum);
+        }
+        if (Metrics.ENABLED) {
+            Metrics.recordRender(start);
+        }
+    }
+
+    /**
+     * Iterator over the moves on the rows whose size has one of the given
+     * bits and is at least a minimum, in ascending row order. Each move
+     * changes the number of sticks of its row to the xor of the row and a
+     * fixed mask. The next matching row is found through the index of the
+     * rows of every size, see {@link #nextRow(int, int, int)}.
+     */
+    protected final class RowMoveIterator implements PrimitiveIterator.OfLong {
+
+        private final int any;
+
+        private final int minimum;
+
+        private final int mask;
+
+        private int next;
+
+        private int remaining;
+
+        /**
+         * Creates an iterator.
+         * @param any bits of which a size must have at least one
+         * @param minimum smallest size
+         * @param mask mask the rows are xored with
+         * @param limit maximal number of moves returned
+         */
+        protected RowMoveIterator(int any, int minimum, int mask, int limit) {
+            this.any = any;
+            this.minimum = minimum;
+            this.mask = mask;
+            this.remaining = limit;
+            this.next = limit > 0 ? firstRow(any, minimum) : -1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next >= 0 && remaining > 0;
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int row = next;
+            int sticks = getSticks(row);
+            remaining--;
+            next = remaining > 0 ? nextRow(any, minimum, row + 1) : -1;
+            return Moves.encode(row, sticks - (sticks ^ mask),
+                    currentPlayer);
+        }
+    }
+
+}
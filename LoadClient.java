@@ -0,0 +1,256 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Load generator for the {@link GameServer}. It opens many sessions at once,
+ * sends every session a looping script of shell commands with a fixed number
+ * of pipelined commands in flight, and measures the time from sending a
+ * command until its prompt arrives. At the end it reports the commands per
+ * second and latency percentiles.
+ *
+ * Usage: {@code java LoadClient [--host 127.0.0.1] [--port 7777]
+ * [--sessions 1000] [--pipeline 4] [--seconds 10]}
+ */
+public final class LoadClient {
+
+    /**
+     * Script played by every session, one command per line. It contains
+     * moves, printing in both modes and invalid moves.
+     */
+    private static final String[] SCRIPT = {
+        "NEW 5 7 9 11 13",
+        "REMOVE 5 2",
+        "PRINT",
+        "REMOVE 4 1",
+        "VERBOSE ON",
+        "PRINT",
+        "REMOVE 9 9",
+        "UNDO",
+        "VERBOSE OFF",
+        "MISERE 3 4 5",
+        "REMOVE 1 1",
+        "SWITCH",
+    };
+
+    private static final byte[] PROMPT =
+            Constants.SHELL_PROMPT.getBytes(StandardCharsets.US_ASCII);
+
+    private String host = "127.0.0.1";
+
+    private int port = 7777;
+
+    private int sessions = 1000;
+
+    private int pipeline = 4;
+
+    private long seconds = 10;
+
+    private long[] latencies = new long[1 << 16];
+
+    private int latencyCount;
+
+    private long deadline;
+
+    /**
+     * A client session with its send times of the commands in flight.
+     */
+    private final class Client {
+
+        private final SocketChannel channel;
+
+        private final long[] sendTimes = new long[pipeline];
+
+        private int oldest;
+
+        private int inFlight;
+
+        private int scriptPosition;
+
+        private int promptMatched;
+
+        private boolean greeted;
+
+        private ByteBuffer pending = ByteBuffer.allocate(0);
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Scans received bytes for prompts. The first prompt is the greeting
+         * of the server, every further one answers the oldest command.
+         */
+        void received(ByteBuffer buffer, long now) {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == PROMPT[promptMatched]) {
+                    if (++promptMatched == PROMPT.length) {
+                        promptMatched = 0;
+                        answered(now);
+                    }
+                } else {
+                    promptMatched = b == PROMPT[0] ? 1 : 0;
+                }
+            }
+        }
+
+        private void answered(long now) {
+            if (!greeted) {
+                greeted = true;
+                return;
+            }
+            record(now - sendTimes[oldest]);
+            oldest = (oldest + 1) % pipeline;
+            inFlight--;
+        }
+
+        /**
+         * Sends commands until the pipeline is full, as long as the run has
+         * not ended.
+         */
+        void send(SelectionKey key, long now) throws IOException {
+            if (greeted && !pending.hasRemaining() && now < deadline) {
+                StringBuilder commands = new StringBuilder();
+                while (inFlight < pipeline) {
+                    commands.append(SCRIPT[scriptPosition]).append('\n');
+                    scriptPosition = (scriptPosition + 1) % SCRIPT.length;
+                    sendTimes[(oldest + inFlight) % pipeline] = now;
+                    inFlight++;
+                }
+                pending = StandardCharsets.US_ASCII.encode(
+                        commands.toString());
+            }
+            if (pending.hasRemaining()) {
+                channel.write(pending);
+            }
+            key.interestOps(pending.hasRemaining()
+                    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                    : SelectionKey.OP_READ);
+        }
+    }
+
+    private void record(long latency) {
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        }
+        latencies[latencyCount++] = latency;
+    }
+
+    /**
+     * Connects all sessions and drives them until the time is up and all
+     * commands in flight have been answered.
+     * @return answered commands per second
+     */
+    double run() throws IOException {
+        Selector selector = Selector.open();
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        for (int i = 0; i < sessions; i++) {
+            SocketChannel channel = SocketChannel.open(address);
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(selector, SelectionKey.OP_READ,
+                    new Client(channel));
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+        long start = System.nanoTime();
+        deadline = start + seconds * 1_000_000_000L;
+        int open = sessions;
+        while (open > 0) {
+            selector.select(100);
+            long now = System.nanoTime();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Client client = (Client) key.attachment();
+                if (key.isReadable()) {
+                    buffer.clear();
+                    if (client.channel.read(buffer) < 0) {
+                        key.cancel();
+                        open--;
+                        continue;
+                    }
+                    buffer.flip();
+                    client.received(buffer, now);
+                }
+                client.send(key, now);
+                if (now >= deadline && client.inFlight == 0) {
+                    client.channel.close();
+                    open--;
+                }
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        report(nanos);
+        selector.close();
+        return latencyCount * 1e9 / nanos;
+    }
+
+    private void report(long nanos) {
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        System.out.println(String.format(Locale.ROOT,
+                "%d sessions, pipeline %d: %d commands in %.2f s, "
+                        + "%.0f commands/s", sessions, pipeline,
+                latencyCount, nanos / 1e9, latencyCount * 1e9 / nanos));
+        System.out.println(String.format(Locale.ROOT,
+                "latency p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, "
+                        + "max %.3f ms", percentile(sorted, 0.5),
+                percentile(sorted, 0.99), percentile(sorted, 0.999),
+                percentile(sorted, 1.0)));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, i)] / 1e6;
+    }
+
+    void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--host":
+                    host = value;
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--sessions":
+                    sessions = Integer.parseInt(value);
+                    break;
+                case "--pipeline":
+                    pipeline = Integer.parseInt(value);
+                    break;
+                case "--seconds":
+                    seconds = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option "
+                            + args[i]);
+            }
+        }
+    }
+
+    /**
+     * Main method of the load generator.
+     * @param args options as described in the class comment
+     * @throws IOException if a connection fails
+     */
+    public static void main(String[] args) throws IOException {
+        LoadClient client = new LoadClient();
+        client.parseArguments(args);
+        client.run();
+    }
+
+}
@@ -0,0 +1,442 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Strategy which searches with Monte Carlo tree search. It works on
+ * any {@link Board}, since it only uses legal moves, random play-outs and
+ * the winner at the end of a game, so it can play rule variants without a
+ * closed-form solution, and with a small budget it makes a weaker opponent
+ * than the optimal strategy.
+ *
+ * The search is root parallel: every thread grows its own tree from the
+ * current position with UCT selection and random play-outs on its own copy
+ * of the board, and the move visited most often in all trees together is
+ * played. Every search stops at a time budget or a budget of play-outs,
+ * whichever is reached first. Between two moves of the same game the trees
+ * are kept: after the strategy's move and the reply of the opponent, every
+ * tree continues from the subtree of the two moves. An instance must only be
+ * used by one thread at a time.
+ *
+ * With {@link #solveEndgames(AnalysisCache, int)}, a play-out which reaches
+ * a position with few legal moves left asks a {@link CachedSolver} for its
+ * outcome instead of playing it out at random, which makes the play-outs
+ * exact at their end, and shorter. A move whose position is solved as soon
+ * as it enters the tree is marked as proven: a proven win is always
+ * selected and a proven loss only if nothing else is left, so exact results
+ * are not diluted by the random play-outs of their siblings. All threads,
+ * and all players given the same cache, share the analyzed endgames.
+ */
+public final class MctsPlayer implements Strategy, AutoCloseable {
+
+    /**
+     * Exploration constant of the UCT formula.
+     */
+    private static final double EXPLORATION = Math.sqrt(2);
+
+    /**
+     * Maximum number of positions the solver analyzes for one endgame. The
+     * endgames asked for are small, so it is only reached on boards whose
+     * positions are not cached.
+     */
+    private static final long ENDGAME_BUDGET = 100_000;
+
+    private final long millis;
+
+    private final long rollouts;
+
+    private final ExecutorService pool;
+
+    private final Worker[] workers;
+
+    private long lastRollouts;
+
+    private long lastNanos;
+
+    /**
+     * Creates a player with a budget per move.
+     * @param millis time budget per move in milliseconds, 0 for none
+     * @param rollouts budget of play-outs per move, 0 for none
+     * @param threads number of search threads
+     * @param seed seed of the random play-outs
+     */
+    public MctsPlayer(long millis, long rollouts, int threads, long seed) {
+        if (millis <= 0 && rollouts <= 0) {
+            throw new IllegalArgumentException("The search needs a time or "
+                    + "a play-out budget.");
+        }
+        this.millis = millis;
+        this.rollouts = rollouts;
+        this.workers = new Worker[Math.max(1, threads)];
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(random.split());
+        }
+        this.pool = Executors.newFixedThreadPool(workers.length, r -> {
+            Thread thread = new Thread(r, "mcts");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Lets the play-outs solve their endgames exactly. Only normal, misere
+     * and Grundy boards are solved, see {@link CachedSolver}; play-outs on
+     * other boards remain random.
+     * @param cache cache of the analyzed endgames, e.g.
+     *        {@link AnalysisCache#shared()}
+     * @param legalMoves number of legal moves at or below which a play-out
+     *        solves the position
+     * @return this player
+     */
+    public MctsPlayer solveEndgames(AnalysisCache cache, int legalMoves) {
+        if (legalMoves < 1) {
+            throw new IllegalArgumentException("The endgame needs at least "
+                    + "one legal move.");
+        }
+        for (Worker worker : workers) {
+            worker.solver = new CachedSolver(cache, ENDGAME_BUDGET);
+            worker.endgameMoves = legalMoves;
+        }
+        return this;
+    }
+
+    /**
+     * Searches the current position within the budget and returns the most
+     * visited move. The play-outs use the generators of the search threads,
+     * seeded in the constructor, instead of the given one.
+     * @param board board on which the player of the strategy moves next
+     * @param random not used
+     * @return the chosen move
+     */
+    @Override
+    public long chooseMove(Board board, SplittableRandom random) {
+        long start = System.nanoTime();
+        long deadline = millis > 0 ? start + millis * 1_000_000L
+                : Long.MAX_VALUE;
+        AtomicLong budget = new AtomicLong(rollouts > 0 ? rollouts
+                : Long.MAX_VALUE);
+        Future<?>[] futures = new Future<?>[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            Worker worker = workers[i];
+            futures[i] = pool.submit(() -> worker.search(board, deadline,
+                    budget));
+        }
+        long count = 0;
+        Map<Long, Long> visits = new HashMap<>();
+        for (int i = 0; i < workers.length; i++) {
+            try {
+                futures[i].get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Search interrupted.", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Search failed.",
+                        e.getCause());
+            }
+            count += workers[i].rollouts;
+            Node root = workers[i].root;
+            for (int c = 0; c < root.childCount; c++) {
+                visits.merge(root.children[c].move, root.children[c].visits,
+                        Long::sum);
+            }
+        }
+        lastRollouts = count;
+        lastNanos = System.nanoTime() - start;
+        long best = Moves.NONE;
+        long bestVisits = -1;
+        for (Map.Entry<Long, Long> entry : visits.entrySet()) {
+            if (entry.getValue() > bestVisits) {
+                best = entry.getKey();
+                bestVisits = entry.getValue();
+            }
+        }
+        for (Worker worker : workers) {
+            worker.played(best);
+        }
+        return best;
+    }
+
+    /**
+     * Gets the number of play-outs of the last search.
+     * @return play-outs of all threads
+     */
+    public long getLastRollouts() {
+        return lastRollouts;
+    }
+
+    /**
+     * Gets the speed of the last search.
+     * @return play-outs per second of all threads together
+     */
+    public double getRolloutsPerSecond() {
+        return lastRollouts * 1e9 / Math.max(1, lastNanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "MCTS on %d thread(s): %d "
+                + "play-outs in %.1f ms (%.0f play-outs/s)", workers.length,
+                lastRollouts, lastNanos / 1e6, getRolloutsPerSecond());
+    }
+
+    /**
+     * Stops the search threads.
+     */
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * A node of a search tree. The wins count the play-outs won by the
+     * player who made the move of the node.
+     */
+    private static final class Node {
+
+        private final long move;
+
+        private final Player mover;
+
+        private long[] untried;
+
+        private int untriedCount;
+
+        private Node[] children = new Node[0];
+
+        private int childCount;
+
+        private long visits;
+
+        private long wins;
+
+        /**
+         * 1 if the endgame solver proved that the mover wins from the
+         * position after the move, -1 if it proved that the mover loses, 0
+         * if this is unknown.
+         */
+        private int proven;
+
+        Node(long move, Player mover) {
+            this.move = move;
+            this.mover = mover;
+        }
+
+        /**
+         * Collects the moves of the node on its first visit.
+         */
+        void expand(Board board) {
+            if (untried == null) {
+                untried = new long[(int) board.countLegalMoves()];
+                PrimitiveIterator.OfLong legal = board.legalMoves();
+                for (int i = 0; i < untried.length; i++) {
+                    untried[i] = legal.nextLong();
+                }
+                untriedCount = untried.length;
+                children = new Node[untriedCount];
+            }
+        }
+
+        Node child(long childMove) {
+            for (int c = 0; c < childCount; c++) {
+                if (children[c].move == childMove) {
+                    return children[c];
+                }
+            }
+            return null;
+        }
+
+        Node selectChild() {
+            double logVisits = Math.log(visits);
+            Node best = null;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int c = 0; c < childCount; c++) {
+                Node child = children[c];
+                if (child.proven > 0) {
+                    return child;
+                }
+                double score = child.proven < 0 ? -1
+                        : (double) child.wins / child.visits
+                        + EXPLORATION * Math.sqrt(logVisits / child.visits);
+                if (score > bestScore) {
+                    best = child;
+                    bestScore = score;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * A search thread with its own tree, generator and copy of the board.
+     */
+    private static final class Worker {
+
+        private final SplittableRandom random;
+
+        private Node root;
+
+        /**
+         * Copy of the board the search works on. Between two searches it
+         * holds the position after the strategy's move.
+         */
+        private Board copy;
+
+        private Node[] path = new Node[64];
+
+        private long rollouts;
+
+        private CachedSolver solver;
+
+        private long endgameMoves;
+
+        Worker(SplittableRandom random) {
+            this.random = random;
+        }
+
+        /**
+         * Runs play-outs until the time is up or the shared budget is used,
+         * but at least one.
+         */
+        void search(Board board, long deadline, AtomicLong budget) {
+            reuseTree(board);
+            rollouts = 0;
+            do {
+                iterate(copy);
+                rollouts++;
+            } while (budget.getAndDecrement() > 0
+                    && ((rollouts & 15) != 0 || System.nanoTime() < deadline));
+        }
+
+        /**
+         * Continues with the subtree of the last move if the board is the
+         * position after the strategy's last move followed by that move,
+         * otherwise starts a new tree on a new copy of the board.
+         */
+        private void reuseTree(Board board) {
+            long last = board.getEncodedLastMove();
+            if (copy != null && root != null && last != Moves.NONE) {
+                try {
+                    copy.play(last);
+                    Node child = root.child(last);
+                    if (child != null && samePosition(copy, board)) {
+                        root = child;
+                        return;
+                    }
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    // The board is not a continuation of the last search.
+                }
+            }
+            copy = board.clone();
+            root = new Node(last, null);
+        }
+
+        private static boolean samePosition(Board a, Board b) {
+            if (a.getRowCount() != b.getRowCount()
+                    || a.getCurrentPlayer() != b.getCurrentPlayer()) {
+                return false;
+            }
+            for (int row = 0; row < a.getRowCount(); row++) {
+                if (a.getSticks(row) != b.getSticks(row)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Moves the root and the copy of the board to the chosen move.
+         */
+        void played(long move) {
+            Node child = root.child(move);
+            root = child != null ? child : new Node(move, Moves.player(move));
+            copy.play(move);
+        }
+
+        /**
+         * One iteration: selection and expansion along the tree, a random
+         * play-out, possibly ended by the solver, back-propagation of the
+         * winner and undoing all moves. A node whose position the solver
+         * solved right after its expansion is proven, and later iterations
+         * stop at it instead of playing on.
+         */
+        private void iterate(Board board) {
+            Node node = root;
+            int depth = 0;
+            int moves = 0;
+            path[depth++] = node;
+            while (!board.isGameOver() && (depth == 1 || node.proven == 0)) {
+                node.expand(board);
+                if (node.untriedCount > 0) {
+                    int i = random.nextInt(node.untriedCount);
+                    long move = node.untried[i];
+                    node.untried[i] = node.untried[--node.untriedCount];
+                    board.play(move);
+                    moves++;
+                    Node child = new Node(move, Moves.player(move));
+                    node.children[node.childCount++] = child;
+                    push(child, depth++);
+                    break;
+                }
+                node = node.selectChild();
+                board.play(node.move);
+                moves++;
+                push(node, depth++);
+            }
+            Node leaf = path[depth - 1];
+            Player winner = leaf.proven == 0 ? null : leaf.proven > 0
+                    ? leaf.mover : opponent(leaf.mover);
+            int randomMoves = 0;
+            while (winner == null && !board.isGameOver()) {
+                if (solver != null
+                        && board.countLegalMoves() <= endgameMoves) {
+                    int outcome = solver.outcome(board);
+                    if (outcome != CachedSolver.UNKNOWN) {
+                        Player mover = board.getCurrentPlayer();
+                        winner = outcome == CachedSolver.WIN ? mover
+                                : opponent(mover);
+                        if (randomMoves == 0 && depth > 1) {
+                            leaf.proven = winner == leaf.mover ? 1 : -1;
+                        }
+                        break;
+                    }
+                }
+                board.play(board.randomMove(random));
+                moves++;
+                randomMoves++;
+            }
+            if (winner == null) {
+                winner = board.getWinner();
+            }
+            for (int i = 0; i < depth; i++) {
+                path[i].visits++;
+                if (path[i].mover == winner) {
+                    path[i].wins++;
+                }
+            }
+            for (int i = 0; i < moves; i++) {
+                board.undo();
+            }
+        }
+
+        private static Player opponent(Player player) {
+            return player == Player.HUMAN ? Player.MACHINE : Player.HUMAN;
+        }
+
+        private void push(Node node, int depth) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth] = node;
+        }
+    }
+
+}
@@ -0,0 +1,285 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Operation counters, latency histograms and flight recorder events of the
+ * game engine and the shell. Metrics are switched on with the system
+ * property {@code -Dnim.metrics=true}. The switch is a constant, so with
+ * metrics off every instrumented call site is a branch on a static final
+ * field, which the JIT removes entirely.
+ *
+ * With metrics on, every move and every command is counted, its latency is
+ * recorded in a {@link LatencyHistogram} and a flight recorder event is
+ * emitted if a recording is running. The numbers are printed by the STATS
+ * command and exported through the {@link MetricsMXBean}, together with the
+ * hits and misses of the shared {@link AnalysisCache}.
+ */
+public final class Metrics implements MetricsMXBean {
+
+    /**
+     * Whether metrics are recorded at all.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("nim.metrics");
+
+    /**
+     * The instrumented operations.
+     */
+    public enum Operation {
+
+        /**
+         * A human move on a normal or misere board.
+         */
+        REMOVE,
+
+        /**
+         * A machine move on a normal board.
+         */
+        MACHINE_REMOVE,
+
+        /**
+         * A machine move on a misere board.
+         */
+        MISERE_MACHINE_REMOVE,
+
+        /**
+         * Rendering a board, to a string or streamed to a sink.
+         */
+        TO_STRING,
+
+        /**
+         * Evaluating one shell command line.
+         */
+        COMMAND;
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        /**
+         * @return the latencies of the operation
+         */
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+    }
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private static final Map<String, LongAdder> COMMANDS =
+            new ConcurrentHashMap<>();
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        INSTANCE, new ObjectName("nim:type=Metrics"));
+            } catch (JMException e) {
+                throw new IllegalStateException("Metrics could not be "
+                        + "registered.", e);
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Flight recorder event of a move.
+     */
+    @Name("nim.Move")
+    @Label("Move")
+    @Category("Nim")
+    @Description("A move of the human or the machine")
+    public static final class MoveEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Board")
+        String board;
+
+        @Label("Row")
+        int row;
+
+        @Label("Sticks")
+        int sticks;
+
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    /**
+     * Flight recorder event of a shell command.
+     */
+    @Name("nim.Command")
+    @Label("Command")
+    @Category("Nim")
+    @Description("One evaluated line of the shell")
+    public static final class CommandEvent extends Event {
+
+        @Label("Command")
+        String command;
+
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    /**
+     * Records a move. Only called if metrics are enabled.
+     * @param operation REMOVE or MACHINE_REMOVE
+     * @param start value of {@link System#nanoTime()} when the move started
+     * @param board board of the move
+     */
+    static void recordMove(Operation operation, long start, Board board) {
+        long latency = System.nanoTime() - start;
+        Operation op = operation == Operation.MACHINE_REMOVE
+                && (board instanceof Misere
+                || board instanceof HistogramMisere)
+                ? Operation.MISERE_MACHINE_REMOVE : operation;
+        op.latencies.record(latency);
+        MoveEvent event = new MoveEvent();
+        if (event.isEnabled()) {
+            long move = board.getEncodedLastMove();
+            event.operation = op.name();
+            event.board = board.getClass().getSimpleName();
+            event.row = move == Moves.NONE ? -1 : Moves.row(move);
+            event.sticks = move == Moves.NONE ? 0
+                    : Moves.numberOfSticks(move);
+            event.latency = latency;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records the rendering of a board. Only called if metrics are enabled.
+     * @param start value of {@link System#nanoTime()} when rendering started
+     */
+    static void recordRender(long start) {
+        Operation.TO_STRING.latencies.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Records a shell command. Only called if metrics are enabled.
+     * @param command name of the command, or INVALID
+     * @param start value of {@link System#nanoTime()} when the command
+     *        started
+     */
+    static void recordCommand(String command, long start) {
+        long latency = System.nanoTime() - start;
+        Operation.COMMAND.latencies.record(latency);
+        COMMANDS.computeIfAbsent(command, c -> new LongAdder()).increment();
+        CommandEvent event = new CommandEvent();
+        if (event.isEnabled()) {
+            event.command = command;
+            event.latency = latency;
+            event.commit();
+        }
+    }
+
+    /**
+     * Formats all counters and latencies as a table.
+     * @return the report, one line per operation and command
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder(String.format(Locale.ROOT,
+                "%-22s %10s %10s %10s %10s %10s%n", "operation", "count",
+                "mean us", "p50 us", "p99 us", "max us"));
+        for (Operation op : Operation.values()) {
+            LatencyHistogram h = op.latencies;
+            report.append(String.format(Locale.ROOT,
+                    "%-22s %10d %10.3f %10.3f %10.3f %10.3f%n",
+                    op.name().toLowerCase(Locale.ROOT), h.getCount(),
+                    h.getMean() / 1e3, h.getPercentile(0.5) / 1e3,
+                    h.getPercentile(0.99) / 1e3, h.getMax() / 1e3));
+        }
+        for (Map.Entry<String, Long> entry
+                : INSTANCE.getCommandCounts().entrySet()) {
+            report.append(String.format(Locale.ROOT, "command %-14s %10d%n",
+                    entry.getKey().toLowerCase(Locale.ROOT),
+                    entry.getValue()));
+        }
+        for (Map.Entry<String, Long> entry
+                : INSTANCE.getCacheCounts().entrySet()) {
+            report.append(String.format(Locale.ROOT, "cache %-16s %10d%n",
+                    entry.getKey().toLowerCase(Locale.ROOT),
+                    entry.getValue()));
+        }
+        return report.toString();
+    }
+
+    private static Map<String, Long> perOperation(
+            ToLongFunction<LatencyHistogram> value) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Operation op : Operation.values()) {
+            values.put(op.name(), value.applyAsLong(op.latencies));
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        return perOperation(LatencyHistogram::getCount);
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        COMMANDS.forEach((command, count) -> counts.put(command,
+                count.sum()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getP50Nanos() {
+        return perOperation(h -> h.getPercentile(0.5));
+    }
+
+    @Override
+    public Map<String, Long> getP99Nanos() {
+        return perOperation(h -> h.getPercentile(0.99));
+    }
+
+    @Override
+    public Map<String, Long> getMaxNanos() {
+        return perOperation(LatencyHistogram::getMax);
+    }
+
+    @Override
+    public Map<String, Long> getCacheCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        boolean used = AnalysisCache.isSharedCreated();
+        AnalysisCache cache = used ? AnalysisCache.shared() : null;
+        counts.put("HITS", used ? cache.getHits() : 0);
+        counts.put("MISSES", used ? cache.getMisses() : 0);
+        counts.put("EVICTIONS", used ? cache.getEvictions() : 0);
+        counts.put("ENTRIES", used ? cache.getSize() : 0);
+        counts.put("CAPACITY", used ? cache.getCapacity() : 0L);
+        return counts;
+    }
+
+    @Override
+    public void reset() {
+        for (Operation op : Operation.values()) {
+            op.latencies.reset();
+        }
+        COMMANDS.values().forEach(LongAdder::reset);
+        if (AnalysisCache.isSharedCreated()) {
+            AnalysisCache.shared().resetCounters();
+        }
+    }
+
+}
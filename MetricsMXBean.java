@@ -0,0 +1,46 @@
+import java.util.Map;
+
+/**
+ * Management interface of the {@link Metrics}, registered as
+ * {@code nim:type=Metrics} when metrics are enabled. All maps are keyed by
+ * the name of the operation or command.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return number of calls per operation
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * @return number of executions per shell command
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * @return median latency per operation in nanoseconds
+     */
+    Map<String, Long> getP50Nanos();
+
+    /**
+     * @return 99th percentile latency per operation in nanoseconds
+     */
+    Map<String, Long> getP99Nanos();
+
+    /**
+     * @return largest latency per operation in nanoseconds
+     */
+    Map<String, Long> getMaxNanos();
+
+    /**
+     * @return hits, misses, evictions, entries and capacity of the shared
+     *         {@link AnalysisCache}, all 0 if it is not in use
+     */
+    Map<String, Long> getCacheCounts();
+
+    /**
+     * Removes all recorded counts and latencies.
+     */
+    void reset();
+
+}
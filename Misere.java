@@ -1,3 +1,5 @@
+import java.util.PrimitiveIterator;
+
 /**
  * The misere mode of the nim game. This mode is identical
  * to the normal nim game, except that the player who takes the last stick
@@ -18,44 +20,71 @@ public class Misere extends Nim {
     }
 
     /**
-     * Slightly changed machineRemove method. The fundamental idea is the
-     * same, the method is very similar to the implementation in the nim class.
-     * It accounts for changes in the misere mode.
+     * Constructor for the Misere class with an explicit reduction for the
+     * initial nim sum, see {@link Nim#Nim(int[], Player, NimSumReduction)}.
+     * @param numberOfSticks int array which represents the number of rows
+     *                       and the sticks in each row
+     * @param player player who begins the game
+     * @param reduction reduction used to compute the initial nim sum
+     */
+    public Misere(int[] numberOfSticks, Player player,
+                  NimSumReduction reduction) {
+        super(numberOfSticks, player, reduction);
+    }
+
+    /**
+     * Slightly changed choice of the machine move. The fundamental idea is
+     * the same, the method is very similar to the implementation in the nim
+     * class. It accounts for changes in the misere mode: once only one row
+     * with more than one stick is left, the machine leaves an odd number of
+     * rows with one stick for the human.
+     * @return the encoded move, or {@link Moves#NONE} if no sticks are left
      */
     @Override
-    public void machineRemove() {
-        // The machine plays optimally, no matter what.
-        if (currentPlayer != Player.MACHINE) {
-            throw new IllegalStateException("It's the humans turn.");
+    protected long chooseMachineMove() {
+        if (rowsWithMoreSticks == 1) {
+            int row = rowsWithMoreSticksXor;
+            return Moves.encode(row, sticks.get(row)
+                    - Positions.endgameTarget(rowsWithOneStick),
+                    currentPlayer);
         }
+        return super.chooseMachineMove();
+    }
 
-        int rowsWithOneStick = 0;
-        int moreThanOneStick = 0;
-        int index = -1;
-        for (int i = 0; i < sticks.length; i++) {
-            if (sticks[i] > 1) {
-                moreThanOneStick++;
-                index = i;
-            } else if  (sticks[i] == 1) {
-                rowsWithOneStick++;
-            }
+    /**
+     * Iterates over the winning moves in misere mode. As long as at least
+     * two rows have more than one stick, they are the same as in the normal
+     * game. With one such row left, the only winning move leaves an odd
+     * number of rows with one stick. Without such rows, taking any single
+     * stick wins if the number of rows with one stick is even.
+     * @return iterator over the encoded winning moves in ascending row order
+     */
+    @Override
+    public PrimitiveIterator.OfLong winningMoves() {
+        if (rowsWithMoreSticks == 1) {
+            int row = rowsWithMoreSticksXor;
+            return new RowMoveIterator(-1, sticks.get(row)
+                    ^ Positions.endgameTarget(rowsWithOneStick), row, 1);
+        } else if (rowsWithMoreSticks == 0) {
+            int limit = rowsWithOneStick % 2 == 0 ? rowsWithOneStick : 0;
+            return new RowMoveIterator(-1, 1, sticks.firstNonEmptyRow(),
+                    limit);
         }
-        if (moreThanOneStick == 1) {
-            if (rowsWithOneStick % 2 == 0) {
-                int j = sticks[index];
-                sticks[index] = 1;
-                super.lastMove = new Move(index, j - 1,
-                        super.currentPlayer);
-            } else {
-                int j = sticks[index];
-                sticks[index] = 0;
-                super.lastMove = new Move(index, j,
-                        super.currentPlayer);
-            }
-            super.changePlayer();
-            return;
+        return super.winningMoves();
+    }
+
+    /**
+     * Counts the winning moves in misere mode, see {@link #winningMoves()}.
+     * @return number of winning moves
+     */
+    @Override
+    public long countWinningMoves() {
+        if (rowsWithMoreSticks == 1) {
+            return 1;
+        } else if (rowsWithMoreSticks == 0) {
+            return rowsWithOneStick % 2 == 0 ? rowsWithOneStick : 0;
         }
-        super.machineRemove();
+        return super.countWinningMoves();
     }
 
     /**
@@ -66,7 +95,7 @@ public class Misere extends Nim {
      */
     @Override
     public Player getWinner() {
-        if (lastMove.getPlayer() == Player.HUMAN) {
+        if (Moves.player(lastMove) == Player.HUMAN) {
             return Player.MACHINE;
         }
         return Player.HUMAN;
@@ -2,6 +2,9 @@
  * The Move class is just a wrapper class for the last move executed in the
  * game. It saves just three attributes: The player who executed the move,
  * the number of sticks removed, and the row from which they were removed.
+ * Boards keep their moves encoded as primitive values (see {@link Moves})
+ * and hand out a single reused Move object as a view of the last move, so
+ * no object is allocated per move.
  */
 public class Move {
 
@@ -25,6 +28,17 @@ public class Move {
         this.player = player;
     }
 
+    /**
+     * Overwrites this move with an encoded move. Used by the boards to
+     * reuse one Move object for the last move.
+     * @param move encoded move, see {@link Moves}
+     */
+    void set(long move) {
+        this.row = Moves.row(move);
+        this.numberOfSticks = Moves.numberOfSticks(move);
+        this.player = Moves.player(move);
+    }
+
     /**
      * Getter method for the player attribute
      * @return player who executed this move
@@ -33,6 +47,22 @@ public class Move {
         return player;
     }
 
+    /**
+     * Getter method for the row attribute
+     * @return zero indexed row from which the sticks were removed
+     */
+    public int getRow() {
+        return row;
+    }
+
+    /**
+     * Getter method for the numberOfSticks attribute
+     * @return number of sticks removed by this move
+     */
+    public int getNumberOfSticks() {
+        return numberOfSticks;
+    }
+
     /**
      * String representation of the last move executed.
      * @return string representation of the move method.
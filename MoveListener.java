@@ -0,0 +1,42 @@
+/**
+ * Receives the events of the boards publishing to an {@link EventBus}. The
+ * methods are called on the consumer thread of the subscription, one event
+ * after the other in the order they were published, and never at the same
+ * time. The board passed along identifies where the event happened; it may
+ * have changed since, so it must only be read if it is thread-safe, e.g. a
+ * {@link ConcurrentBoard}.
+ */
+public interface MoveListener {
+
+    /**
+     * Called for a move made on a board, including a redone move.
+     * @param board board of the move
+     * @param move encoded move, see {@link Moves}
+     */
+    void moved(Board board, long move);
+
+    /**
+     * Called for a move taken back on a board.
+     * @param board board of the move
+     * @param move encoded move which was undone
+     */
+    default void undone(Board board, long move) {
+    }
+
+    /**
+     * Called after the move which ended a game.
+     * @param board board of the game
+     * @param winner winner of the game
+     */
+    default void gameOver(Board board, Player winner) {
+    }
+
+    /**
+     * Called after a batch of events has been handed over, e.g. to flush a
+     * log once per batch instead of once per event.
+     * @param events number of events in the batch
+     */
+    default void endOfBatch(int events) {
+    }
+
+}
@@ -0,0 +1,97 @@
+import java.util.Arrays;
+
+/**
+ * Compact history of the moves of a game, stored as encoded moves (see
+ * {@link Moves}) in a growing primitive array. The log has a position: moves
+ * before it have been made, moves after it have been undone and can be
+ * redone. Appending a new move discards the moves which could be redone.
+ */
+public final class MoveLog {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] moves = new long[INITIAL_CAPACITY];
+
+    private int position;
+
+    private int size;
+
+    /**
+     * Appends a move at the current position of the log.
+     * @param move encoded move
+     */
+    public void append(long move) {
+        if (position == moves.length) {
+            moves = Arrays.copyOf(moves, moves.length * 2);
+        }
+        moves[position++] = move;
+        size = position;
+    }
+
+    /**
+     * Checks if there is a move which can be undone.
+     * @return true if at least one move has been made
+     */
+    public boolean canUndo() {
+        return position > 0;
+    }
+
+    /**
+     * Checks if there is an undone move which can be redone.
+     * @return true if at least one move has been undone
+     */
+    public boolean canRedo() {
+        return position < size;
+    }
+
+    /**
+     * Steps back over the last move made.
+     * @return the encoded move which has to be undone
+     */
+    public long undo() {
+        return moves[--position];
+    }
+
+    /**
+     * Steps forward over the next undone move.
+     * @return the encoded move which has to be redone
+     */
+    public long redo() {
+        return moves[position++];
+    }
+
+    /**
+     * Gets the last move made, i.e. the move before the position.
+     * @return the encoded move, or {@link Moves#NONE} if there is none.
+     */
+    public long last() {
+        return position > 0 ? moves[position - 1] : Moves.NONE;
+    }
+
+    /**
+     * Gets the number of moves made, i.e. the position of the log.
+     * @return number of moves before the position
+     */
+    public int size() {
+        return position;
+    }
+
+    /**
+     * Gets the number of moves in the log, including the undone moves which
+     * can be redone.
+     * @return number of moves before and after the position
+     */
+    public int limit() {
+        return size;
+    }
+
+    /**
+     * Gets a move of the log.
+     * @param i index of the move, smaller than {@link #limit()}
+     * @return the encoded move
+     */
+    public long get(int i) {
+        return moves[i];
+    }
+
+}
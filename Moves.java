@@ -0,0 +1,79 @@
+/**
+ * Utility class for moves encoded as primitive {@code long} values. An
+ * encoded move stores the zero indexed row in the lower 32 bits, the number
+ * of removed sticks in the following 31 bits and the player who executes
+ * the move in the highest bit. Encoded moves can be passed around and
+ * stored without allocating a {@link Move} object for every move.
+ */
+public final class Moves {
+
+    /**
+     * Value which represents the absence of a move, e.g. the last move of a
+     * game in which no move has been made yet. It is not a valid move.
+     */
+    public static final long NONE = -1L;
+
+    private static final int COUNT_SHIFT = 32;
+
+    private static final long COUNT_MASK = 0x7FFF_FFFFL;
+
+    private static final int PLAYER_SHIFT = 63;
+
+    private Moves() {
+    }
+
+    /**
+     * Encodes a move into a single long value.
+     * @param row zero indexed row from which sticks are removed
+     * @param numberOfSticks number of sticks removed, at least 1
+     * @param player player who executes the move
+     * @return the encoded move
+     */
+    public static long encode(int row, int numberOfSticks, Player player) {
+        long encoded = (row & 0xFFFF_FFFFL)
+                | ((numberOfSticks & COUNT_MASK) << COUNT_SHIFT);
+        if (player == Player.MACHINE) {
+            encoded |= 1L << PLAYER_SHIFT;
+        }
+        return encoded;
+    }
+
+    /**
+     * Gets the row of an encoded move.
+     * @param move encoded move
+     * @return zero indexed row from which the sticks are removed
+     */
+    public static int row(long move) {
+        return (int) move;
+    }
+
+    /**
+     * Gets the number of sticks of an encoded move.
+     * @param move encoded move
+     * @return number of sticks removed by the move
+     */
+    public static int numberOfSticks(long move) {
+        return (int) ((move >>> COUNT_SHIFT) & COUNT_MASK);
+    }
+
+    /**
+     * Gets the player of an encoded move.
+     * @param move encoded move
+     * @return player who executes the move
+     */
+    public static Player player(long move) {
+        return move < 0 ? Player.MACHINE : Player.HUMAN;
+    }
+
+    /**
+     * String representation of an encoded move, identical to the one of
+     * {@link Move#toString()}.
+     * @param move encoded move
+     * @return string representation of the move
+     */
+    public static String toString(long move) {
+        return "Player machine removed " + numberOfSticks(move)
+                + " stick(s) from row " + (row(move) + 1) + ".";
+    }
+
+}
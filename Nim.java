@@ -1,31 +1,132 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.SplittableRandom;
+
 /**
  * This is the java implementation of the old strategy game Nim.
  * The class has three attributes:
  * currentPlayer saves if it's the machines or the humans turn.
- * lastMove saves the last move performed.
- * sticks saves the current state of the game. The length of sticks
+ * lastMove saves the last move performed, encoded as described in
+ * {@link Moves}.
+ * sticks saves the current state of the game. The size of sticks
  * represents the number of rows, and the value in each row represents the
- * number of sticks in that row.
+ * number of sticks in that row. It also holds the bit plane index the
+ * machine uses to find the row it takes sticks from without scanning the
+ * board row by row. The rows are copied on write, so clones of a board
+ * share all rows neither of them has changed, and packed with as few bits
+ * as their largest row needs, see {@link #getFootprint()}.
+ * Besides the rows, the class keeps a few counters about the board, such
+ * as the nim sum and the number of non-empty rows. They are updated in
+ * constant time by every move, so the machine and the end of game checks
+ * never have to scan the whole board.
  */
 public class Nim implements Board {
 
     protected Player currentPlayer;
 
-    protected Move lastMove;
+    protected long lastMove;
+
+    /**
+     * Reused view of the last move, handed out by {@link #getLastMove()}.
+     */
+    private Move lastMoveView = new Move(0, 0, Player.HUMAN);
+
+    /**
+     * Renderer with the cached pages of the rows, created by the first
+     * call of {@link #render(Appendable, boolean, int, int)}.
+     */
+    private BoardRenderer renderer;
+
+    /**
+     * Strategy which chooses the moves of the machine.
+     */
+    private Strategy strategy = StandardStrategy.OPTIMAL;
+
+    /**
+     * Generator handed to the strategy, or null as long as the machine plays
+     * the optimal strategy, which does not need one.
+     */
+    private SplittableRandom random;
+
+    /**
+     * Bus the moves are published to, or null.
+     */
+    private EventBus events;
+
+    /**
+     * History of the moves of the game, used to undo and redo moves.
+     */
+    protected MoveLog history = new MoveLog();
+
+    protected RowStore sticks;
+
+    /**
+     * Nim sum, i.e. the xor of all rows, of the current board.
+     */
+    protected int nimSum;
+
+    /**
+     * Number of rows which contain at least one stick.
+     */
+    protected int nonEmptyRows;
+
+    /**
+     * Number of rows which contain exactly one stick.
+     */
+    protected int rowsWithOneStick;
+
+    /**
+     * Number of rows which contain more than one stick.
+     */
+    protected int rowsWithMoreSticks;
+
+    /**
+     * Xor of the indices of all rows with more than one stick. If there is
+     * exactly one such row, this is its index.
+     */
+    protected int rowsWithMoreSticksXor;
+
+    /**
+     * Zobrist hash of the current position, see {@link PositionKey}.
+     */
+    protected long positionHash;
 
-    protected int[] sticks;
+    private final boolean misere = this instanceof Misere;
 
     /**
-     * Constructor for the nim class, which takes two attributes.
+     * Constructor for the nim class, which takes two attributes. The nim
+     * sum is computed with the reduction suggested for the size of the
+     * board.
      * @param numberOfSticks int array which represents the number of rows
      *                       and the sticks in each row
      * @param player player who begins the game
      */
     public Nim(int[] numberOfSticks, Player player) {
+        this(numberOfSticks, player,
+                NimSumReduction.forRows(numberOfSticks.length));
+    }
+
+    /**
+     * Constructor for the nim class with an explicit reduction, which is
+     * used to compute the nim sum and the counters of the initial board.
+     * With the parallel reduction, the row storage is also built in
+     * parallel.
+     * @param numberOfSticks int array which represents the number of rows
+     *                       and the sticks in each row
+     * @param player player who begins the game
+     * @param reduction reduction used to compute the initial nim sum
+     */
+    public Nim(int[] numberOfSticks, Player player,
+               NimSumReduction reduction) {
 
-        this.sticks = numberOfSticks;
+        this.sticks = new RowStore(numberOfSticks,
+                reduction == NimSumReduction.PARALLEL);
         this.currentPlayer = player;
-        this.lastMove = null;
+        this.lastMove = Moves.NONE;
+        initializeCounters(reduction.summarize(numberOfSticks, 0,
+                numberOfSticks.length));
     }
 
     /**
@@ -40,76 +141,242 @@ public class Nim implements Board {
      */
     @Override
     public void remove(int row, int s) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0L;
         if (currentPlayer != Player.HUMAN) {
             throw new IllegalStateException("It's the machines turn.");
         }
         if (!checkForValidInput(row, s)) {
             throw new IllegalArgumentException("Not a valid move.");
         }
-        sticks[row] -= s;
-        lastMove = new Move(row, s, currentPlayer);
-        changePlayer();
+        applyMove(Moves.encode(row, s, currentPlayer));
+        if (Metrics.ENABLED) {
+            Metrics.recordMove(Metrics.Operation.REMOVE, start, this);
+        }
     }
 
     /**
-     * Execute a machine move. The machine plays optimally from the
-     * beginning.
+     * Execute a machine move. The move is chosen by the strategy of the
+     * machine, see {@link #setStrategy(Strategy, long)}. By default the
+     * machine plays optimally from the beginning.
      * The method first checks if it's the machines turn. Then the nim sum of
-     * the current board is calculated.
+     * the current board, which is kept up to date by every move, is checked.
      * If the nim sum is zero, the board is already in a safe combination,
      * and half of the sticks in the first row that is not zero are removed.
      * If it is not zero, the machine executes a move which converts the
      * board to a safe combination. This is done by removing sticks from the
-     * row with the highest one bit.
+     * first row which has the highest one bit of the nim sum set. Both rows
+     * are looked up in the bit plane index.
      */
     @Override
     public void machineRemove() {
-        // The machine plays optimally, no matter what.
         if (currentPlayer != Player.MACHINE) {
             throw new IllegalStateException("It's the humans turn.");
         }
 
-        int nimSum = calculateNimSum();
+        long start = Metrics.ENABLED ? System.nanoTime() : 0L;
+        long move = isGameOver() ? Moves.NONE
+                : strategy.chooseMove(this, random);
+        if (move == Moves.NONE) {
+            changePlayer();
+            return;
+        }
+        applyMove(move);
+        if (Metrics.ENABLED) {
+            Metrics.recordMove(Metrics.Operation.MACHINE_REMOVE, start, this);
+        }
+    }
+
+    /**
+     * Lets a strategy choose the moves of the machine from now on. Clones of
+     * the board share the strategy.
+     * @param strategy strategy of the machine, e.g.
+     *        {@link StandardStrategy#OPTIMAL}
+     * @param seed seed of the generator the strategy is given
+     */
+    public void setStrategy(Strategy strategy, long seed) {
+        if (strategy == null) {
+            throw new IllegalArgumentException("The strategy must not be "
+                    + "null.");
+        }
+        this.strategy = strategy;
+        this.random = new SplittableRandom(seed);
+    }
+
+    /**
+     * Chooses the optimal move of the player whose turn it is on the current
+     * board, as described in {@link #machineRemove()}, without executing
+     * it. This is the move of {@link StandardStrategy#OPTIMAL}.
+     * @return the encoded move, or {@link Moves#NONE} if no sticks are left
+     */
+    protected long chooseMachineMove() {
         // If the combination is already safe, remove half of the sticks
         // (rounded up) of the first row that is not empty
         if (nimSum == 0) {
-
-            for (int i = 0; i < sticks.length; i++) {
-
-                if (sticks[i] != 0) {
-                    int numberOfSticksToRemove =
-                            (int) Math.ceil(sticks[i] / 2d);
-                    sticks[i] -= numberOfSticksToRemove;
-                    lastMove = new Move(i, numberOfSticksToRemove,
-                            currentPlayer);
-                    break;
-                }
+            int i = sticks.firstNonEmptyRow();
+            if (i < 0) {
+                return Moves.NONE;
             }
+            return Moves.encode(i, Positions.sticksToTake(sticks.get(i), 0),
+                    currentPlayer);
+        }
         // If the combination is NOT safe, choose the row with a 1 in the
-            // highest bit and the lowest number
-        } else {
-            for (int i = 0; i < sticks.length; i++) {
-                int c = (int) (Math.log(nimSum) / Math.log(2));
-                if (((sticks[i] >> c) & 1) == 1) {
-                    int previousSticks = sticks[i];
-                    sticks[i] = sticks[i] ^ nimSum;
-                    lastMove = new Move(i, previousSticks
-                            - sticks[i], currentPlayer);
-                    break;
-                }
-            }
+        // highest bit of the nim sum and the lowest number
+        int i = sticks.firstRowWithBit(highestBit(nimSum));
+        return Moves.encode(i, Positions.sticksToTake(sticks.get(i), nimSum),
+                currentPlayer);
+    }
+
+    /**
+     * Executes a move after it has been checked, and passes the turn to the
+     * other player.
+     * @param move encoded move
+     */
+    protected void applyMove(long move) {
+        int row = Moves.row(move);
+        setSticks(row, sticks.get(row) - Moves.numberOfSticks(move));
+        lastMove = move;
+        history.append(move);
+        changePlayer();
+        if (events != null) {
+            published(move);
         }
+    }
+
+    /**
+     * Publishes a move and, if it ended the game, the end of the game.
+     * @param move encoded move
+     */
+    private void published(long move) {
+        events.moved(this, move);
+        if (isGameOver()) {
+            events.gameOver(this, getWinner());
+        }
+    }
+
+    @Override
+    public void setEventBus(EventBus bus) {
+        this.events = bus;
+    }
+
+    /**
+     * Takes back the last move made on the board. The sticks are put back
+     * and it is the turn of the player who made the move again.
+     * @return true if a move was undone, false if no move was made yet.
+     */
+    @Override
+    public boolean undo() {
+        if (!history.canUndo()) {
+            return false;
+        }
+        long move = history.undo();
+        int row = Moves.row(move);
+        setSticks(row, sticks.get(row) + Moves.numberOfSticks(move));
+        currentPlayer = Moves.player(move);
+        lastMove = history.last();
+        if (events != null) {
+            events.undone(this, move);
+        }
+        return true;
+    }
+
+    /**
+     * Makes the last undone move again.
+     * @return true if a move was redone, false if there is no undone move.
+     */
+    @Override
+    public boolean redo() {
+        if (!history.canRedo()) {
+            return false;
+        }
+        long move = history.redo();
+        int row = Moves.row(move);
+        setSticks(row, sticks.get(row) - Moves.numberOfSticks(move));
+        currentPlayer = Moves.player(move);
+        lastMove = move;
         changePlayer();
+        if (events != null) {
+            published(move);
+        }
+        return true;
     }
 
     /**
-     * Get the last move performed in the game.
+     * Executes an encoded move for the player whose turn it is.
+     * @param move encoded move, see {@link Moves}
+     */
+    @Override
+    public void play(long move) {
+        if (Moves.player(move) != currentPlayer) {
+            throw new IllegalStateException("It's not the turn of the "
+                    + "player of the move.");
+        }
+        if (!checkForValidInput(Moves.row(move),
+                Moves.numberOfSticks(move))) {
+            throw new IllegalArgumentException("Not a valid move.");
+        }
+        applyMove(move);
+    }
+
+    /**
+     * Get the player whose turn it is.
+     * @return player who makes the next move
+     */
+    @Override
+    public Player getCurrentPlayer() {
+        return currentPlayer;
+    }
+
+    /**
+     * Get the last move performed in the game as an encoded move.
+     * @return last move executed, or {@link Moves#NONE}
+     */
+    @Override
+    public long getEncodedLastMove() {
+        return lastMove;
+    }
+
+    /**
+     * Iterates over the moves that convert the board into a safe
+     * combination, i.e. all moves on rows with a 1 in the highest bit of the
+     * nim sum. There are none if the board is already safe.
+     * @return iterator over the encoded winning moves in ascending row order
+     */
+    @Override
+    public PrimitiveIterator.OfLong winningMoves() {
+        if (nimSum == 0) {
+            return new RowMoveIterator(0, 0, -1, 0);
+        }
+        int bit = highestBit(nimSum);
+        return new RowMoveIterator(bit, nimSum, sticks.firstRowWithBit(bit),
+                Integer.MAX_VALUE);
+    }
+
+    /**
+     * Counts the winning moves by counting the rows with a 1 in the highest
+     * bit of the nim sum in the bit plane index.
+     * @return number of winning moves
+     */
+    @Override
+    public long countWinningMoves() {
+        if (nimSum == 0) {
+            return 0;
+        }
+        return sticks.countRowsWithBit(highestBit(nimSum));
+    }
+
+    /**
+     * Get the last move performed in the game. The returned object is
+     * reused by the board and changes with the next move.
      * @return last move executed, which includes the number of sticks
      * removed and the row from which they were removed.
      */
     @Override
     public Move getLastMove() {
-        return lastMove;
+        if (lastMove == Moves.NONE) {
+            return null;
+        }
+        lastMoveView.set(lastMove);
+        return lastMoveView;
     }
 
     /**
@@ -119,7 +386,7 @@ public class Nim implements Board {
      */
     @Override
     public int getRowCount() {
-        return sticks.length;
+        return sticks.size();
     }
 
     /**
@@ -132,19 +399,46 @@ public class Nim implements Board {
     @Override
     public int getSticks(int row) {
         if (checkForValidInt(row)) {
-            return sticks[row];
+            return sticks.get(row);
         }
         return -1;
     }
 
     /**
-     * Method to determine the winner of the game
+     * Gets the Zobrist hash of the current position, which is the same for
+     * all positions with the same {@link PositionKey}. It is kept up to date
+     * with every move, so it costs nothing to ask for.
+     * @return hash of the current position
+     */
+    public long getPositionHash() {
+        return positionHash;
+    }
+
+    /**
+     * Gets the canonical key of the current position.
+     * @return key of the current position
+     */
+    public PositionKey getPositionKey() {
+        return PositionKey.of(this);
+    }
+
+    /**
+     * Estimates the memory taken by the rows of the board and their index.
+     * @return footprint of the row storage
+     */
+    public RowStore.Footprint getFootprint() {
+        return sticks.footprint();
+    }
+
+    /**
+     * Method to determine the winner of the game, which is the player who
+     * took the last stick, i.e. not the one whose turn it is. The board is
+     * not changed, so the winner can be asked for any number of times.
      * @return winner of the game
      */
     @Override
     public Player getWinner() {
-        changePlayer();
-        return currentPlayer;
+        return currentPlayer == Player.HUMAN ? Player.MACHINE : Player.HUMAN;
     }
 
     /**
@@ -153,31 +447,48 @@ public class Nim implements Board {
      */
     @Override
     public boolean isGameOver() {
-        for (int i : sticks) {
-            if (i != 0) {
-                return false;
-            }
-        }
-        return true;
+        return nonEmptyRows == 0;
     }
 
     /**
-     * Deep copy of the current board.
-     * @return deep copy of the current board.
+     * Copy of the current board, including the mode of the game, the player
+     * whose turn it is and the last move, but without the history of moves.
+     * The copy shares the rows with this board until either of them changes
+     * them, so it is cheap even for very large boards.
+     * @return independent copy of the current board.
      */
     @Override
-    public Board clone() {
-        int[] arrayClone = new int[sticks.length];
-        System.arraycopy(sticks, 0, arrayClone, 0, sticks.length);
-        return new Nim(arrayClone, currentPlayer);
+    public Nim clone() {
+        Nim copy;
+        try {
+            copy = (Nim) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        copy.sticks = sticks.snapshot();
+        copy.renderer = null;
+        copy.lastMoveView = new Move(0, 0, Player.HUMAN);
+        copy.history = new MoveLog();
+        copy.random = random == null ? null : random.split();
+        copy.events = null;
+        return copy;
+    }
+
+    /**
+     * Gets the highest one bit of a positive number.
+     * @param value positive number
+     * @return position of the highest one bit, between 0 and 30
+     */
+    protected static int highestBit(int value) {
+        return 31 - Integer.numberOfLeadingZeros(value);
     }
 
     private boolean checkForValidInput(int r, int s) {
-        return checkForValidInt(r) && sticks[r] - s >= 0;
+        return checkForValidInt(r) && s >= 1 && sticks.get(r) - s >= 0;
     }
 
     private boolean checkForValidInt(int i) {
-        return i >= 0 && i < sticks.length;
+        return i >= 0 && i < sticks.size();
     }
 
     /**
@@ -194,30 +505,55 @@ public class Nim implements Board {
     }
 
     /**
-     * Calculates the nim sum of the game and returns it.
-     * A safe combination is given when the nim sum is 0.
-     * @return nim sum of the game
+     * Sets the number of sticks of a row and updates the counters of the
+     * board accordingly. Every change of the rows has to go through this
+     * method, otherwise the counters are no longer correct.
+     * @param row The number of the zero indexed row ascending top down.
+     * @param value new number of sticks of the row
      */
-    private int calculateNimSum() {
-        int nimSum = sticks[0];
-        for (int i = 1; i < sticks.length; i++) {
-            nimSum = nimSum ^ sticks[i];
+    protected void setSticks(int row, int value) {
+        int previous = sticks.set(row, value);
+        if (renderer != null) {
+            renderer.invalidate(row);
         }
-        return nimSum;
+        nimSum ^= previous ^ value;
+        positionHash = PositionKey.update(positionHash, previous, value,
+                misere);
+        count(row, previous, -1);
+        count(row, value, 1);
     }
 
     /**
-     * Converts sticks to a binary string representation. If verbose mode is
-     * turned on, it is used in the toString method to provide additional
-     * information about the game.
-     * @return string representation of the sticks as binary numbers.
+     * Adds (or subtracts) a row with the given number of sticks to the
+     * counters of the board.
      */
-    private String[] convertSticksToBinary() {
-        String[] binarySticks = new String[sticks.length];
-        for (int i = 0; i < sticks.length; i++) {
-            binarySticks[i] = Integer.toBinaryString(sticks[i]);
+    private void count(int row, int value, int delta) {
+        if (value == 0) {
+            return;
         }
-        return binarySticks;
+        nonEmptyRows += delta;
+        if (value == 1) {
+            rowsWithOneStick += delta;
+        } else {
+            rowsWithMoreSticks += delta;
+            rowsWithMoreSticksXor ^= row;
+        }
+    }
+
+    /**
+     * Initializes the nim sum, the row counters and the position hash of the
+     * game from the summary of the initial rows. This is the only full pass over the
+     * board, afterwards the counters are kept up to date by
+     * {@link #setSticks(int, int)}.
+     * A safe combination is given when the nim sum is 0.
+     */
+    private void initializeCounters(NimSumReduction.Summary summary) {
+        nimSum = summary.getNimSum();
+        nonEmptyRows = summary.getNonEmptyRows();
+        rowsWithOneStick = summary.getRowsWithOneStick();
+        rowsWithMoreSticks = summary.getRowsWithMoreSticks();
+        rowsWithMoreSticksXor = summary.getRowsWithMoreSticksXor();
+        positionHash = summary.getPositionHash(misere);
     }
 
     /**
@@ -231,33 +567,126 @@ public class Nim implements Board {
      */
     @Override
     public String toString() {
+        return toString(Shell.getVerboseMode());
+    }
+
+    /**
+     * String representation of the game, with the additional information of
+     * verbose mode if {@code verbose} is true.
+     * @param verbose whether verbose information is included
+     * @return string representation of the game
+     */
+    @Override
+    public String toString(boolean verbose) {
 
         StringBuilder nimToString = new StringBuilder();
-        String lineToAppend;
+        try {
+            render(nimToString, verbose, 0, sticks.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return nimToString.toString();
+    }
 
-        if (Shell.getVerboseMode()) {
-            String[] binarySticks = convertSticksToBinary();
+    /**
+     * Writes a range of rows through the renderer of the board, which
+     * keeps the rendered pages of rows that have not changed since the last
+     * call. In verbose mode the nim sum follows the rows. Every call is
+     * recorded as one rendering by {@link Metrics}, including the calls of
+     * {@link #toString(boolean)}.
+     * @param out sink of the rows
+     * @param verbose whether the binary representations and the nim sum are
+     *        included
+     * @param from first zero indexed row
+     * @param to row after the last row
+     * @throws IOException if the sink fails
+     */
+    @Override
+    public void render(Appendable out, boolean verbose, int from, int to)
+            throws IOException {
+        render(out, verbose, from, to, true);
+    }
 
-            for (int i = 0; i < sticks.length; i++) {
-                lineToAppend = (i + 1) + ": " + sticks[i]
-                        + " (" + binarySticks[i] + ")" + "\n";
-                nimToString.append(lineToAppend);
-            }
+    /**
+     * Writes a range of rows without the nim sum, so a long range can be
+     * written in parts, see {@link Board#renderRows}. Every call is recorded
+     * as one rendering like a call of render.
+     * @param out sink of the rows
+     * @param verbose whether the binary representations are included
+     * @param from first zero indexed row
+     * @param to row after the last row
+     * @throws IOException if the sink fails
+     */
+    @Override
+    public void renderRows(Appendable out, boolean verbose, int from, int to)
+            throws IOException {
+        render(out, verbose, from, to, false);
+    }
 
-            int nimSum = calculateNimSum();
-            lineToAppend = "Nim sum: " + nimSum + " ("
-                    + Integer.toBinaryString(nimSum) + ")";
-            nimToString.append(lineToAppend);
+    private void render(Appendable out, boolean verbose, int from, int to,
+            boolean nimSumFollows) throws IOException {
+        if (from < 0 || to < from || to > sticks.size()) {
+            throw new IllegalArgumentException("Rows out of range.");
+        }
+        long start = Metrics.ENABLED ? System.nanoTime() : 0L;
+        if (renderer == null) {
+            renderer = new BoardRenderer();
+        }
+        renderer.renderRows(sticks, out, verbose, from, to);
+        if (verbose && nimSumFollows) {
+            renderer.renderNimSum(out, nimSum);
+        }
+        if (Metrics.ENABLED) {
+            Metrics.recordRender(start);
+        }
+    }
 
-        } else {
+    /**
+     * Iterator over moves on the rows of a bitset of the bit plane index.
+     * Each move changes the number of sticks of its row to the xor of the
+     * row and a fixed mask.
+     */
+    protected final class RowMoveIterator implements PrimitiveIterator.OfLong {
 
-            for (int i = 0; i < sticks.length; i++) {
-                lineToAppend = (i + 1) + ": " + sticks[i] + "\n";
-                nimToString.append(lineToAppend);
-            }
+        private final int bit;
+
+        private final int mask;
+
+        private int next;
+
+        private int remaining;
 
+        /**
+         * Creates an iterator over the rows of one bitset of the index.
+         * @param bit plane of the rows, or -1 for all non-empty rows
+         * @param mask mask the rows are xored with
+         * @param first first row of the iteration, -1 if there is none
+         * @param limit maximal number of moves returned
+         */
+        protected RowMoveIterator(int bit, int mask, int first, int limit) {
+            this.bit = bit;
+            this.mask = mask;
+            this.next = first;
+            this.remaining = limit;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next >= 0 && remaining > 0;
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int row = next;
+            remaining--;
+            next = bit < 0 ? sticks.nextNonEmptyRow(row + 1)
+                    : sticks.nextRowWithBit(bit, row + 1);
+            return Moves.encode(row, sticks.get(row) - (sticks.get(row) ^ mask),
+                    currentPlayer);
         }
-        return nimToString.toString();
     }
 
 }
@@ -0,0 +1,294 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Strategies to compute the nim sum, and the row counters a board needs
+ * besides it, from an array of rows. Boards keep these values up to date
+ * per move, so a full reduction only runs when a board is constructed or
+ * when positions are analyzed without building a board.
+ *
+ * SCALAR is the plain loop. VECTOR reduces the nim sum in a tight loop
+ * without any other work, which the JIT compiles to SIMD instructions.
+ * PARALLEL splits the rows into ranges which are reduced with VECTOR on the
+ * common fork/join pool and merged afterwards. A summary takes its nim sum
+ * from the {@link #nimSum(int[], int, int)} of its reduction, while the row
+ * counters are always gathered in a separate branching pass, as
+ * branch-free variants of it turned out to be slower.
+ */
+public enum NimSumReduction {
+
+    /**
+     * One row after the other.
+     */
+    SCALAR {
+        @Override
+        public int nimSum(int[] rows, int from, int to) {
+            int nimSum = 0;
+            for (int i = from; i < to; i++) {
+                nimSum ^= rows[i];
+            }
+            return nimSum;
+        }
+    },
+
+    /**
+     * Nim sum in independent lanes, which the JIT turns into SIMD code.
+     */
+    VECTOR {
+        @Override
+        public int nimSum(int[] rows, int from, int to) {
+            int x0 = 0;
+            int x1 = 0;
+            int x2 = 0;
+            int x3 = 0;
+            int i = from;
+            for (; i + 3 < to; i += 4) {
+                x0 ^= rows[i];
+                x1 ^= rows[i + 1];
+                x2 ^= rows[i + 2];
+                x3 ^= rows[i + 3];
+            }
+            for (; i < to; i++) {
+                x0 ^= rows[i];
+            }
+            return x0 ^ x1 ^ x2 ^ x3;
+        }
+    },
+
+    /**
+     * Fork/join reduction of ranges on the common pool, each reduced with
+     * {@link #VECTOR}, for the nim sum as well as for the summary.
+     */
+    PARALLEL {
+        @Override
+        public int nimSum(int[] rows, int from, int to) {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                return VECTOR.nimSum(rows, from, to);
+            }
+            return ForkJoinPool.commonPool().invoke(
+                    new NimSumTask(rows, from, to));
+        }
+
+        @Override
+        public Summary summarize(int[] rows, int from, int to) {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                return super.summarize(rows, from, to);
+            }
+            return ForkJoinPool.commonPool().invoke(
+                    new SummaryTask(rows, from, to));
+        }
+    };
+
+    /**
+     * Number of rows from which on the parallel reduction splits the rows.
+     */
+    public static final int PARALLEL_THRESHOLD = 1 << 20;
+
+    /**
+     * Computes the nim sum of a range of rows.
+     * @param rows number of sticks in each row
+     * @param from first row of the range
+     * @param to row after the last row of the range
+     * @return xor of the rows of the range
+     */
+    public abstract int nimSum(int[] rows, int from, int to);
+
+    /**
+     * Computes the nim sum of all rows.
+     * @param rows number of sticks in each row
+     * @return xor of all rows
+     */
+    public int nimSum(int[] rows) {
+        return nimSum(rows, 0, rows.length);
+    }
+
+    /**
+     * Computes the nim sum and row counters of a range of rows. The nim sum
+     * is computed by {@link #nimSum(int[], int, int)} of this reduction.
+     * @param rows number of sticks in each row, all at least 0
+     * @param from first row of the range
+     * @param to row after the last row of the range
+     * @return summary of the range
+     */
+    public Summary summarize(int[] rows, int from, int to) {
+        Summary summary = new Summary();
+        for (int i = from; i < to; i++) {
+            summary.add(i, rows[i]);
+        }
+        summary.nimSum = nimSum(rows, from, to);
+        return summary;
+    }
+
+    /**
+     * Chooses the reduction for a board of the given size: the parallel
+     * one for boards above the threshold, the vectorized one otherwise.
+     * @param rowCount number of rows of the board
+     * @return the suggested reduction
+     */
+    public static NimSumReduction forRows(int rowCount) {
+        return rowCount > PARALLEL_THRESHOLD ? PARALLEL : VECTOR;
+    }
+
+    /**
+     * Nim sum, row counters and position hash of a range of rows. Summaries
+     * of adjacent ranges are merged by adding the counts and the misere
+     * hash codes and xoring the rest.
+     */
+    public static final class Summary {
+
+        private int nimSum;
+
+        private int nonEmptyRows;
+
+        private int rowsWithOneStick;
+
+        private int rowsWithMoreSticks;
+
+        private int rowsWithMoreSticksXor;
+
+        private long codeXor;
+
+        private long codeSum;
+
+        /**
+         * Counts a row. The nim sum is set for the whole range at once.
+         */
+        void add(int row, int value) {
+            if (value == 0) {
+                return;
+            }
+            long code = PositionKey.code(value);
+            codeXor ^= code;
+            codeSum += code;
+            nonEmptyRows++;
+            if (value == 1) {
+                rowsWithOneStick++;
+            } else {
+                rowsWithMoreSticks++;
+                rowsWithMoreSticksXor ^= row;
+            }
+        }
+
+        Summary merge(Summary other) {
+            nimSum ^= other.nimSum;
+            nonEmptyRows += other.nonEmptyRows;
+            rowsWithOneStick += other.rowsWithOneStick;
+            rowsWithMoreSticks += other.rowsWithMoreSticks;
+            rowsWithMoreSticksXor ^= other.rowsWithMoreSticksXor;
+            codeXor ^= other.codeXor;
+            codeSum += other.codeSum;
+            return this;
+        }
+
+        /**
+         * @return xor of all rows of the range
+         */
+        public int getNimSum() {
+            return nimSum;
+        }
+
+        /**
+         * @return number of rows with at least one stick
+         */
+        public int getNonEmptyRows() {
+            return nonEmptyRows;
+        }
+
+        /**
+         * @return number of rows with exactly one stick
+         */
+        public int getRowsWithOneStick() {
+            return rowsWithOneStick;
+        }
+
+        /**
+         * @return number of rows with more than one stick
+         */
+        public int getRowsWithMoreSticks() {
+            return rowsWithMoreSticks;
+        }
+
+        /**
+         * @return xor of the indices of the rows with more than one stick
+         */
+        public int getRowsWithMoreSticksXor() {
+            return rowsWithMoreSticksXor;
+        }
+
+        /**
+         * @param misere whether the rows are played misere
+         * @return Zobrist hash of the rows of the range, see
+         *         {@link PositionKey}
+         */
+        public long getPositionHash(boolean misere) {
+            return misere ? PositionKey.MISERE_HASH + codeSum : codeXor;
+        }
+    }
+
+    /**
+     * Fork/join task for the nim sum, which halves its range until it is
+     * below the threshold.
+     */
+    private static final class NimSumTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] rows;
+
+        private final int from;
+
+        private final int to;
+
+        NimSumTask(int[] rows, int from, int to) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                return VECTOR.nimSum(rows, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            NimSumTask left = new NimSumTask(rows, from, middle);
+            left.fork();
+            int right = new NimSumTask(rows, middle, to).compute();
+            return left.join() ^ right;
+        }
+    }
+
+    /**
+     * Fork/join task for the summary, which halves its range until it is
+     * below the threshold.
+     */
+    private static final class SummaryTask extends RecursiveTask<Summary> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] rows;
+
+        private final int from;
+
+        private final int to;
+
+        SummaryTask(int[] rows, int from, int to) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Summary compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                return VECTOR.summarize(rows, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            SummaryTask left = new SummaryTask(rows, from, middle);
+            left.fork();
+            Summary right = new SummaryTask(rows, middle, to).compute();
+            return left.join().merge(right);
+        }
+    }
+
+}
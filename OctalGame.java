@@ -0,0 +1,201 @@
+import java.util.Arrays;
+
+/**
+ * Rule set of a take-away game on rows of sticks, given in the octal
+ * notation of Guy and Smith. The j-th digit after the point says what a
+ * player may do when removing j sticks from one row: the bit 1 allows to
+ * remove the whole row, the bit 2 allows to leave the rest as one row, and
+ * the bit 4 allows to split the rest into two non-empty rows.
+ *
+ * Subtraction games, where any number of sticks from a take-set may be
+ * removed from the end of a row, are the octal games with digits 0 and 3.
+ * Examples are {@code 0.333} ("take 1 to 3") and Kayles, {@code 0.77}.
+ */
+public final class OctalGame {
+
+    /**
+     * Kayles: one or two adjacent sticks are knocked out of a row, which may
+     * split the row into two.
+     */
+    public static final OctalGame KAYLES = new OctalGame("0.77");
+
+    /**
+     * Dawson's Kayles: two adjacent sticks are knocked out of a row, which
+     * may split the row into two.
+     */
+    public static final OctalGame DAWSONS_KAYLES = new OctalGame("0.07");
+
+    private final String code;
+
+    private final byte[] digits;
+
+    private final boolean splits;
+
+    /**
+     * Creates a rule set from its octal code, e.g. {@code "0.77"}.
+     * @param code octal code with at least one non-zero digit after the
+     *        point
+     */
+    public OctalGame(String code) {
+        String trimmed = code.trim();
+        int point = trimmed.indexOf('.');
+        if (point < 0 || !trimmed.substring(0, point).matches("0?")) {
+            throw new IllegalArgumentException("Not an octal code: " + code);
+        }
+        String fraction = trimmed.substring(point + 1);
+        int length = fraction.length();
+        while (length > 0 && fraction.charAt(length - 1) == '0') {
+            length--;
+        }
+        if (length == 0) {
+            throw new IllegalArgumentException("The game has no moves: "
+                    + code);
+        }
+        digits = new byte[length + 1];
+        boolean split = false;
+        for (int j = 1; j <= length; j++) {
+            char c = fraction.charAt(j - 1);
+            if (c < '0' || c > '7') {
+                throw new IllegalArgumentException("Not an octal code: "
+                        + code);
+            }
+            digits[j] = (byte) (c - '0');
+            split |= (digits[j] & 4) != 0;
+        }
+        this.code = "0." + fraction.substring(0, length);
+        this.splits = split;
+    }
+
+    /**
+     * Creates the subtraction game in which the given numbers of sticks may
+     * be removed from the end of a row.
+     * @param takes allowed numbers of sticks to remove, each at least one
+     * @return rule set of the subtraction game
+     */
+    public static OctalGame subtraction(int... takes) {
+        int max = 0;
+        for (int take : takes) {
+            if (take < 1) {
+                throw new IllegalArgumentException("At least one stick has "
+                        + "to be removed.");
+            }
+            max = Math.max(max, take);
+        }
+        if (max == 0) {
+            throw new IllegalArgumentException("The game has no moves.");
+        }
+        char[] fraction = new char[max];
+        Arrays.fill(fraction, '0');
+        for (int take : takes) {
+            fraction[take - 1] = '3';
+        }
+        return new OctalGame("0." + new String(fraction));
+    }
+
+    /**
+     * Gets the largest number of sticks that may be removed in one move.
+     * @return number of digits of the code
+     */
+    public int getMaxRemoval() {
+        return digits.length - 1;
+    }
+
+    /**
+     * Checks whether the rules allow to split a row into two.
+     * @return true if some digit has the bit 4
+     */
+    public boolean hasSplits() {
+        return splits;
+    }
+
+    /**
+     * Checks whether a whole row of {@code j} sticks may be removed.
+     * @param j number of sticks removed
+     * @return true if the move is allowed
+     */
+    public boolean canRemoveRow(int j) {
+        return j < digits.length && (digits[j] & 1) != 0;
+    }
+
+    /**
+     * Checks whether {@code j} sticks may be removed leaving one row.
+     * @param j number of sticks removed
+     * @return true if the move is allowed
+     */
+    public boolean canLeaveOne(int j) {
+        return j < digits.length && (digits[j] & 2) != 0;
+    }
+
+    /**
+     * Checks whether {@code j} sticks may be removed leaving two rows.
+     * @param j number of sticks removed
+     * @return true if the move is allowed
+     */
+    public boolean canLeaveTwo(int j) {
+        return j < digits.length && (digits[j] & 4) != 0;
+    }
+
+    /**
+     * Checks whether a move from {@code sticks} sticks to rows of
+     * {@code left} and {@code right} sticks is allowed, where empty rows do
+     * not count.
+     * @param sticks number of sticks of the row before the move
+     * @param left sticks left in the row
+     * @param right sticks left in a new row split off, or 0
+     * @return true if the move is allowed
+     */
+    public boolean isLegal(int sticks, int left, int right) {
+        int j = sticks - left - right;
+        if (j < 1 || left < 0 || right < 0) {
+            return false;
+        }
+        if (left == 0 && right == 0) {
+            return canRemoveRow(j);
+        }
+        if (left == 0 || right == 0) {
+            return canLeaveOne(j);
+        }
+        return canLeaveTwo(j);
+    }
+
+    /**
+     * Checks whether any move is possible on a row.
+     * @param sticks number of sticks of the row
+     * @return true if the row has a legal move
+     */
+    public boolean hasMove(int sticks) {
+        int max = Math.min(sticks, getMaxRemoval());
+        for (int j = 1; j <= max; j++) {
+            if (j == sticks ? canRemoveRow(j)
+                    : canLeaveOne(j) || canLeaveTwo(j) && sticks - j >= 2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the octal code of the rules.
+     * @return normalized code without trailing zeros
+     */
+    public String getCode() {
+        return code;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof OctalGame
+                && code.equals(((OctalGame) other).code);
+    }
+
+    @Override
+    public int hashCode() {
+        return code.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return code;
+    }
+
+}
@@ -0,0 +1,626 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Analyzes files of positions in bulk, without building a board for any of
+ * them. For every position it writes the nim sum and, for normal and misere
+ * rules, whether the position is winning for the player to move together
+ * with its first or all winning moves, see
+ * {@link Positions#winningMoves(int[], int, boolean, long[])}.
+ *
+ * A text file has one position per line, given as the sticks of its rows
+ * separated by spaces, tabs or commas. A binary file is a sequence of
+ * positions, each written as the number of rows followed by the sticks of
+ * every row, all as unsigned variable length integers, see
+ * {@link #encode(int[], int, ByteBuffer)}.
+ *
+ * The file is mapped into memory in regions of up to a gigabyte, which are
+ * cut into chunks of whole positions. The chunks are analyzed in parallel
+ * and their results are written in the order of the input as soon as they
+ * are complete. Only a few chunks per thread are in flight at a time, so
+ * the memory used does not depend on the size of the file.
+ *
+ * Every position is written as one line of the nim sum followed by the
+ * outcome, {@code win} or {@code loss}, and the winning moves of every
+ * analyzed rule. A move is written as its row, counted from one, and the
+ * number of sticks to take, separated by a colon; several moves are
+ * separated by commas and a position without a winning move has a
+ * {@code -}. For example {@code 1 2 4} is analyzed as
+ * {@code 7 win 3:1 win 3:1}.
+ *
+ * Usage: {@code java PositionAnalyzer [--binary] [--rules both]
+ * [--moves first] [--threads 4] [--output results.txt] [--convert]
+ * positions.txt}
+ *
+ * With {@code --convert}, text positions are written as binary positions
+ * instead of being analyzed.
+ */
+public final class PositionAnalyzer {
+
+    /**
+     * Size of the regions of the file mapped into memory at once.
+     */
+    private static final long MAPPING_SIZE = 1L << 30;
+
+    /**
+     * Minimum number of bytes of input per chunk.
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Number of chunks in flight per thread.
+     */
+    private static final int CHUNKS_PER_THREAD = 2;
+
+    private static final byte[] WIN = " win ".getBytes(
+            StandardCharsets.US_ASCII);
+
+    private static final byte[] LOSS = " loss ".getBytes(
+            StandardCharsets.US_ASCII);
+
+    private boolean normal = true;
+
+    private boolean misere = true;
+
+    private boolean allMoves;
+
+    private boolean binary;
+
+    private boolean convert;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private String output;
+
+    /**
+     * Sets the rules to analyze the positions for.
+     * @param normal whether to analyze for normal rules
+     * @param misere whether to analyze for misere rules
+     * @return this analyzer
+     */
+    public PositionAnalyzer rules(boolean normal, boolean misere) {
+        if (!normal && !misere) {
+            throw new IllegalArgumentException("At least one of the rules "
+                    + "must be analyzed.");
+        }
+        this.normal = normal;
+        this.misere = misere;
+        return this;
+    }
+
+    /**
+     * Sets whether all winning moves or only the first one are written.
+     * @param allMoves true to write all winning moves
+     * @return this analyzer
+     */
+    public PositionAnalyzer allMoves(boolean allMoves) {
+        this.allMoves = allMoves;
+        return this;
+    }
+
+    /**
+     * Sets whether the input is binary or text.
+     * @param binary true for binary positions
+     * @return this analyzer
+     */
+    public PositionAnalyzer binary(boolean binary) {
+        this.binary = binary;
+        return this;
+    }
+
+    /**
+     * Sets whether the positions are converted to the binary format
+     * instead of being analyzed.
+     * @param convert true to write binary positions
+     * @return this analyzer
+     */
+    public PositionAnalyzer convert(boolean convert) {
+        this.convert = convert;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads analyzing chunks.
+     * @param threads number of threads, at least one
+     * @return this analyzer
+     */
+    public PositionAnalyzer threads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * Computes the length of the binary encoding of a position.
+     * @param rows number of sticks per row in its first {@code count}
+     *        entries
+     * @param count number of rows
+     * @return number of bytes written by {@link #encode(int[], int,
+     *         ByteBuffer)}
+     */
+    public static int encodedLength(int[] rows, int count) {
+        int length = BoardCodec.varintLength(count);
+        for (int row = 0; row < count; row++) {
+            length += BoardCodec.varintLength(rows[row]);
+        }
+        return length;
+    }
+
+    /**
+     * Writes a position in the binary format read by the analyzer.
+     * @param rows number of sticks per row in its first {@code count}
+     *        entries
+     * @param count number of rows
+     * @param out buffer with at least {@link #encodedLength(int[], int)}
+     *        bytes remaining
+     */
+    public static void encode(int[] rows, int count, ByteBuffer out) {
+        BoardCodec.writeVarint(out, count);
+        for (int row = 0; row < count; row++) {
+            BoardCodec.writeVarint(out, rows[row]);
+        }
+    }
+
+    /**
+     * Analyzes all positions of a file.
+     * @param input path of the file of positions
+     * @param out stream the results are written to, which is not closed
+     * @return summary of the analysis
+     * @throws IOException if the file can not be read or the results can
+     *         not be written
+     * @throws IllegalArgumentException if the file holds an invalid
+     *         position
+     */
+    public Summary analyze(Path input, OutputStream out) throws IOException {
+        if (binary && convert) {
+            throw new IllegalArgumentException("Only text positions can be "
+                    + "converted.");
+        }
+        Summary summary = new Summary();
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+        try (FileChannel channel = FileChannel.open(input,
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(MAPPING_SIZE, size - position);
+                boolean last = position + length == size;
+                MappedByteBuffer region = channel.map(
+                        FileChannel.MapMode.READ_ONLY, position, length);
+                int from = 0;
+                int to;
+                while (from < region.limit()
+                        && (to = binary ? nextRecords(region, from, last)
+                                : nextLines(region, from, last)) >= 0) {
+                    ByteBuffer slice = region.slice(from, to - from);
+                    long offset = position + from;
+                    pending.add(pool.submit(() -> analyze(slice, offset)));
+                    if (pending.size() >= threads * CHUNKS_PER_THREAD) {
+                        write(pending.poll(), out, summary);
+                    }
+                    from = to;
+                }
+                if (from == 0 && !last) {
+                    throw new IllegalArgumentException("Position at byte "
+                            + position + " is too long.");
+                }
+                // Continue with the first incomplete chunk of the region
+                position += from;
+            }
+            while (!pending.isEmpty()) {
+                write(pending.poll(), out, summary);
+            }
+            out.flush();
+        } finally {
+            pool.shutdownNow();
+        }
+        summary.nanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    /**
+     * Finds the end of the chunk of lines starting at an index of a region.
+     * @return index behind the last line of the chunk, or -1 if the chunk
+     *         continues behind the region
+     */
+    private static int nextLines(ByteBuffer region, int from, boolean last) {
+        int limit = region.limit();
+        for (int i = from + Math.min(CHUNK_SIZE, limit - from) - 1;
+                i < limit; i++) {
+            if (region.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return last ? limit : -1;
+    }
+
+    /**
+     * Finds the end of the chunk of binary positions starting at an index
+     * of a region by skipping over whole positions.
+     * @return index behind the last position of the chunk, or -1 if the
+     *         chunk continues behind the region
+     */
+    private static int nextRecords(ByteBuffer region, int from,
+            boolean last) {
+        int limit = region.limit();
+        int i = from;
+        while (i - from < CHUNK_SIZE && i < limit) {
+            // Read the number of rows
+            long count = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (i == limit) {
+                    return incomplete(i, last);
+                }
+                b = region.get(i++);
+                count |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0 && shift < 64);
+            // Skip the rows, each ending with a byte without the high bit
+            for (long row = 0; row < count; row++) {
+                do {
+                    if (i == limit) {
+                        return incomplete(i, last);
+                    }
+                    b = region.get(i++);
+                } while (b < 0);
+            }
+        }
+        return i;
+    }
+
+    private static int incomplete(int index, boolean last) {
+        if (last) {
+            throw new IllegalArgumentException("Truncated position at the "
+                    + "end of the file.");
+        }
+        return -1;
+    }
+
+    /**
+     * Waits for the results of a chunk and writes them.
+     */
+    private static void write(Future<Chunk> future, OutputStream out,
+            Summary summary) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while analyzing.",
+                    e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) e.getCause();
+            }
+            throw new IllegalStateException("Analyzing failed.",
+                    e.getCause());
+        }
+        out.write(chunk.bytes, 0, chunk.size);
+        summary.add(chunk);
+    }
+
+    /**
+     * Analyzes the positions of one chunk of the file.
+     * @param in the bytes of the chunk
+     * @param offset position of the chunk in the file, for error messages
+     */
+    private Chunk analyze(ByteBuffer in, long offset) {
+        Chunk chunk = new Chunk(in.limit() * (allMoves ? 2 : 1) + 64);
+        if (binary) {
+            try {
+                while (in.hasRemaining()) {
+                    long count = BoardCodec.readVarint(in);
+                    if (count > Integer.MAX_VALUE) {
+                        throw new IllegalArgumentException("Invalid number "
+                                + "of rows.");
+                    }
+                    chunk.ensureRows((int) count);
+                    for (int row = 0; row < count; row++) {
+                        long sticks = BoardCodec.readVarint(in);
+                        if (sticks > Integer.MAX_VALUE) {
+                            throw new IllegalArgumentException("Number "
+                                    + "of sticks out of range.");
+                        }
+                        chunk.rows[row] = (int) sticks;
+                    }
+                    position(chunk, (int) count);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated position.", e);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(e.getMessage()
+                        + " Position at byte " + (offset + in.position())
+                        + ".", e);
+            }
+            return chunk;
+        }
+        int count = 0;
+        long value = -1;
+        boolean line = false;
+        for (int i = 0; i < in.limit(); i++) {
+            byte b = in.get(i);
+            if (b >= '0' && b <= '9') {
+                value = Math.max(0, value) * 10 + (b - '0');
+                if (value > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Number of sticks "
+                            + "out of range at byte " + (offset + i) + ".");
+                }
+                line = true;
+                continue;
+            }
+            if (value >= 0) {
+                chunk.ensureRows(count + 1);
+                chunk.rows[count++] = (int) value;
+                value = -1;
+            }
+            if (b == '\n') {
+                position(chunk, count);
+                count = 0;
+                line = false;
+            } else if (b != ' ' && b != '\t' && b != ',' && b != '\r') {
+                throw new IllegalArgumentException("Invalid character at "
+                        + "byte " + (offset + i) + ".");
+            } else {
+                line = true;
+            }
+        }
+        if (line) {
+            // The last line of the file has no line break
+            if (value >= 0) {
+                chunk.ensureRows(count + 1);
+                chunk.rows[count++] = (int) value;
+            }
+            position(chunk, count);
+        }
+        return chunk;
+    }
+
+    /**
+     * Analyzes or converts one position and writes its results.
+     */
+    private void position(Chunk chunk, int count) {
+        chunk.positions++;
+        if (convert) {
+            chunk.ensure(encodedLength(chunk.rows, count));
+            ByteBuffer out = ByteBuffer.wrap(chunk.bytes, chunk.size,
+                    chunk.bytes.length - chunk.size);
+            encode(chunk.rows, count, out);
+            chunk.size = out.position();
+            return;
+        }
+        int sum = 0;
+        boolean empty = true;
+        for (int row = 0; row < count; row++) {
+            sum ^= chunk.rows[row];
+            empty &= chunk.rows[row] == 0;
+        }
+        chunk.appendNumber(sum);
+        if (normal) {
+            int found = empty ? 0 : Positions.winningMoves(chunk.rows, count,
+                    false, chunk.moves);
+            chunk.normalWins += found > 0 ? 1 : 0;
+            chunk.appendMoves(found > 0, found);
+        }
+        if (misere) {
+            int found = empty ? 0 : Positions.winningMoves(chunk.rows, count,
+                    true, chunk.moves);
+            // Without sticks the opponent took the last one and lost
+            chunk.misereWins += found > 0 || empty ? 1 : 0;
+            chunk.appendMoves(found > 0 || empty, found);
+        }
+        chunk.append('\n');
+    }
+
+    /**
+     * Results of one chunk, together with the buffers used to analyze it.
+     */
+    private final class Chunk {
+
+        private byte[] bytes;
+
+        private int size;
+
+        private int[] rows = new int[16];
+
+        private long[] moves = new long[allMoves ? 16 : 1];
+
+        private long positions;
+
+        private long normalWins;
+
+        private long misereWins;
+
+        Chunk(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void ensureRows(int count) {
+            if (count > rows.length) {
+                int length = Math.max(count, rows.length * 2);
+                rows = Arrays.copyOf(rows, length);
+                if (allMoves) {
+                    moves = new long[length];
+                }
+            }
+        }
+
+        void ensure(int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes,
+                        Math.max(size + length, bytes.length * 2));
+            }
+        }
+
+        void append(char c) {
+            ensure(1);
+            bytes[size++] = (byte) c;
+        }
+
+        void appendNumber(long value) {
+            ensure(20);
+            int end = size + 1;
+            for (long rest = value / 10; rest > 0; rest /= 10) {
+                end++;
+            }
+            long rest = value;
+            for (int i = end - 1; i >= size; i--) {
+                bytes[i] = (byte) ('0' + rest % 10);
+                rest /= 10;
+            }
+            size = end;
+        }
+
+        void appendMoves(boolean winning, int found) {
+            byte[] outcome = winning ? WIN : LOSS;
+            ensure(outcome.length);
+            System.arraycopy(outcome, 0, bytes, size, outcome.length);
+            size += outcome.length;
+            if (found == 0) {
+                append('-');
+            }
+            for (int i = 0; i < found; i++) {
+                if (i > 0) {
+                    append(',');
+                }
+                appendNumber(Moves.row(moves[i]) + 1L);
+                append(':');
+                appendNumber(Moves.numberOfSticks(moves[i]));
+            }
+        }
+    }
+
+    /**
+     * Counts of an analysis.
+     */
+    public static final class Summary {
+
+        private long positions;
+
+        private long normalWins;
+
+        private long misereWins;
+
+        private long nanos;
+
+        private void add(Chunk chunk) {
+            positions += chunk.positions;
+            normalWins += chunk.normalWins;
+            misereWins += chunk.misereWins;
+        }
+
+        /**
+         * Gets the number of positions read.
+         * @return number of positions
+         */
+        public long getPositions() {
+            return positions;
+        }
+
+        /**
+         * Gets the number of positions winning for the player to move.
+         * @param misereRules true for misere rules, false for normal ones
+         * @return number of winning positions, zero for rules which were
+         *         not analyzed
+         */
+        public long getWinningPositions(boolean misereRules) {
+            return misereRules ? misereWins : normalWins;
+        }
+
+        /**
+         * Gets the time taken by the analysis.
+         * @return elapsed nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Analyzed %d positions in %.3f"
+                    + " s (%.0f positions/min), %d winning for normal and %d"
+                    + " for misere rules.", positions, nanos / 1e9,
+                    positions * 60e9 / Math.max(1, nanos), normalWins,
+                    misereWins);
+        }
+    }
+
+    /**
+     * Applies the options of the command line and returns the input file.
+     */
+    private String parseArguments(String[] args) {
+        String input = null;
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : "";
+            switch (args[i]) {
+                case "--binary":
+                    binary(true);
+                    break;
+                case "--convert":
+                    convert(true);
+                    break;
+                case "--rules":
+                    rules(!value.equals("misere"), !value.equals("normal"));
+                    i++;
+                    break;
+                case "--moves":
+                    allMoves(value.equals("all"));
+                    i++;
+                    break;
+                case "--threads":
+                    threads(Integer.parseInt(value));
+                    i++;
+                    break;
+                case "--output":
+                    output = value;
+                    i++;
+                    break;
+                default:
+                    if (args[i].startsWith("--") || input != null) {
+                        throw new IllegalArgumentException("Unknown option "
+                                + args[i]);
+                    }
+                    input = args[i];
+            }
+        }
+        if (input == null) {
+            throw new IllegalArgumentException("No input file given.");
+        }
+        return input;
+    }
+
+    /**
+     * Main method of the analyzer.
+     * @param args options as described in the class comment
+     * @throws IOException if a file can not be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        PositionAnalyzer analyzer = new PositionAnalyzer();
+        String input = analyzer.parseArguments(args);
+        try (OutputStream out = analyzer.output == null
+                ? new FileOutputStream(FileDescriptor.out)
+                : new FileOutputStream(analyzer.output)) {
+            Summary summary = analyzer.analyze(Path.of(input), out);
+            System.err.println(summary);
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+import java.util.Arrays;
+
+/**
+ * Canonical form of a normal or misere position: the multiset of its
+ * non-empty rows. Positions which are permutations of each other have the
+ * same key. In normal play, two equal rows cancel out, since the second
+ * player can copy every move in one of them in the other one, so the key
+ * leaves out pairs of equal rows as well; 1 3 5 3 and 5 1 have the same
+ * key. In misere play, pairs of equal rows do change the outcome, e.g. 1 1
+ * is won by the player to move and the empty board is not, so the misere
+ * key keeps them.
+ *
+ * The {@link #hash() hash} of a key is a Zobrist hash: every number of
+ * sticks has a fixed random 64 bit code, and the codes of the rows are
+ * combined by xor in normal play and by addition in misere play. Both are
+ * independent of the order of the rows, xor makes equal pairs cancel, and
+ * both can be updated in constant time when a row changes, which is how
+ * {@link Nim#getPositionHash()} keeps the hash of a board up to date. The
+ * misere hashes are offset, so they differ from the normal ones.
+ */
+public final class PositionKey {
+
+    /**
+     * Hash of the empty misere position. The misere hashes start from it
+     * instead of 0, so a normal and a misere position with the same rows,
+     * whose outcomes differ, have different hashes.
+     */
+    static final long MISERE_HASH = 0x6D697365726548L;
+
+    private final int[] rows;
+
+    private final boolean misere;
+
+    private PositionKey(int[] rows, boolean misere) {
+        this.rows = rows;
+        this.misere = misere;
+    }
+
+    /**
+     * Creates the key of a position.
+     * @param rows number of sticks in each row
+     * @param misere whether the last stick loses
+     * @return the canonical key
+     */
+    public static PositionKey of(int[] rows, boolean misere) {
+        int[] sorted = new int[rows.length];
+        int count = 0;
+        for (int sticks : rows) {
+            if (sticks > 0) {
+                sorted[count++] = sticks;
+            }
+        }
+        Arrays.sort(sorted, 0, count);
+        if (!misere) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if (i + 1 < count && sorted[i] == sorted[i + 1]) {
+                    i++;
+                } else {
+                    sorted[kept++] = sorted[i];
+                }
+            }
+            count = kept;
+        }
+        return new PositionKey(Arrays.copyOf(sorted, count), misere);
+    }
+
+    /**
+     * Creates the key of the current position of a board.
+     * @param board normal or misere board
+     * @return the canonical key
+     */
+    public static PositionKey of(Nim board) {
+        int[] rows = new int[board.getRowCount()];
+        for (int row = 0; row < rows.length; row++) {
+            rows[row] = board.getSticks(row);
+        }
+        return of(rows, board instanceof Misere);
+    }
+
+    /**
+     * Gets the code of a row with the given number of sticks. An empty row
+     * has the code 0, so empty rows do not change the hash. The codes are
+     * the output of the SplitMix64 finalizer, which spreads every input bit
+     * over all output bits.
+     * @param sticks number of sticks of the row
+     * @return the 64 bit code
+     */
+    public static long code(int sticks) {
+        if (sticks == 0) {
+            return 0;
+        }
+        long z = sticks * 0x9E3779B97F4A7C15L;
+        z = (z ^ z >>> 30) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ z >>> 27) * 0x94D049BB133111EBL;
+        return z ^ z >>> 31;
+    }
+
+    /**
+     * Updates the hash of a position for a row changing from one number of
+     * sticks to another.
+     * @param hash hash of the position before the change
+     * @param previous number of sticks of the row before the change
+     * @param value number of sticks of the row after the change
+     * @param misere whether the position is played misere
+     * @return hash of the position after the change
+     */
+    public static long update(long hash, int previous, int value,
+            boolean misere) {
+        return misere ? hash - code(previous) + code(value)
+                : hash ^ code(previous) ^ code(value);
+    }
+
+    /**
+     * Gets the Zobrist hash of the key, which is the same as the hash of
+     * every position with this key.
+     * @return the hash
+     */
+    public long hash() {
+        long hash = misere ? MISERE_HASH : 0;
+        for (int sticks : rows) {
+            hash = update(hash, 0, sticks, misere);
+        }
+        return hash;
+    }
+
+    /**
+     * Gets the non-empty rows of the key in ascending order.
+     * @return copy of the rows
+     */
+    public int[] getRows() {
+        return rows.clone();
+    }
+
+    /**
+     * @return whether the key is of a misere position
+     */
+    public boolean isMisere() {
+        return misere;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof PositionKey
+                && misere == ((PositionKey) other).misere
+                && Arrays.equals(rows, ((PositionKey) other).rows);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(hash());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(misere ? "MISERE" : "NORMAL");
+        for (int sticks : rows) {
+            text.append(' ').append(sticks);
+        }
+        return text.toString();
+    }
+
+}
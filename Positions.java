@@ -0,0 +1,174 @@
+/**
+ * Analysis of single positions given as arrays of row sizes, without a
+ * {@link Board}. The moves are the ones the machine of a {@link Nim} or
+ * {@link Misere} board makes in the same position, but they are computed
+ * with a few passes over the rows, which is cheaper than building a board
+ * for a position that is only looked at once.
+ *
+ * The strategy of the machine itself is kept here as well, in
+ * {@link #sticksToTake(int, int)} and {@link #endgameTarget(int)}. The
+ * boards only differ in how they find the row to take from, and use these
+ * methods for the number of sticks.
+ */
+public final class Positions {
+
+    private Positions() {
+    }
+
+    /**
+     * Computes the nim sum, i.e. the xor of all rows.
+     * @param rows number of sticks per row
+     * @return the nim sum
+     */
+    public static int nimSum(int[] rows) {
+        int sum = 0;
+        for (int sticks : rows) {
+            sum ^= sticks;
+        }
+        return sum;
+    }
+
+    /**
+     * Computes how many sticks the machine takes from the row it has chosen:
+     * half of them, rounded up, if the nim sum is 0 and the row is the first
+     * non-empty one, and otherwise as many as make the nim sum 0, where the
+     * row is the first one with the highest bit of the nim sum set.
+     * @param sticks number of sticks of the chosen row
+     * @param nimSum nim sum of all rows
+     * @return number of sticks to take
+     */
+    public static int sticksToTake(int sticks, int nimSum) {
+        return nimSum == 0 ? (sticks + 1) / 2 : sticks - (sticks ^ nimSum);
+    }
+
+    /**
+     * Computes how many sticks the machine leaves in misere mode in the last
+     * row with more than one stick, so that the opponent faces an odd number
+     * of rows with one stick.
+     * @param rowsWithOneStick number of rows with exactly one stick
+     * @return 1 or 0
+     */
+    public static int endgameTarget(int rowsWithOneStick) {
+        return rowsWithOneStick % 2 == 0 ? 1 : 0;
+    }
+
+    /**
+     * Checks whether the player to move wins with perfect play.
+     * @param rows number of sticks per row, not all zero
+     * @param misere whether the player taking the last stick loses
+     * @return true if the position is winning for the player to move
+     */
+    public static boolean isWinning(int[] rows, boolean misere) {
+        if (misere && largeRows(rows) == 0) {
+            // Only rows of one stick: the mover wins if their number is even
+            return nimSum(rows) == 0;
+        }
+        return nimSum(rows) != 0;
+    }
+
+    /**
+     * Chooses the move the machine makes in a position: a winning move if
+     * there is one, otherwise half of the sticks of the first non-empty row.
+     * It takes one pass over the rows to find the nim sum and the rows with
+     * more than one stick, and a second one to find the row to take from.
+     * @param rows number of sticks per row
+     * @param misere whether the player taking the last stick loses
+     * @return the move encoded for the machine, see {@link Moves}, or
+     *         {@link Moves#NONE} if all rows are empty
+     */
+    public static long bestMove(int[] rows, boolean misere) {
+        int sum = 0;
+        int large = 0;
+        int largeRow = -1;
+        int ones = 0;
+        for (int row = 0; row < rows.length; row++) {
+            sum ^= rows[row];
+            if (rows[row] > 1) {
+                large++;
+                largeRow = row;
+            } else if (rows[row] == 1) {
+                ones++;
+            }
+        }
+        if (misere && large == 1) {
+            // Leave an odd number of rows with one stick to the opponent
+            return Moves.encode(largeRow,
+                    rows[largeRow] - endgameTarget(ones), Player.MACHINE);
+        }
+        int mask = sum == 0 ? -1 : Integer.highestOneBit(sum);
+        for (int row = 0; row < rows.length; row++) {
+            if ((rows[row] & mask) != 0) {
+                return Moves.encode(row, sticksToTake(rows[row], sum),
+                        Player.MACHINE);
+            }
+        }
+        return Moves.NONE;
+    }
+
+    /**
+     * Finds the winning moves of a position, i.e. the moves after which the
+     * opponent loses with perfect play. There is at most one per row, and
+     * the first one is the move of {@link #bestMove(int[], boolean)}.
+     * @param rows number of sticks per row in its first {@code count}
+     *        entries
+     * @param count number of rows
+     * @param misere whether the player taking the last stick loses
+     * @param moves receives the moves encoded for the machine, as many as
+     *        fit; must have at least one entry
+     * @return number of moves written, zero if the position is losing or
+     *         has no sticks
+     */
+    public static int winningMoves(int[] rows, int count, boolean misere,
+            long[] moves) {
+        int sum = 0;
+        int large = 0;
+        int largeRow = -1;
+        int ones = 0;
+        for (int row = 0; row < count; row++) {
+            sum ^= rows[row];
+            if (rows[row] > 1) {
+                large++;
+                largeRow = row;
+            } else if (rows[row] == 1) {
+                ones++;
+            }
+        }
+        int found = 0;
+        if (misere && large == 1) {
+            // Only leaving an odd number of rows with one stick wins
+            moves[found++] = Moves.encode(largeRow,
+                    rows[largeRow] - endgameTarget(ones), Player.MACHINE);
+        } else if (misere && large == 0) {
+            // Taking any single stick wins if their number is even
+            for (int row = 0; ones % 2 == 0 && row < count
+                    && found < moves.length; row++) {
+                if (rows[row] == 1) {
+                    moves[found++] = Moves.encode(row, 1, Player.MACHINE);
+                }
+            }
+        } else if (sum != 0) {
+            int high = Integer.highestOneBit(sum);
+            for (int row = 0; row < count && found < moves.length; row++) {
+                if ((rows[row] & high) != 0) {
+                    moves[found++] = Moves.encode(row,
+                            sticksToTake(rows[row], sum), Player.MACHINE);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Counts the rows with more than one stick.
+     */
+    private static int largeRows(int[] rows) {
+        int count = 0;
+        for (int sticks : rows) {
+            if (sticks > 1) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
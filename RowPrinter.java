@@ -0,0 +1,21 @@
+/**
+ * Takes over the rows printed by the PRINT command of a {@link Session},
+ * for hosts which write the rows of large boards in parts, as the sink of
+ * the output takes them, instead of all at once. See
+ * {@link Session#setRowPrinter(RowPrinter)}.
+ */
+public interface RowPrinter {
+
+    /**
+     * Called instead of writing a valid range of rows to the output of the
+     * session. The rows have to be written as by
+     * {@link Board#render(Appendable, boolean, int, int)}, followed by a line
+     * break, before any further output of the session.
+     * @param board board of the session
+     * @param verbose whether verbose mode is on
+     * @param from first zero indexed row
+     * @param to row after the last row
+     */
+    void print(Board board, boolean verbose, int from, int to);
+
+}
@@ -0,0 +1,490 @@
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+/**
+ * Storage of the rows of a board together with a bit plane index over them.
+ * The index stores one bitset per bit position of the row values (a bit
+ * plane) and one bitset of the non-empty rows. Bit {@code r} of plane
+ * {@code b} is set if and only if bit {@code b} of row {@code r} is set.
+ *
+ * The index allows finding the first row with a certain bit, or the first
+ * non-empty row, by scanning 64 rows at once. Additionally every segment
+ * counts the rows per bit, so segments without such a row are skipped
+ * entirely. A change of a row only touches the planes of the bits that
+ * actually changed.
+ *
+ * The rows are split into segments of {@value #SEGMENT_ROWS} rows, which are
+ * copied on write: a snapshot shares all segments with the original store,
+ * and a segment is only copied when one of the stores changes it for the
+ * first time. Segments belong to the store whose token they carry; taking a
+ * snapshot gives both stores new tokens, so all segments become shared.
+ *
+ * Every segment packs its rows with the narrowest of 4, 8, 16 or 32 bits
+ * which holds its largest row, see {@link #footprint()} for the memory it
+ * takes.
+ */
+public final class RowStore {
+
+    /**
+     * Number of rows per segment, the unit of copy-on-write.
+     */
+    static final int SEGMENT_ROWS = 1 << 12;
+
+    private static final int SEGMENT_SHIFT = 12;
+
+    private static final int WORD_SHIFT = 6;
+
+    private static final int SEGMENT_WORDS = SEGMENT_ROWS >>> WORD_SHIFT;
+
+    /**
+     * Assumed size of the header of an array, and of a segment object
+     * without its arrays, in bytes.
+     */
+    private static final int ARRAY_BYTES = 16;
+
+    private static final int SEGMENT_BYTES = 48;
+
+    private final int rowCount;
+
+    private final Segment[] segments;
+
+    private Object token = new Object();
+
+    /**
+     * A segment of rows together with its part of the bit plane index.
+     *
+     * The rows are packed into longs with 4, 8, 16 or 32 bits per row, the
+     * narrowest width which holds the largest row of the segment. Typical
+     * boards have far fewer than 256 sticks per row, so their rows take a
+     * byte or half a byte instead of an int, and a scan over the rows reads
+     * a quarter or an eighth of the memory.
+     */
+    private static final class Segment {
+
+        private final int length;
+
+        /**
+         * Packed rows: row {@code r} takes the bits from
+         * {@code r << widthShift} on.
+         */
+        private long[] packed;
+
+        /**
+         * Logarithm of the bits per row, from 2 for 4 bits to 5 for 32 bits.
+         */
+        private int widthShift;
+
+        /**
+         * Mask of the bits of one row.
+         */
+        private long rowMask;
+
+        private long[][] planes;
+
+        private final long[] nonEmpty;
+
+        private int[] bitCounts;
+
+        private int nonEmptyCount;
+
+        private Object owner;
+
+        Segment(int length, int bits, Object owner) {
+            this.length = length;
+            this.widthShift = widthShift(bits);
+            this.rowMask = rowMask(widthShift);
+            this.packed = new long[packedWords(length, widthShift)];
+            this.planes = new long[bits][SEGMENT_WORDS];
+            this.nonEmpty = new long[SEGMENT_WORDS];
+            this.bitCounts = new int[bits];
+            this.owner = owner;
+        }
+
+        Segment(Segment other, Object owner) {
+            this.length = other.length;
+            this.packed = other.packed.clone();
+            this.widthShift = other.widthShift;
+            this.rowMask = other.rowMask;
+            this.planes = new long[other.planes.length][];
+            for (int b = 0; b < planes.length; b++) {
+                planes[b] = other.planes[b].clone();
+            }
+            this.nonEmpty = other.nonEmpty.clone();
+            this.bitCounts = other.bitCounts.clone();
+            this.nonEmptyCount = other.nonEmptyCount;
+            this.owner = owner;
+        }
+
+        private static int widthShift(int bits) {
+            return bits <= 4 ? 2 : bits <= 8 ? 3 : bits <= 16 ? 4 : 5;
+        }
+
+        private static long rowMask(int widthShift) {
+            return (1L << (1 << widthShift)) - 1;
+        }
+
+        private static int packedWords(int length, int widthShift) {
+            return (length << widthShift) + 63 >>> 6;
+        }
+
+        int get(int offset) {
+            int bit = offset << widthShift;
+            return (int) (packed[bit >>> 6] >>> bit & rowMask);
+        }
+
+        private void put(int offset, int value) {
+            int bit = offset << widthShift;
+            int word = bit >>> 6;
+            packed[word] = packed[word] & ~(rowMask << bit)
+                    | (long) value << bit;
+        }
+
+        /**
+         * Repacks the rows with a larger width, for a row which does not
+         * fit into the current one.
+         */
+        private void widen(int bits) {
+            long[] narrow = packed;
+            int narrowShift = widthShift;
+            long narrowMask = rowMask;
+            widthShift = widthShift(bits);
+            rowMask = rowMask(widthShift);
+            packed = new long[packedWords(length, widthShift)];
+            for (int r = 0; r < length; r++) {
+                int bit = r << narrowShift;
+                put(r, (int) (narrow[bit >>> 6] >>> bit & narrowMask));
+            }
+        }
+
+        /**
+         * Rows normally only shrink, but undoing moves may set a row to a
+         * value with more bits than any row of the segment had before.
+         */
+        void ensurePlanes(int count) {
+            if (count <= planes.length) {
+                return;
+            }
+            long[][] grown = new long[count][];
+            System.arraycopy(planes, 0, grown, 0, planes.length);
+            for (int b = planes.length; b < count; b++) {
+                grown[b] = new long[SEGMENT_WORDS];
+            }
+            planes = grown;
+            int[] counts = new int[count];
+            System.arraycopy(bitCounts, 0, counts, 0, bitCounts.length);
+            bitCounts = counts;
+        }
+
+        int set(int offset, int value) {
+            int previous = get(offset);
+            int changed = previous ^ value;
+            if (changed == 0) {
+                return previous;
+            }
+            int bits = 32 - Integer.numberOfLeadingZeros(value);
+            if (value > rowMask) {
+                widen(bits);
+            }
+            put(offset, value);
+            ensurePlanes(bits);
+            int word = offset >>> WORD_SHIFT;
+            long mask = 1L << offset;
+            while (changed != 0) {
+                int b = Integer.numberOfTrailingZeros(changed);
+                planes[b][word] ^= mask;
+                bitCounts[b] += (value >>> b & 1) == 1 ? 1 : -1;
+                changed &= changed - 1;
+            }
+            if (previous == 0) {
+                nonEmpty[word] |= mask;
+                nonEmptyCount++;
+            } else if (value == 0) {
+                nonEmpty[word] &= ~mask;
+                nonEmptyCount--;
+            }
+            return previous;
+        }
+    }
+
+    /**
+     * Builds the store for the given rows. Only as many planes as needed for
+     * the largest row of a segment are allocated.
+     * @param rows number of sticks in each row, copied into the store
+     * @param parallel whether the segments are built in parallel
+     */
+    public RowStore(int[] rows, boolean parallel) {
+        this.rowCount = rows.length;
+        this.segments = new Segment[
+                (rows.length + SEGMENT_ROWS - 1) >>> SEGMENT_SHIFT];
+        IntStream indices = IntStream.range(0, segments.length);
+        if (parallel) {
+            indices = indices.parallel();
+        }
+        indices.forEach(s -> segments[s] = buildSegment(rows, s));
+    }
+
+    private Segment buildSegment(int[] rows, int s) {
+        int from = s << SEGMENT_SHIFT;
+        int length = Math.min(SEGMENT_ROWS, rows.length - from);
+        int max = 0;
+        for (int r = from; r < from + length; r++) {
+            max |= rows[r];
+        }
+        Segment segment = new Segment(length,
+                32 - Integer.numberOfLeadingZeros(max), token);
+        for (int r = 0; r < length; r++) {
+            segment.set(r, rows[from + r]);
+        }
+        return segment;
+    }
+
+    private RowStore(RowStore other) {
+        this.rowCount = other.rowCount;
+        this.segments = other.segments.clone();
+    }
+
+    /**
+     * Takes a snapshot of the store, which shares all segments with this
+     * store. Afterwards, both stores copy a segment the first time they
+     * change it, so the snapshot costs one reference per segment instead
+     * of a copy of all rows. That is still linear in the number of rows,
+     * with one reference per {@value #SEGMENT_ROWS} rows, since the segments
+     * are kept in a flat array, which every lookup of a row indexes
+     * directly.
+     * @return independent store with the same rows
+     */
+    public RowStore snapshot() {
+        token = new Object();
+        return new RowStore(this);
+    }
+
+    /**
+     * Gets the number of rows.
+     * @return number of rows of the store
+     */
+    public int size() {
+        return rowCount;
+    }
+
+    /**
+     * Gets the number of sticks of a row.
+     * @param row zero indexed row
+     * @return number of sticks in the row
+     */
+    public int get(int row) {
+        return segments[row >>> SEGMENT_SHIFT].get(row & (SEGMENT_ROWS - 1));
+    }
+
+    /**
+     * Sets the number of sticks of a row and updates the index. The segment
+     * of the row is copied first if it is shared with another store.
+     * @param row zero indexed row
+     * @param value new number of sticks
+     * @return number of sticks of the row before the change
+     */
+    public int set(int row, int value) {
+        int s = row >>> SEGMENT_SHIFT;
+        Segment segment = segments[s];
+        if (segment.owner != token) {
+            segment = new Segment(segment, token);
+            segments[s] = segment;
+        }
+        return segment.set(row & (SEGMENT_ROWS - 1), value);
+    }
+
+    /**
+     * Finds the first row which has the given bit set.
+     * @param bit bit position between 0 and 30
+     * @return zero indexed row, or -1 if no row has the bit set.
+     */
+    public int firstRowWithBit(int bit) {
+        return nextRowWithBit(bit, 0);
+    }
+
+    /**
+     * Finds the first row at or after {@code from} which has the given bit
+     * set.
+     * @param bit bit position between 0 and 30
+     * @param from zero indexed row to start the search at
+     * @return zero indexed row, or -1 if no such row has the bit set.
+     */
+    public int nextRowWithBit(int bit, int from) {
+        for (int s = from >>> SEGMENT_SHIFT; s < segments.length; s++) {
+            Segment segment = segments[s];
+            if (bit < segment.planes.length && segment.bitCounts[bit] > 0) {
+                int found = nextSetBit(segment.planes[bit],
+                        Math.max(0, from - (s << SEGMENT_SHIFT)));
+                if (found >= 0) {
+                    return (s << SEGMENT_SHIFT) + found;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the first row which contains at least one stick.
+     * @return zero indexed row, or -1 if all rows are empty.
+     */
+    public int firstNonEmptyRow() {
+        return nextNonEmptyRow(0);
+    }
+
+    /**
+     * Finds the first row at or after {@code from} which contains at least
+     * one stick.
+     * @param from zero indexed row to start the search at
+     * @return zero indexed row, or -1 if all these rows are empty.
+     */
+    public int nextNonEmptyRow(int from) {
+        for (int s = from >>> SEGMENT_SHIFT; s < segments.length; s++) {
+            Segment segment = segments[s];
+            if (segment.nonEmptyCount > 0) {
+                int found = nextSetBit(segment.nonEmpty,
+                        Math.max(0, from - (s << SEGMENT_SHIFT)));
+                if (found >= 0) {
+                    return (s << SEGMENT_SHIFT) + found;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Counts the rows which have the given bit set.
+     * @param bit bit position between 0 and 30
+     * @return number of rows with the bit set
+     */
+    public int countRowsWithBit(int bit) {
+        int count = 0;
+        for (Segment segment : segments) {
+            if (bit < segment.bitCounts.length) {
+                count += segment.bitCounts[bit];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Estimates the memory taken by the store. Segments shared with a
+     * snapshot are counted in full by both stores.
+     * @return the footprint of the store
+     */
+    public Footprint footprint() {
+        long rowBytes = 0;
+        long indexBytes = ARRAY_BYTES + (long) segments.length * 4;
+        int[] byWidth = new int[4];
+        int shared = 0;
+        for (Segment segment : segments) {
+            byWidth[segment.widthShift - 2]++;
+            if (segment.owner != token) {
+                shared++;
+            }
+            rowBytes += ARRAY_BYTES + segment.packed.length * 8L;
+            indexBytes += SEGMENT_BYTES + ARRAY_BYTES * 3
+                    + segment.planes.length * (ARRAY_BYTES + 8L
+                    * SEGMENT_WORDS + 4) + SEGMENT_WORDS * 8L;
+        }
+        return new Footprint(rowCount, byWidth, shared, rowBytes,
+                indexBytes);
+    }
+
+    /**
+     * Memory taken by a row store, by the packed rows and by the index
+     * over them. The numbers are estimates, since the sizes of object
+     * headers and references depend on the virtual machine.
+     */
+    public static final class Footprint {
+
+        private final int rows;
+
+        private final int[] segmentsByWidth;
+
+        private final int sharedSegments;
+
+        private final long rowBytes;
+
+        private final long indexBytes;
+
+        Footprint(int rows, int[] segmentsByWidth, int sharedSegments,
+                long rowBytes, long indexBytes) {
+            this.rows = rows;
+            this.segmentsByWidth = segmentsByWidth;
+            this.sharedSegments = sharedSegments;
+            this.rowBytes = rowBytes;
+            this.indexBytes = indexBytes;
+        }
+
+        /**
+         * @return number of rows
+         */
+        public int getRows() {
+            return rows;
+        }
+
+        /**
+         * @param bits 4, 8, 16 or 32
+         * @return number of segments whose rows take the given number of
+         *         bits
+         */
+        public int getSegments(int bits) {
+            return segmentsByWidth[Integer.numberOfTrailingZeros(bits) - 2];
+        }
+
+        /**
+         * @return number of segments shared with a snapshot
+         */
+        public int getSharedSegments() {
+            return sharedSegments;
+        }
+
+        /**
+         * @return bytes taken by the packed rows
+         */
+        public long getRowBytes() {
+            return rowBytes;
+        }
+
+        /**
+         * @return bytes taken by the bit plane index and the segments
+         */
+        public long getIndexBytes() {
+            return indexBytes;
+        }
+
+        /**
+         * @return bytes taken by the store
+         */
+        public long getBytes() {
+            return rowBytes + indexBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d rows: %d bytes (%.2f per "
+                    + "row), rows %d bytes (%d as int), index %d bytes; "
+                    + "segments of 4/8/16/32 bit rows: %d/%d/%d/%d, %d "
+                    + "shared", rows, getBytes(),
+                    (double) getBytes() / Math.max(1, rows), rowBytes,
+                    rows * 4L, indexBytes, segmentsByWidth[0],
+                    segmentsByWidth[1], segmentsByWidth[2],
+                    segmentsByWidth[3], sharedSegments);
+        }
+    }
+
+    private static int nextSetBit(long[] words, int from) {
+        int w = from >>> WORD_SHIFT;
+        if (w >= words.length) {
+            return -1;
+        }
+        long word = words[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == words.length) {
+                return -1;
+            }
+            word = words[w];
+        }
+        return (w << WORD_SHIFT) + Long.numberOfTrailingZeros(word);
+    }
+
+}
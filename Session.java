@@ -0,0 +1,670 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * A single game session of the shell command language. A session holds its
+ * own board, the opener of the next game and its own verbose setting, and
+ * evaluates one command line at a time. Output is written to the two given
+ * sinks, which may be the console or a buffer of a network connection, so
+ * many sessions can be hosted independently of each other.
+ *
+ * A session may be backed by a journal of a {@link SessionStore}, which
+ * logs every change of the board, the opener and the verbose mode, so the
+ * session survives a restart of the process.
+ */
+public final class Session {
+
+    private final Appendable out;
+
+    private final Appendable err;
+
+    private Board board;
+
+    private Player beginner = Player.HUMAN;
+
+    /**
+     * Flag which indicates whether verbose mode is on or off for this
+     * session. If it is on, additional information about the game, such as
+     * the current nim sum and the binary representation of the sticks, is
+     * printed out when the print command is called.
+     * By default, verbose mode is turned off.
+     */
+    private boolean verbose;
+
+    private final CommandTokenizer tokens = new CommandTokenizer();
+
+    /**
+     * Journal of the session in a store, or null if the session is not
+     * persisted.
+     */
+    private final SessionStore.Journal journal;
+
+    /**
+     * Archive of the finished games, or null if they are not kept.
+     */
+    private GameArchive archive;
+
+    /**
+     * Whether the game on the board has been archived already, so the
+     * game is kept only once however often its end is printed. UNDO opens
+     * the game again, so its next end is archived as another game.
+     */
+    private boolean archived;
+
+    /**
+     * Receiver of the rows printed by PRINT, or null if they are written to
+     * the output directly.
+     */
+    private RowPrinter rowPrinter;
+
+    /**
+     * Creates a new session without a running game.
+     * @param out sink for regular output
+     * @param err sink for error messages
+     */
+    public Session(Appendable out, Appendable err) {
+        this.out = out;
+        this.err = err;
+        this.journal = null;
+    }
+
+    /**
+     * Creates a session which is persisted by a journal, and continues with
+     * the game, opener and verbose mode restored by the journal.
+     * @param out sink for regular output
+     * @param err sink for error messages
+     * @param journal journal of the session, attached to this session
+     */
+    public Session(Appendable out, Appendable err,
+            SessionStore.Journal journal) {
+        this.out = out;
+        this.err = err;
+        this.journal = journal;
+        this.board = journal.getBoard();
+        this.beginner = journal.getBeginner();
+        this.verbose = journal.isVerbose();
+        this.archived = board != null && board.isGameOver();
+    }
+
+    /**
+     * Creates a session which continues the state of a session moved from
+     * another process, see {@link ShardWorker}.
+     * @param out sink for regular output
+     * @param err sink for error messages
+     * @param board board of the running game, or null if there is none
+     * @param beginner opener of the next game
+     * @param verbose whether verbose mode is on
+     */
+    public Session(Appendable out, Appendable err, Board board,
+            Player beginner, boolean verbose) {
+        this.out = out;
+        this.err = err;
+        this.journal = null;
+        this.board = board;
+        this.beginner = beginner;
+        this.verbose = verbose;
+        this.archived = board != null && board.isGameOver();
+    }
+
+    /**
+     * Lets a host write the rows printed by PRINT itself, e.g. in parts as
+     * a network connection takes them. Without a row printer, the rows are
+     * written to the output at once.
+     * @param printer receiver of the rows, or null to write them directly
+     */
+    public void setRowPrinter(RowPrinter printer) {
+        this.rowPrinter = printer;
+    }
+
+    /**
+     * Lets the session record every finished game in an archive.
+     * @param archive archive of the games, or null to record none
+     */
+    public void setArchive(GameArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Getter method for the verbose mode flag of this session.
+     * @return true if verbose mode is on, false if it is not.
+     */
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    /**
+     * Getter method for the opener of the next game.
+     * @return the player who opens the next game.
+     */
+    public Player getBeginner() {
+        return beginner;
+    }
+
+    /**
+     * Getter method for the board of the running game.
+     * @return the board, or null if no game has been started yet.
+     */
+    public Board getBoard() {
+        return board;
+    }
+
+    /**
+     *  This method evaluates one line of input and prints an error
+     *  message if it is invalid. The line is split into tokens by the
+     *  tokenizer of the session, and the command is looked up in the
+     *  command table by its first token. The command is then passed to the
+     *  correct helper method, which executes it and performs the requested
+     *  action on the game.
+     * @param line line of user input
+     * @return false if the line was the QUIT command, true otherwise.
+     */
+    public boolean execute(CharSequence line) {
+
+        long start = Metrics.ENABLED ? System.nanoTime() : 0L;
+        tokens.tokenize(line);
+        Command command = Command.lookup(tokens);
+        boolean running = true;
+        if (command == null) {
+            println(out, "Error! Invalid command.");
+        } else if (journal == null) {
+            running = dispatch(command);
+        } else {
+            // A checkpoint reads the journal between two commands only
+            synchronized (journal) {
+                running = dispatch(command);
+            }
+            journal.commit();
+        }
+        if (Metrics.ENABLED) {
+            Metrics.recordCommand(command == null ? "INVALID"
+                    : command.name(), start);
+        }
+        return running;
+    }
+
+    /**
+     * Checks if a tokenized line is the QUIT command, which ends a session.
+     * @param tokens tokenized command line
+     * @return true if executing the line ends the session
+     */
+    static boolean isQuit(CommandTokenizer tokens) {
+        return Command.lookup(tokens) == Command.QUIT;
+    }
+
+    /**
+     * Passes a command to the helper method which executes it.
+     * @param command the command of the current line
+     * @return false if the command was QUIT, true otherwise.
+     */
+    private boolean dispatch(Command command) {
+
+        switch (command) {
+
+            case QUIT:
+
+                if (journal != null) {
+                    journal.close();
+                }
+                return false;
+
+            // Normal Game
+            case NEW:
+
+                board = startNormalGame();
+                logNewGameIfNone();
+                break;
+
+            // Misere game
+            case MISERE:
+
+                board = startMisereGame();
+                logNewGameIfNone();
+                break;
+
+            case SWITCH:
+
+                switchOpener();
+                break;
+
+            // REMOVE s sticks from row r
+            case REMOVE:
+
+                removeSticks(tokens.intValue(1), tokens.intValue(2));
+                break;
+
+            // Verbose mode
+            case VERBOSE:
+
+                switchVerbose();
+                break;
+
+            // Prints the state of the game
+            case PRINT:
+
+                printGame();
+                break;
+
+            case HELP:
+
+                printHelp();
+                break;
+
+            // UNDO the last move of the human and the machine's reply
+            case UNDO:
+
+                undoMove();
+                break;
+
+            // REDO a move taken back by UNDO
+            case REDO:
+
+                redoMove();
+                break;
+
+            // Counters and latencies of the engine
+            case STATS:
+
+                printStats();
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Helper method to start a new normal game. The method first checks if
+     * the given input is valid and initializes a new game if it is. If it
+     * isn't an error message is printed and the method terminates.
+     * The arguments of the command are the numbers of sticks in each row
+     * of the game.
+     */
+    private Board startNormalGame() {
+
+        int[] sticks = parseSticks();
+        if (sticks == null) {
+            printInvalidInputError();
+            return null;
+        }
+        return startGame(new Nim(sticks, beginner));
+    }
+
+    /**
+     * Helper method to start a new misere game. The method first checks if
+     * the given input is valid and initializes a new game if it is. If it
+     * isn't an error message is printed and the method terminates.
+     * The arguments of the command are the numbers of sticks in each row
+     * of the game.
+     */
+    private Board startMisereGame() {
+        int[] sticks = parseSticks();
+        if (sticks == null) {
+            printInvalidInputError();
+            return null;
+        }
+        return startGame(new Misere(sticks, beginner));
+    }
+
+    private Board startGame(Board newBoard) {
+        archived = false;
+        if (journal != null) {
+            journal.newGame(newBoard);
+        }
+        if (beginner == Player.MACHINE) {
+            newBoard.machineRemove();
+            logMove();
+            println(out, newBoard.getLastMove());
+        }
+        return newBoard;
+    }
+
+    /**
+     * Logs that an invalid NEW or MISERE command has ended the running game.
+     */
+    private void logNewGameIfNone() {
+        if (journal != null && board == null) {
+            journal.newGame(null);
+        }
+    }
+
+    private void logMove() {
+        if (journal != null) {
+            journal.moved();
+        }
+    }
+
+    private void logUndo() {
+        if (journal != null) {
+            journal.undone();
+        }
+    }
+
+    private void logRedo() {
+        if (journal != null) {
+            journal.redone();
+        }
+    }
+
+    private void removeSticks(int row, int sticks) {
+        if (board == null) {
+            println(out, Constants.GAME_NOT_RUNNING_ERROR);
+            return;
+        } else if (board.isGameOver()) {
+            checkIfGameIsOver();
+            return;
+        }
+
+        try {
+            board.remove(row - 1, sticks);
+        } catch (IllegalStateException e) {
+            println(err, "It's not the humans turn.");
+            return;
+        } catch (IllegalArgumentException e) {
+            println(err, "Error! The provided move is illegal.");
+            return;
+        }
+        logMove();
+
+        checkIfGameIsOver();
+
+        if (board.isGameOver()) {
+            return;
+        }
+
+        try {
+            board.machineRemove();
+        } catch (IllegalStateException e) {
+            println(err, "It's not the machines turn");
+            return;
+        }
+        logMove();
+
+        println(out, board.getLastMove());
+
+        checkIfGameIsOver();
+
+    }
+
+    /**
+     * Takes back the last move of the human together with the reply of the
+     * machine, so it is the human's turn again. If the machine has opened
+     * the game, its first move is kept.
+     */
+    private void undoMove() {
+        if (board == null) {
+            println(out, Constants.GAME_NOT_RUNNING_ERROR);
+            return;
+        }
+        if (!board.undo()) {
+            println(err, Constants.NOTHING_TO_UNDO_ERROR);
+            return;
+        }
+        // The game is open again and may end differently this time
+        archived = false;
+        logUndo();
+        // The machine's reply is taken back together with the human's move
+        if (board.getCurrentPlayer() != Player.HUMAN) {
+            if (board.undo()) {
+                logUndo();
+            } else {
+                board.redo();
+                logRedo();
+                println(err, Constants.NOTHING_TO_UNDO_ERROR);
+            }
+        }
+    }
+
+    /**
+     * Makes the moves taken back by the last UNDO again, i.e. the move of
+     * the human and the reply of the machine.
+     */
+    private void redoMove() {
+        if (board == null) {
+            println(out, Constants.GAME_NOT_RUNNING_ERROR);
+            return;
+        }
+        if (!board.redo()) {
+            println(err, Constants.NOTHING_TO_REDO_ERROR);
+            return;
+        }
+        logRedo();
+        if (board.getCurrentPlayer() != Player.HUMAN && board.redo()) {
+            logRedo();
+        }
+    }
+
+    private void switchOpener() {
+        if (beginner == Player.HUMAN) {
+            beginner = Player.MACHINE;
+            println(out, Constants.MACHINE_OPENER);
+        } else {
+            beginner = Player.HUMAN;
+            println(out, Constants.HUMAN_OPENER);
+        }
+        if (journal != null) {
+            journal.opener(beginner);
+        }
+    }
+
+    private void checkIfGameIsOver() {
+        if (board == null) {
+            println(out, Constants.GAME_NOT_RUNNING_ERROR);
+            return;
+        }
+        if (board.isGameOver()) {
+            if (archive != null && !archived) {
+                // The game counts as archived even if writing fails, so a
+                // failing archive reports every game only once
+                archived = true;
+                try {
+                    archive.record(board);
+                } catch (UncheckedIOException e) {
+                    println(err, "Error! The game could not be archived: "
+                            + e.getCause() + ".");
+                }
+            }
+            if (board.getWinner() == Player.HUMAN) {
+                println(out, "Congratulations! You won.");
+            } else {
+                println(out, "Sorry! Machine wins.");
+            }
+        }
+    }
+
+    private void switchVerbose() {
+
+        if (tokens.equalsIgnoreCase(1, "ON")) {
+            verbose = true;
+        } else if (tokens.equalsIgnoreCase(1, "OFF")) {
+            verbose = false;
+        } else {
+            printInvalidInputError();
+            return;
+        }
+        if (journal != null) {
+            journal.verbose(verbose);
+        }
+    }
+
+    /**
+     * Prints a helpful info about how to use the trie, which commands are
+     * valid and what kind of input is accepted.
+     */
+    private void printHelp() {
+
+        String helpString = "NEW <s1> <s2> ... <sn>: Creates a new nim game "
+                + "with n >= 1 rows and si >= 1 sticks per row. The human "
+                + "player starts by default.\n"
+                + "MISERE <s1> <s2> ... <sn>: Creates a new misere game.\n"
+                + "SWITCH: Changes the opener of the next game.\n"
+                + "PRINT [<from> <to>]: Prints the current board, or its rows "
+                + "from <from> to <to>.\n"
+                + "UNDO: Takes back your last move and the machine's "
+                + "reply.\n"
+                + "REDO: Makes the moves taken back by UNDO again.\n"
+                + "STATS: Prints operation counters and latencies and the "
+                + "memory of the board, if the shell runs with "
+                + "-Dnim.metrics=true.\n"
+                + "VERBOSE (ON|OFF): Provides additional details about the "
+                + "state of the game\n"
+                + "QUIT: Quits the game"
+                + "HELP: Show this helpful guide\n";
+        println(out, helpString);
+
+    }
+
+    /**
+     * Prints the counters and latency percentiles of the instrumented
+     * operations.
+     */
+    private void printStats() {
+        if (!Metrics.ENABLED) {
+            println(err, "Error! Statistics are disabled, start the shell "
+                    + "with -Dnim.metrics=true.");
+            return;
+        }
+        print(out, Metrics.report());
+        if (board instanceof Nim) {
+            println(out, "board " + ((Nim) board).getFootprint());
+        }
+    }
+
+    /**
+     * Prints out the current game board, or the rows given by the
+     * arguments of the command. If verbose mode is enabled, additional
+     * information about the game, like the nim sum and the binary
+     * representation of the sticks, is also printed out. The rows are
+     * streamed to the output by the board.
+     */
+    private void printGame() {
+        if (board == null) {
+            println(out, Constants.GAME_NOT_RUNNING_ERROR);
+            return;
+        }
+        int from = 0;
+        int to = board.getRowCount();
+        if (tokens.size() > 1) {
+            from = tokens.intValue(1) - 1;
+            to = tokens.intValue(2);
+            if (from < 0 || to <= from || to > board.getRowCount()) {
+                printInvalidInputError();
+                return;
+            }
+        }
+        if (rowPrinter != null) {
+            rowPrinter.print(board, verbose, from, to);
+            return;
+        }
+        try {
+            board.render(out, verbose, from, to);
+            out.append('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * This method is just a helper method to make the code more readable. It
+     * prints an error message in case the input is invalid.
+     */
+    private void printInvalidInputError() {
+        println(err, "Error! The input is invalid.");
+    }
+
+    /**
+     * Prints a line to one of the sinks of the session.
+     * @param sink out or err of this session
+     * @param line object to print, converted by its toString method
+     */
+    private static void println(Appendable sink, Object line) {
+        try {
+            sink.append(String.valueOf(line)).append('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Prints text which ends with its own line break.
+     * @param sink out or err of this session
+     * @param text text to print
+     */
+    private static void print(Appendable sink, CharSequence text) {
+        try {
+            sink.append(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Gets the numbers of sticks given as arguments of a NEW or MISERE
+     * command. Like the rows of a game, at least two rows with one or more
+     * sticks each are required.
+     * @return numbers of sticks per row, null if the arguments are invalid.
+     */
+    private int[] parseSticks() {
+        if (tokens.size() < 3) {
+            return null;
+        }
+        for (int i = 1; i < tokens.size(); i++) {
+            if (tokens.intValue(i) < 1) {
+                return null;
+            }
+        }
+        return tokens.intValues(1);
+    }
+
+    /**
+     * The commands of the shell. Most commands are recognized by their first
+     * letter; commands sharing the first letter with another command must be
+     * given as the full word.
+     */
+    private enum Command {
+        NEW(true), MISERE(true), SWITCH(true), REMOVE(true), VERBOSE(true),
+        PRINT(true), HELP(true), UNDO(true), QUIT(true),
+        // REDO shares its first letter with REMOVE, STATS with SWITCH
+        REDO(false), STATS(false);
+
+        private static final Command[] BY_INITIAL = new Command[128];
+
+        private static final Command[] FULL_WORD;
+
+        static {
+            int fullWords = 0;
+            for (Command command : values()) {
+                if (command.byInitial) {
+                    BY_INITIAL[command.name().charAt(0)] = command;
+                } else {
+                    fullWords++;
+                }
+            }
+            FULL_WORD = new Command[fullWords];
+            for (Command command : values()) {
+                if (!command.byInitial) {
+                    FULL_WORD[--fullWords] = command;
+                }
+            }
+        }
+
+        private final boolean byInitial;
+
+        Command(boolean byInitial) {
+            this.byInitial = byInitial;
+        }
+
+        /**
+         * Looks up the command given by the first token of a line.
+         * @param tokens tokenized command line
+         * @return the command, or null if the line holds no valid command.
+         */
+        static Command lookup(CommandTokenizer tokens) {
+            for (Command command : FULL_WORD) {
+                if (tokens.equalsIgnoreCase(0, command.name())) {
+                    return command;
+                }
+            }
+            char initial = tokens.initial(0);
+            return initial < BY_INITIAL.length ? BY_INITIAL[initial] : null;
+        }
+    }
+
+}
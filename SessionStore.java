@@ -0,0 +1,745 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Crash-safe store of game sessions. Every change of a session, i.e. a new
+ * game, a move, an undo or redo, the opener and the verbose mode, is
+ * appended to a write-ahead log as a small binary record. From time to time
+ * the state of all sessions is written to a snapshot file, and the log
+ * starts over. On startup the store loads the latest snapshot through
+ * memory mapping and replays the log written after it, so all sessions are
+ * restored as they were when the process stopped.
+ *
+ * The files of the store are {@code snapshot-<generation>.bin} and
+ * {@code wal-<generation>.log} in one directory. A checkpoint switches to
+ * the log of the next generation, writes the snapshot of that generation
+ * to a temporary file, forces it to the disk and renames it, and then
+ * deletes the files of older generations. Sessions keep running during a
+ * checkpoint, so a snapshot may already contain changes which are also in
+ * the new log. Every record therefore carries the sequence number of the
+ * change within its session, and replaying skips the records a snapshot
+ * already contains.
+ *
+ * The log is written to the operating system at the end of every command,
+ * so it survives a crash of the process. It is forced to the disk at every
+ * checkpoint, and closing the store takes a last checkpoint.
+ *
+ * A snapshot consists of a header with a magic number, the version of the
+ * format and the generation, the sessions, the number of sessions and the
+ * CRC32C of everything before it. A session is written as its id, its
+ * sequence number, the opener, the verbose mode and the length of its
+ * encoded board, see {@link BoardCodec}, followed by the board.
+ *
+ * A log record consists of the length of its body, the CRC32C of the body
+ * and the body: the type of the record, the id of the session, the
+ * sequence number and the data of the record. Replaying stops at the first
+ * incomplete or damaged record, which is the end of the log after a crash.
+ */
+public final class SessionStore implements AutoCloseable {
+
+    /**
+     * Default number of log records after which a checkpoint is taken.
+     */
+    static final int DEFAULT_CHECKPOINT_INTERVAL = 1 << 20;
+
+    private static final int SNAPSHOT_MAGIC = 0x4E494D53;
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final int LOG_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Length of the header of a record: the length and the CRC of the body.
+     */
+    private static final int RECORD_HEADER = 8;
+
+    /**
+     * Length of the start of a record body: type, session id and sequence
+     * number.
+     */
+    private static final int BODY_HEADER = 1 + 8 + 8;
+
+    private static final byte NEW_GAME = 1;
+
+    private static final byte MOVE = 2;
+
+    private static final byte UNDO = 3;
+
+    private static final byte REDO = 4;
+
+    private static final byte OPENER = 5;
+
+    private static final byte VERBOSE = 6;
+
+    private static final byte CLOSE = 7;
+
+    private final Path directory;
+
+    private final int checkpointInterval;
+
+    private final Map<Long, Journal> journals = new HashMap<>();
+
+    private final AtomicBoolean checkpointRunning = new AtomicBoolean();
+
+    /**
+     * Serializes checkpoints, which share the temporary snapshot file.
+     */
+    private final Object checkpointLock = new Object();
+
+    private final CRC32C crc = new CRC32C();
+
+    private ByteBuffer buffer = ByteBuffer.allocate(LOG_BUFFER_SIZE);
+
+    private FileChannel log;
+
+    private long generation;
+
+    private long records;
+
+    private long nextId = 1;
+
+    private int restoredSessions;
+
+    private long restoreNanos;
+
+    /**
+     * The persistent state of one session: its board, the opener of the
+     * next game and the verbose mode. A restored board stays in its encoded
+     * form in the snapshot until it is needed, so restoring many sessions
+     * takes little time and memory.
+     *
+     * A session changes its journal only while it holds the journal's
+     * monitor, so a checkpoint sees the state between two commands.
+     */
+    public final class Journal {
+
+        private final long id;
+
+        private long sequence;
+
+        private Board board;
+
+        private ByteBuffer encodedBoard;
+
+        private Player beginner = Player.HUMAN;
+
+        private boolean verbose;
+
+        private boolean attached;
+
+        /**
+         * Whether the session has ended. A checkpoint which has collected
+         * the journal before must not write it any more, because its last
+         * record, which ends the session, would be skipped on replay.
+         */
+        private boolean closed;
+
+        Journal(long id) {
+            this.id = id;
+        }
+
+        /**
+         * @return id of the session
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Gets the board of the session, decoding it on the first call after
+         * a restore. The decoding holds the monitor of the journal, so a
+         * checkpoint never sees the board half decoded.
+         * @return the board, or null if no game has been started
+         */
+        public Board getBoard() {
+            synchronized (this) {
+                if (encodedBoard != null) {
+                    board = BoardCodec.decode(encodedBoard.duplicate());
+                    encodedBoard = null;
+                }
+                return board;
+            }
+        }
+
+        /**
+         * @return the opener of the next game
+         */
+        public Player getBeginner() {
+            return beginner;
+        }
+
+        /**
+         * @return whether verbose mode is on
+         */
+        public boolean isVerbose() {
+            return verbose;
+        }
+
+        /**
+         * Logs a new game on its initial board, before any move of it.
+         * @param newBoard board of the new game, or null if the session has
+         *        no game any more
+         */
+        public void newGame(Board newBoard) {
+            board = newBoard;
+            encodedBoard = null;
+            ByteBuffer body = record(NEW_GAME, newBoard == null ? 0
+                    : BoardCodec.encodedLength(newBoard));
+            if (newBoard != null) {
+                BoardCodec.encode(newBoard, body);
+            }
+            append(body);
+        }
+
+        /**
+         * Logs the last move made on the board of the session.
+         */
+        public void moved() {
+            ByteBuffer body = record(MOVE, 8);
+            body.putLong(board.getEncodedLastMove());
+            append(body);
+        }
+
+        /**
+         * Logs a move taken back on the board of the session.
+         */
+        public void undone() {
+            append(record(UNDO, 0));
+        }
+
+        /**
+         * Logs a move made again on the board of the session.
+         */
+        public void redone() {
+            append(record(REDO, 0));
+        }
+
+        /**
+         * Logs a new opener of the next game.
+         * @param player the opener
+         */
+        public void opener(Player player) {
+            beginner = player;
+            ByteBuffer body = record(OPENER, 1);
+            body.put((byte) player.ordinal());
+            append(body);
+        }
+
+        /**
+         * Logs the verbose mode.
+         * @param on whether verbose mode is on
+         */
+        public void verbose(boolean on) {
+            verbose = on;
+            ByteBuffer body = record(VERBOSE, 1);
+            body.put((byte) (on ? 1 : 0));
+            append(body);
+        }
+
+        /**
+         * Logs the end of the session, which is then removed from the store.
+         */
+        public void close() {
+            append(record(CLOSE, 0));
+            closed = true;
+            synchronized (SessionStore.this) {
+                journals.remove(id);
+            }
+        }
+
+        /**
+         * Writes the records of the last command to the log, see
+         * {@link SessionStore#commit()}.
+         */
+        public void commit() {
+            SessionStore.this.commit();
+        }
+
+        /**
+         * Lets the session using this journal go, so that it can be resumed
+         * by another connection. A session which has never changed anything
+         * is removed instead.
+         */
+        public void detach() {
+            synchronized (SessionStore.this) {
+                attached = false;
+                if (sequence == 0) {
+                    journals.remove(id);
+                }
+            }
+        }
+
+        private ByteBuffer record(byte type, int length) {
+            ByteBuffer body = ByteBuffer.allocate(BODY_HEADER + length);
+            body.put(type).putLong(id).putLong(++sequence);
+            return body;
+        }
+
+        /**
+         * Applies a replayed record to the state of the session.
+         * @param type type of the record
+         * @param data data of the record
+         * @return false if the record ends the session
+         */
+        private boolean apply(byte type, ByteBuffer data) {
+            switch (type) {
+                case NEW_GAME:
+                    board = data.hasRemaining() ? BoardCodec.decode(data)
+                            : null;
+                    encodedBoard = null;
+                    break;
+                case MOVE:
+                    if (getBoard() != null) {
+                        board.play(data.getLong());
+                    }
+                    break;
+                case UNDO:
+                    if (getBoard() != null) {
+                        board.undo();
+                    }
+                    break;
+                case REDO:
+                    if (getBoard() != null) {
+                        board.redo();
+                    }
+                    break;
+                case OPENER:
+                    beginner = Player.values()[data.get()];
+                    break;
+                case VERBOSE:
+                    verbose = data.get() != 0;
+                    break;
+                case CLOSE:
+                    return false;
+                default:
+                    throw new IllegalArgumentException("Unknown record type "
+                            + type + ".");
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Opens the store in a directory and restores all sessions from its
+     * files. Checkpoints are taken every
+     * {@value #DEFAULT_CHECKPOINT_INTERVAL} log records.
+     * @param directory directory of the store, created if necessary
+     * @throws IOException if the files of the store can not be read
+     */
+    public SessionStore(Path directory) throws IOException {
+        this(directory, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Opens the store in a directory and restores all sessions from its
+     * files.
+     * @param directory directory of the store, created if necessary
+     * @param checkpointInterval number of log records after which a
+     *        checkpoint is taken in the background
+     * @throws IOException if the files of the store can not be read
+     * @throws IllegalStateException if a snapshot or the log is damaged
+     *         other than by a crash while it was written
+     */
+    public SessionStore(Path directory, int checkpointInterval)
+            throws IOException {
+        if (checkpointInterval < 1) {
+            throw new IllegalArgumentException("The checkpoint interval must "
+                    + "be positive.");
+        }
+        this.directory = directory;
+        this.checkpointInterval = checkpointInterval;
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        restore();
+        restoredSessions = journals.size();
+        restoreNanos = System.nanoTime() - start;
+        log = FileChannel.open(logFile(++generation),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Creates the journal of a new session.
+     * @return journal with a new id, attached to the caller
+     */
+    public synchronized Journal create() {
+        Journal journal = new Journal(nextId++);
+        journal.attached = true;
+        journals.put(journal.id, journal);
+        return journal;
+    }
+
+    /**
+     * Attaches to the journal of a session, creating the session if it does
+     * not exist. A journal can only be attached to one session at a time.
+     * @param id id of the session
+     * @return the journal, or null if it is attached already
+     */
+    public synchronized Journal attach(long id) {
+        Journal journal = journals.get(id);
+        if (journal == null) {
+            journal = new Journal(id);
+            journals.put(id, journal);
+            nextId = Math.max(nextId, id + 1);
+        } else if (journal.attached) {
+            return null;
+        }
+        journal.attached = true;
+        return journal;
+    }
+
+    /**
+     * Attaches to the journal of an existing session, e.g. a session
+     * restored after a restart.
+     * @param id id of the session
+     * @return the journal, or null if there is no such session or it is
+     *         attached already
+     */
+    public synchronized Journal resume(long id) {
+        return journals.containsKey(id) ? attach(id) : null;
+    }
+
+    /**
+     * @return number of sessions in the store
+     */
+    public synchronized int getSessionCount() {
+        return journals.size();
+    }
+
+    /**
+     * @return number of sessions restored when the store was opened
+     */
+    public int getRestoredSessions() {
+        return restoredSessions;
+    }
+
+    /**
+     * @return time it took to restore the sessions, in nanoseconds
+     */
+    public long getRestoreNanos() {
+        return restoreNanos;
+    }
+
+    /**
+     * Appends a record to the log buffer.
+     */
+    private synchronized void append(ByteBuffer body) {
+        body.flip();
+        int length = RECORD_HEADER + body.remaining();
+        if (buffer.remaining() < length) {
+            writeBuffer();
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length);
+            }
+        }
+        crc.reset();
+        crc.update(body.array(), 0, body.limit());
+        buffer.putInt(body.remaining()).putInt((int) crc.getValue())
+                .put(body);
+        records++;
+    }
+
+    /**
+     * Writes the records of the last command to the log and starts a
+     * checkpoint in the background if the log has grown long enough. Called
+     * at the end of every command.
+     */
+    public void commit() {
+        boolean checkpoint;
+        synchronized (this) {
+            writeBuffer();
+            checkpoint = records >= checkpointInterval;
+        }
+        if (checkpoint && checkpointRunning.compareAndSet(false, true)) {
+            Thread thread = new Thread(() -> {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    checkpointRunning.set(false);
+                }
+            }, "nim-checkpoint");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void writeBuffer() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Writes the state of all sessions to a new snapshot and deletes the
+     * log and snapshot written before.
+     * @throws IOException if the snapshot can not be written
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            writeSnapshot();
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        long snapshotGeneration;
+        List<Journal> all;
+        synchronized (this) {
+            writeBuffer();
+            log.force(false);
+            log.close();
+            snapshotGeneration = ++generation;
+            log = FileChannel.open(logFile(generation),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            records = 0;
+            all = new ArrayList<>(journals.values());
+        }
+        Path temporary = directory.resolve("snapshot.tmp");
+        try (FileOutputStream file = new FileOutputStream(
+                temporary.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(file, LOG_BUFFER_SIZE),
+                    new CRC32C());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(snapshotGeneration);
+            int count = 0;
+            for (Journal journal : all) {
+                synchronized (journal) {
+                    if (!journal.closed) {
+                        writeSession(out, journal);
+                        count++;
+                    }
+                }
+            }
+            out.writeInt(count);
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temporary, snapshotFile(snapshotGeneration),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        for (Map.Entry<Long, Path> file : files("snapshot-", ".bin")
+                .entrySet()) {
+            if (file.getKey() < snapshotGeneration) {
+                Files.deleteIfExists(file.getValue());
+            }
+        }
+        for (Map.Entry<Long, Path> file : files("wal-", ".log").entrySet()) {
+            if (file.getKey() < snapshotGeneration) {
+                Files.deleteIfExists(file.getValue());
+            }
+        }
+    }
+
+    private static void writeSession(DataOutputStream out, Journal journal)
+            throws IOException {
+        out.writeLong(journal.id);
+        out.writeLong(journal.sequence);
+        out.writeByte(journal.beginner.ordinal());
+        out.writeBoolean(journal.verbose);
+        if (journal.encodedBoard != null) {
+            ByteBuffer encoded = journal.encodedBoard.duplicate();
+            out.writeInt(encoded.remaining());
+            byte[] bytes = new byte[encoded.remaining()];
+            encoded.get(bytes);
+            out.write(bytes);
+        } else if (journal.board != null) {
+            byte[] bytes = BoardCodec.encode(journal.board);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            out.writeInt(-1);
+        }
+    }
+
+    /**
+     * Loads the latest snapshot and replays the logs written after it.
+     */
+    private void restore() throws IOException {
+        Map<Long, Path> snapshots = files("snapshot-", ".bin");
+        if (!snapshots.isEmpty()) {
+            long latest = ((TreeMap<Long, Path>) snapshots).lastKey();
+            loadSnapshot(snapshots.get(latest));
+            generation = latest;
+        }
+        for (Map.Entry<Long, Path> file : files("wal-", ".log").entrySet()) {
+            if (file.getKey() >= generation) {
+                replay(file.getValue());
+                generation = file.getKey();
+            }
+        }
+    }
+
+    private void loadSnapshot(Path file) throws IOException {
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Snapshot " + file
+                        + " is too large.");
+            }
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+        if (in.limit() < 4 + 4 + 8 + 4 + 8) {
+            throw new IllegalStateException("Snapshot " + file
+                    + " is damaged.");
+        }
+        CRC32C checksum = new CRC32C();
+        checksum.update(in.duplicate().limit(in.limit() - 8));
+        if (in.getLong(in.limit() - 8) != checksum.getValue()
+                || in.getInt() != SNAPSHOT_MAGIC
+                || in.getInt() != SNAPSHOT_VERSION) {
+            throw new IllegalStateException("Snapshot " + file
+                    + " is damaged.");
+        }
+        in.getLong();
+        // The number of sessions follows them, just before the checksum
+        int count = in.getInt(in.limit() - 12);
+        for (int i = 0; i < count; i++) {
+            Journal journal = new Journal(in.getLong());
+            journal.sequence = in.getLong();
+            journal.beginner = Player.values()[in.get()];
+            journal.verbose = in.get() != 0;
+            int length = in.getInt();
+            if (length >= 0) {
+                journal.encodedBoard = in.slice().limit(length);
+                in.position(in.position() + length);
+            }
+            journals.put(journal.id, journal);
+            nextId = Math.max(nextId, journal.id + 1);
+        }
+    }
+
+    /**
+     * Applies the records of a log which are newer than the state of their
+     * sessions, up to the first incomplete or damaged record.
+     */
+    private void replay(Path file) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Log " + file
+                        + " is too large.");
+            }
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+        CRC32C checksum = new CRC32C();
+        while (in.remaining() >= RECORD_HEADER) {
+            int length = in.getInt();
+            int expected = in.getInt();
+            if (length < BODY_HEADER || length > in.remaining()) {
+                return;
+            }
+            ByteBuffer body = in.slice().limit(length);
+            checksum.reset();
+            checksum.update(body.duplicate());
+            if ((int) checksum.getValue() != expected) {
+                return;
+            }
+            in.position(in.position() + length);
+            byte type = body.get();
+            long id = body.getLong();
+            long sequence = body.getLong();
+            nextId = Math.max(nextId, id + 1);
+            Journal journal = journals.get(id);
+            if (journal == null) {
+                if (type == CLOSE) {
+                    continue;
+                }
+                journal = new Journal(id);
+                journals.put(id, journal);
+            }
+            if (sequence <= journal.sequence) {
+                continue;
+            }
+            journal.sequence = sequence;
+            try {
+                if (!journal.apply(type, body)) {
+                    journals.remove(id);
+                }
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                throw new IllegalStateException("Log " + file + " does not "
+                        + "match the state of session " + id + ".", e);
+            }
+        }
+    }
+
+    /**
+     * Finds the files of the store with a prefix and suffix, by generation.
+     */
+    private Map<Long, Path> files(String prefix, String suffix)
+            throws IOException {
+        Map<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                directory, prefix + "*" + suffix)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(prefix.length(),
+                            name.length() - suffix.length())), file);
+                } catch (NumberFormatException e) {
+                    // Not a file of the store.
+                }
+            }
+        }
+        return files;
+    }
+
+    private Path logFile(long logGeneration) {
+        return directory.resolve("wal-" + logGeneration + ".log");
+    }
+
+    private Path snapshotFile(long snapshotGeneration) {
+        return directory.resolve("snapshot-" + snapshotGeneration + ".bin");
+    }
+
+    /**
+     * Takes a last checkpoint, so the next start only has to load the
+     * snapshot, and closes the log.
+     * @throws IOException if the snapshot or the log can not be written
+     */
+    @Override
+    public void close() throws IOException {
+        checkpoint();
+        synchronized (this) {
+            writeBuffer();
+            log.force(false);
+            log.close();
+        }
+    }
+
+}
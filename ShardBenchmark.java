@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Measures how the throughput of a sharded deployment grows with the
+ * number of worker processes. It runs a {@link ShardRouter} in this process
+ * and starts one local {@link ShardWorker} process after the other. After
+ * every new worker, it waits until the router has moved the sessions the
+ * worker owns, and then drives the router with a {@link LoadClient} for a
+ * fixed time. The sessions of earlier rounds stay in the deployment, so
+ * every round also moves a share of them to the new worker.
+ *
+ * At the end it reports the commands per second for every number of
+ * workers, relative to a single worker.
+ *
+ * Usage: {@code java ShardBenchmark [--workers 4] [--sessions 1000]
+ * [--pipeline 4] [--seconds 10] [--worker-heap 256m]}
+ */
+public final class ShardBenchmark {
+
+    private int workers = 4;
+
+    private int sessions = 1000;
+
+    private int pipeline = 4;
+
+    private long seconds = 10;
+
+    private String workerHeap = "256m";
+
+    private void run() throws IOException, InterruptedException,
+            ExecutionException {
+        List<Double> throughputs = new ArrayList<>();
+        try (ShardRouter router = new ShardRouter(0)) {
+            Thread loop = new Thread(() -> {
+                try {
+                    router.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "nim-router");
+            loop.setDaemon(true);
+            loop.start();
+            for (int i = 1; i <= workers; i++) {
+                long start = System.nanoTime();
+                int moved = router.startWorker("-Xmx" + workerHeap).get();
+                System.out.println(String.format(Locale.ROOT,
+                        "%d worker(s): moved %d of %d session(s) in %.1f ms",
+                        i, moved, router.getSessionCount(),
+                        (System.nanoTime() - start) / 1e6));
+                LoadClient client = new LoadClient();
+                client.parseArguments(new String[] {
+                    "--port", Integer.toString(router.getPort()),
+                    "--sessions", Integer.toString(sessions),
+                    "--pipeline", Integer.toString(pipeline),
+                    "--seconds", Long.toString(seconds)});
+                throughputs.add(client.run());
+            }
+        }
+        System.out.println("workers  commands/s  speedup");
+        for (int i = 0; i < throughputs.size(); i++) {
+            System.out.println(String.format(Locale.ROOT, "%7d  %10.0f  %7.2f",
+                    i + 1, throughputs.get(i),
+                    throughputs.get(i) / throughputs.get(0)));
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--workers":
+                    workers = Integer.parseInt(value);
+                    break;
+                case "--sessions":
+                    sessions = Integer.parseInt(value);
+                    break;
+                case "--pipeline":
+                    pipeline = Integer.parseInt(value);
+                    break;
+                case "--seconds":
+                    seconds = Long.parseLong(value);
+                    break;
+                case "--worker-heap":
+                    workerHeap = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option "
+                            + args[i]);
+            }
+        }
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least one worker is "
+                    + "required.");
+        }
+    }
+
+    /**
+     * Main method of the benchmark.
+     * @param args options as described in the class comment
+     * @throws Exception if a worker can not be started or the load fails
+     */
+    public static void main(String[] args) throws Exception {
+        ShardBenchmark benchmark = new ShardBenchmark();
+        benchmark.parseArguments(args);
+        benchmark.run();
+    }
+
+}
@@ -0,0 +1,974 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Front end of a sharded deployment, in which several {@link ShardWorker}
+ * processes on the same machine each host a partition of the game sessions.
+ * Clients connect to the router like to a {@link GameServer} with a store:
+ * every connection is greeted with the id of its new session, speaks the
+ * command language of the shell and may continue an earlier session with
+ * {@code RESUME <id>}. The router forwards every command line to the worker
+ * of its session and the answer back to the client; it keeps no game state
+ * itself, only the worker of every session.
+ *
+ * The sessions are assigned to the workers by consistent hashing: every
+ * worker owns {@link #VIRTUAL_NODES} points on a ring of 64 bit hashes, and
+ * a session belongs to the worker of the first point at or after the hash
+ * of its id. When a worker is added or removed, only the sessions between
+ * the points of that worker and their predecessors change their worker.
+ * Those sessions are moved by taking their state out of the old worker and
+ * handing it to the new one; commands which arrive for a session while it
+ * moves are held back and sent to the new worker afterwards, so a client
+ * does not notice the move.
+ *
+ * The router serves all connections with one selector on the thread
+ * calling {@link #run()}. Workers are added and removed from any thread;
+ * the changes are carried out by the event loop.
+ *
+ * Usage: {@code java ShardRouter [--port 7777] [--workers 2]}. The router
+ * starts the given number of local workers and then reads administrative
+ * commands from the standard input: {@code ADD} starts another local
+ * worker, {@code ADD <port>} connects to a running worker,
+ * {@code REMOVE <port>} moves the sessions off a worker and stops it, and
+ * {@code STATUS} prints the number of workers and sessions.
+ */
+public final class ShardRouter implements AutoCloseable {
+
+    /**
+     * Number of points of every worker on the ring. More points spread the
+     * sessions more evenly over the workers.
+     */
+    static final int VIRTUAL_NODES = 64;
+
+    /**
+     * Amount of pending output above which a connection is not read from
+     * until the client has received most of it.
+     */
+    private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Marks an answer of a worker which is not passed on, e.g. to
+     * {@link ShardWorker#IMPORT}.
+     */
+    private static final Object IGNORED = new Object();
+
+    private final ServerSocketChannel server;
+
+    private final Selector selector;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The points of the workers on the ring. Changed by the event loop
+     * only, like all other state of the routing.
+     */
+    private final TreeMap<Long, Worker> ring = new TreeMap<>();
+
+    private final List<Worker> workers = new ArrayList<>();
+
+    /**
+     * The sessions which have received a command, by id.
+     */
+    private final Map<Long, Route> routes = new HashMap<>();
+
+    /**
+     * Rebalancing calls waiting until no session moves any more.
+     */
+    private final List<CompletableFuture<Integer>> rebalancing =
+            new ArrayList<>();
+
+    private final ByteBuffer readBuffer =
+            ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final List<Process> processes = new ArrayList<>();
+
+    private long nextId = 1;
+
+    private int moving;
+
+    private int moved;
+
+    private volatile int workerCount;
+
+    private volatile int sessionCount;
+
+    private volatile boolean running = true;
+
+    /**
+     * A session which has received a command: the worker hosting it and
+     * the connection it is attached to.
+     */
+    private static final class Route {
+
+        private final long id;
+
+        private Worker worker;
+
+        /**
+         * Connection using the session, or null if it can be resumed.
+         */
+        private Connection connection;
+
+        /**
+         * Whether the session is being moved to another worker.
+         */
+        private boolean moving;
+
+        Route(long id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Opens the server socket on the loopback interface. The router has no
+     * workers yet.
+     * @param port port to listen on, 0 for any free port
+     * @throws IOException if the server socket can not be opened
+     */
+    public ShardRouter(int port) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Gets the port the router listens on.
+     * @return the local port
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * @return number of workers sessions are assigned to
+     */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * @return number of sessions which have received a command and have not
+     *         ended
+     */
+    public int getSessionCount() {
+        return sessionCount;
+    }
+
+    /**
+     * Connects to a running worker and moves the sessions it owns on the
+     * ring to it.
+     * @param address address of the worker
+     * @return future completed with the number of moved sessions once no
+     *         session moves any more
+     * @throws IOException if the worker can not be reached
+     */
+    public CompletableFuture<Integer> addWorker(InetSocketAddress address)
+            throws IOException {
+        return addWorker(address, null);
+    }
+
+    /**
+     * Starts a worker process on this machine, with the class path of this
+     * process, and adds it. The worker ends with this process.
+     * @param jvmOptions options of the virtual machine of the worker, e.g.
+     *        its heap size
+     * @return future completed with the number of moved sessions once no
+     *         session moves any more
+     * @throws IOException if the worker can not be started or reached
+     */
+    public CompletableFuture<Integer> startWorker(String... jvmOptions)
+            throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java")
+                .toString());
+        command.addAll(Arrays.asList(jvmOptions));
+        command.addAll(Arrays.asList("-cp",
+                System.getProperty("java.class.path"), "ShardWorker",
+                "--attached"));
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        synchronized (processes) {
+            processes.add(process);
+        }
+        String line = new BufferedReader(new InputStreamReader(
+                process.getInputStream(), StandardCharsets.US_ASCII))
+                .readLine();
+        if (line == null) {
+            process.destroy();
+            throw new IOException("The worker process did not start.");
+        }
+        int port = Integer.parseInt(line.replaceAll("\\D", ""));
+        return addWorker(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), process);
+    }
+
+    private CompletableFuture<Integer> addWorker(InetSocketAddress address,
+            Process process) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        return submit(() -> {
+            Worker worker = new Worker(address, channel, process);
+            try {
+                worker.key = channel.register(selector, SelectionKey.OP_READ,
+                        worker);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            workers.add(worker);
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(point(address, i), worker);
+            }
+            workerCount = ring.size() / VIRTUAL_NODES;
+        });
+    }
+
+    /**
+     * Moves all sessions off a worker and disconnects from it, stopping its
+     * process if the router started it.
+     * @param port port of the worker on the loopback interface
+     * @return future completed with the number of moved sessions once no
+     *         session moves any more
+     */
+    public CompletableFuture<Integer> removeWorker(int port) {
+        return submit(() -> {
+            Worker worker = null;
+            for (Worker w : workers) {
+                if (!w.retiring && w.address.getPort() == port) {
+                    worker = w;
+                }
+            }
+            if (worker == null) {
+                throw new IllegalArgumentException("No worker on port "
+                        + port + ".");
+            }
+            if (workerCount == 1) {
+                throw new IllegalStateException("The last worker can not be "
+                        + "removed.");
+            }
+            worker.retiring = true;
+            ring.values().removeIf(w -> w.retiring);
+            workerCount = ring.size() / VIRTUAL_NODES;
+        });
+    }
+
+    /**
+     * Lets the event loop change the ring and move the sessions which
+     * changed their worker.
+     */
+    private CompletableFuture<Integer> submit(Runnable change) {
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+        tasks.add(() -> {
+            try {
+                change.run();
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+                return;
+            }
+            rebalance(done);
+        });
+        selector.wakeup();
+        return done;
+    }
+
+    /**
+     * Computes a point of a worker on the ring.
+     */
+    private static long point(InetSocketAddress address, int node) {
+        return mix((long) address.getPort() << 32 | node);
+    }
+
+    /**
+     * Mixes the bits of a number, like the finalizer of SplitMix64, so
+     * consecutive session ids and ports spread over the whole ring.
+     */
+    static long mix(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ z >>> 30) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ z >>> 27) * 0x94D049BB133111EBL;
+        return z ^ z >>> 31;
+    }
+
+    /**
+     * Finds the worker owning a session on the ring.
+     * @return the worker, or null if there is none
+     */
+    private Worker owner(long id) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, Worker> entry = ring.ceilingEntry(mix(id));
+        return (entry != null ? entry : ring.firstEntry()).getValue();
+    }
+
+    /**
+     * Starts moving every session whose worker is not its owner on the
+     * ring, and retires the workers left without sessions.
+     */
+    private void rebalance(CompletableFuture<Integer> done) {
+        for (Route route : routes.values()) {
+            if (!route.moving && owner(route.id) != route.worker) {
+                route.moving = true;
+                moving++;
+                route.worker.send(ShardWorker.EXPORT, route.id, route);
+            }
+        }
+        rebalancing.add(done);
+        for (Worker worker : new ArrayList<>(workers)) {
+            worker.retireIfDrained();
+        }
+        completeRebalancing();
+    }
+
+    private void completeRebalancing() {
+        if (moving == 0) {
+            for (CompletableFuture<Integer> done : rebalancing) {
+                done.complete(moved);
+            }
+            rebalancing.clear();
+            moved = 0;
+        }
+    }
+
+    /**
+     * Hands the state of a session taken out of its old worker to its new
+     * worker, and sends the commands held back meanwhile.
+     */
+    private void moved(Route route, byte[] state) {
+        route.moving = false;
+        moving--;
+        if (routes.get(route.id) == route) {
+            route.worker.sessions--;
+            Worker target = owner(route.id);
+            if (target == null) {
+                routes.remove(route.id);
+                if (route.connection != null) {
+                    route.connection.close();
+                }
+            } else {
+                route.worker = target;
+                target.sessions++;
+                target.send(ShardWorker.IMPORT, route.id, state, IGNORED);
+                moved++;
+                if (route.connection != null) {
+                    route.connection.drain();
+                    route.connection.flush();
+                }
+            }
+        }
+        completeRebalancing();
+    }
+
+    /**
+     * Serves the connections and workers until the router is closed.
+     * @throws IOException if the selector fails
+     */
+    public void run() throws IOException {
+        try {
+            while (running) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys =
+                        selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.attachment() instanceof Worker) {
+                        ((Worker) key.attachment()).serve();
+                    } else {
+                        ((Connection) key.attachment()).serve();
+                    }
+                }
+                for (Worker worker : workers.toArray(new Worker[0])) {
+                    worker.flush();
+                }
+                sessionCount = routes.size();
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel,
+                    new Route(nextId++));
+            connection.key = channel.register(selector, SelectionKey.OP_READ,
+                    connection);
+            connection.greet();
+            connection.flush();
+        }
+    }
+
+    /**
+     * Stops serving, closes all connections and stops the worker processes
+     * started by the router. The sessions are lost.
+     * @throws IOException if closing the server socket fails
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        server.close();
+        synchronized (processes) {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * Connection to a worker, with the requests waiting for their answers
+     * in the order they were sent.
+     */
+    private final class Worker {
+
+        private final InetSocketAddress address;
+
+        private final SocketChannel channel;
+
+        /**
+         * Process of the worker if the router started it, otherwise null.
+         */
+        private final Process process;
+
+        /**
+         * For every request sent and not answered, the connection the
+         * answer is for, the route of a moving session or {@link #IGNORED}.
+         */
+        private final ArrayDeque<Object> pending = new ArrayDeque<>();
+
+        private SelectionKey key;
+
+        private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+
+        /**
+         * Number of sessions hosted by the worker.
+         */
+        private int sessions;
+
+        /**
+         * Whether the worker is removed once its sessions have moved.
+         */
+        private boolean retiring;
+
+        Worker(InetSocketAddress address, SocketChannel channel,
+                Process process) {
+            this.address = address;
+            this.channel = channel;
+            this.process = process;
+        }
+
+        void send(byte type, long id, Object waiting) {
+            send(type, id, new byte[0], waiting);
+        }
+
+        /**
+         * Appends a request to the output, which is written at the end of
+         * the round of the event loop.
+         */
+        void send(byte type, long id, byte[] payload, Object waiting) {
+            output = reserve(output, 4 + ShardWorker.FRAME_HEADER
+                    + payload.length);
+            output.putInt(ShardWorker.FRAME_HEADER + payload.length)
+                    .put(type).putLong(id).put(payload);
+            pending.add(waiting);
+        }
+
+        void serve() {
+            try {
+                if (key.isReadable()) {
+                    read();
+                }
+                flush();
+            } catch (IOException | RuntimeException e) {
+                lost();
+            }
+        }
+
+        /**
+         * Reads what is available and handles every complete answer.
+         */
+        private void read() throws IOException {
+            if (channel.read(input) < 0) {
+                throw new IOException("The worker closed the connection.");
+            }
+            input.flip();
+            int needed = 0;
+            while (input.remaining() >= 4) {
+                int length = input.getInt(input.position());
+                if (length < ShardWorker.FRAME_HEADER
+                        || length > ShardWorker.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length
+                            + ".");
+                }
+                if (input.remaining() < 4 + length) {
+                    needed = 4 + length;
+                    break;
+                }
+                input.getInt();
+                byte type = input.get();
+                long id = input.getLong();
+                byte[] payload = new byte[length - ShardWorker.FRAME_HEADER];
+                input.get(payload);
+                answered(type, id, payload);
+            }
+            input.compact();
+            if (needed > input.capacity()) {
+                input = reserve(input, needed - input.position());
+            }
+        }
+
+        private void answered(byte type, long id, byte[] payload) {
+            Object waiting = pending.poll();
+            if (waiting instanceof Connection) {
+                Connection connection = (Connection) waiting;
+                if (type == ShardWorker.CLOSED) {
+                    Route route = routes.remove(id);
+                    if (route != null) {
+                        route.worker.sessions--;
+                    }
+                }
+                connection.answered(payload);
+            } else if (waiting instanceof Route) {
+                moved((Route) waiting, payload);
+                retireIfDrained();
+            }
+        }
+
+        /**
+         * Writes as much of the output as the socket takes.
+         */
+        void flush() {
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                if (output.position() > 0) {
+                    output.flip();
+                    channel.write(output);
+                    output.compact();
+                }
+            } catch (IOException e) {
+                lost();
+                return;
+            }
+            key.interestOps(output.position() > 0
+                    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                    : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Disconnects from a retiring worker once it has no sessions and no
+         * unanswered requests.
+         */
+        void retireIfDrained() {
+            if (retiring && sessions == 0 && pending.isEmpty()) {
+                disconnect();
+            }
+        }
+
+        private void disconnect() {
+            workers.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // The worker is gone either way.
+            }
+            if (process != null) {
+                process.destroy();
+                synchronized (processes) {
+                    processes.remove(process);
+                }
+            }
+        }
+
+        /**
+         * Gives up a worker which failed. Its sessions are lost, and the
+         * connections using them are closed.
+         */
+        private void lost() {
+            if (!workers.contains(this)) {
+                return;
+            }
+            ring.values().removeIf(w -> w == this);
+            workerCount = ring.size() / VIRTUAL_NODES;
+            disconnect();
+            for (Object waiting : pending) {
+                if (waiting instanceof Connection) {
+                    ((Connection) waiting).close();
+                } else if (waiting instanceof Route) {
+                    ((Route) waiting).moving = false;
+                    moving--;
+                }
+            }
+            pending.clear();
+            Iterator<Route> all = routes.values().iterator();
+            while (all.hasNext()) {
+                Route route = all.next();
+                if (route.worker == this) {
+                    all.remove();
+                    if (route.connection != null) {
+                        route.connection.close();
+                    }
+                }
+            }
+            completeRebalancing();
+        }
+    }
+
+    /**
+     * Makes room for some bytes in a buffer in write mode, growing it if
+     * necessary.
+     */
+    private static ByteBuffer reserve(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(
+                buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        return larger.put(buffer);
+    }
+
+    /**
+     * State of one client connection: its session, the partial command line
+     * received so far, the lines held back and the output not yet written to
+     * the client.
+     */
+    private final class Connection {
+
+        private final SocketChannel channel;
+
+        private final StringBuilder line = new StringBuilder();
+
+        private final ArrayDeque<String> held = new ArrayDeque<>();
+
+        private final CommandTokenizer tokens = new CommandTokenizer();
+
+        private SelectionKey key;
+
+        private Route route;
+
+        private ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+
+        /**
+         * Number of commands sent to a worker and not answered.
+         */
+        private int inFlight;
+
+        /**
+         * Whether the QUIT command has been sent, after which no further
+         * line is read.
+         */
+        private boolean quit;
+
+        private boolean closed;
+
+        Connection(SocketChannel channel, Route route) {
+            this.channel = channel;
+            this.route = route;
+            route.connection = this;
+        }
+
+        void greet() {
+            append("Session " + route.id + ".\n" + Constants.HUMAN_OPENER
+                    + "\n" + Constants.SHELL_PROMPT);
+        }
+
+        void serve() {
+            try {
+                if (key.isReadable()) {
+                    read();
+                }
+                flush();
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        /**
+         * Reads what is available and sends every complete line, unless it
+         * has to be held back.
+         */
+        private void read() throws IOException {
+            readBuffer.clear();
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                char c = (char) (readBuffer.get() & 0xFF);
+                if (c == '\n') {
+                    held.add(line.toString());
+                    line.setLength(0);
+                } else if (c != '\r') {
+                    if (line.length() >= GameServer.MAX_LINE_LENGTH) {
+                        throw new IOException("Command line too long.");
+                    }
+                    line.append(c);
+                }
+            }
+            drain();
+        }
+
+        /**
+         * Sends the held lines in order. Lines wait while the session
+         * moves, and RESUME waits for the answers of the commands before
+         * it, since it changes the session they belong to.
+         */
+        void drain() {
+            while (!held.isEmpty() && !quit) {
+                tokens.tokenize(held.peek());
+                boolean resume = tokens.size() == 2
+                        && tokens.equalsIgnoreCase(0, "RESUME");
+                if (resume ? inFlight > 0 : route.moving) {
+                    break;
+                }
+                String command = held.poll();
+                if (resume) {
+                    resume(tokens.intValue(1));
+                } else {
+                    quit = Session.isQuit(tokens);
+                    send(command);
+                }
+            }
+            if (quit) {
+                held.clear();
+            }
+        }
+
+        private void send(String command) {
+            if (route.worker == null) {
+                Worker owner = owner(route.id);
+                if (owner == null) {
+                    append("Error! No worker is available.\n"
+                            + Constants.SHELL_PROMPT);
+                    quit = false;
+                    return;
+                }
+                route.worker = owner;
+                owner.sessions++;
+                routes.put(route.id, route);
+            }
+            route.worker.send(ShardWorker.COMMAND, route.id,
+                    command.getBytes(StandardCharsets.ISO_8859_1), this);
+            inFlight++;
+        }
+
+        /**
+         * Continues a session of an earlier connection instead of the
+         * current one.
+         */
+        private void resume(int id) {
+            Route resumed = routes.get((long) id);
+            if (resumed == null || resumed.connection != null) {
+                append("Error! Session " + id + " can not be resumed.\n"
+                        + Constants.SHELL_PROMPT);
+                return;
+            }
+            route.connection = null;
+            route = resumed;
+            route.connection = this;
+            append("Session " + id + " resumed.\n" + Constants.SHELL_PROMPT);
+        }
+
+        /**
+         * Passes the answer of a worker on to the client.
+         */
+        void answered(byte[] payload) {
+            inFlight--;
+            if (closed) {
+                return;
+            }
+            output = reserve(output, payload.length);
+            output.put(payload);
+            drain();
+            flush();
+        }
+
+        private void append(String text) {
+            output = reserve(output, text.length());
+            for (int i = 0; i < text.length(); i++) {
+                output.put((byte) text.charAt(i));
+            }
+        }
+
+        /**
+         * Writes as much pending output as the socket takes. Reading is
+         * suspended while a lot of output is pending or lines are held
+         * back, so a client can not make the router buffer without bound.
+         */
+        void flush() {
+            if (closed) {
+                return;
+            }
+            try {
+                if (output.position() > 0) {
+                    output.flip();
+                    channel.write(output);
+                    output.compact();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            boolean pendingOutput = output.position() > 0;
+            if (!pendingOutput && quit && inFlight == 0) {
+                close();
+                return;
+            }
+            if (!pendingOutput && output.capacity() > BUFFER_SIZE) {
+                output = ByteBuffer.allocate(BUFFER_SIZE);
+            }
+            key.interestOps((pendingOutput ? SelectionKey.OP_WRITE : 0)
+                    | (output.position() <= MAX_PENDING_OUTPUT
+                            && held.isEmpty() && !quit
+                            ? SelectionKey.OP_READ : 0));
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (route.connection == this) {
+                route.connection = null;
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // The connection is gone either way.
+            }
+        }
+    }
+
+    /**
+     * Reads administrative commands from the standard input until it ends,
+     * see the class comment.
+     */
+    private void administer() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                System.in, StandardCharsets.US_ASCII));
+        String command;
+        while ((command = in.readLine()) != null) {
+            String[] words = command.trim().split("\\s+");
+            try {
+                CompletableFuture<Integer> done;
+                if (words[0].equalsIgnoreCase("ADD")) {
+                    done = words.length > 1 ? addWorker(new InetSocketAddress(
+                            InetAddress.getLoopbackAddress(),
+                            Integer.parseInt(words[1]))) : startWorker();
+                } else if (words[0].equalsIgnoreCase("REMOVE")
+                        && words.length > 1) {
+                    done = removeWorker(Integer.parseInt(words[1]));
+                } else if (words[0].equalsIgnoreCase("STATUS")) {
+                    done = CompletableFuture.completedFuture(0);
+                } else {
+                    System.out.println("Error! Invalid command.");
+                    continue;
+                }
+                int sessions = done.get();
+                System.out.println("Moved " + sessions + " session(s); "
+                        + getWorkerCount() + " worker(s), "
+                        + getSessionCount() + " session(s).");
+            } catch (IOException | ExecutionException
+                    | IllegalArgumentException e) {
+                System.out.println("Error! " + (e.getCause() != null
+                        ? e.getCause().getMessage() : e.getMessage()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Main method of the router.
+     * @param args options as described in the class comment
+     * @throws IOException if the server socket can not be opened or a worker
+     *         can not be started
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 7777;
+        int workers = 2;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--workers":
+                    workers = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option "
+                            + args[i]);
+            }
+        }
+        try (ShardRouter router = new ShardRouter(port)) {
+            for (int i = 0; i < workers; i++) {
+                router.startWorker();
+            }
+            Thread admin = new Thread(() -> {
+                try {
+                    router.administer();
+                } catch (IOException e) {
+                    // Without an input the router is not administered.
+                }
+            }, "nim-router-admin");
+            admin.setDaemon(true);
+            admin.start();
+            System.out.println("Routing nim sessions on port "
+                    + router.getPort() + " to " + workers + " worker(s).");
+            router.run();
+        }
+    }
+
+}
@@ -0,0 +1,369 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process which hosts a partition of the game sessions of a sharded
+ * deployment. The sessions are assigned to the workers by a
+ * {@link ShardRouter}, which talks to every worker over one local socket,
+ * so every worker has a heap and a garbage collector of its own and the
+ * deployment scales past the limits of one JVM.
+ *
+ * The router and the worker exchange frames, each consisting of its
+ * length, a type, the id of a session and a payload. The router sends
+ * {@link #COMMAND} frames with a command line of the shell, which the
+ * worker executes in the session of the id, creating the session on its
+ * first command, and answers with the output of the command. To move a
+ * session to another worker, the router takes it out of this worker with
+ * {@link #EXPORT} and hands the returned state to the other worker with
+ * {@link #IMPORT}. The state of a session is a byte of flags, bit 0 if the
+ * machine opens the next game, bit 1 for verbose mode and bit 2 if a game is
+ * running, followed by the board, see {@link BoardCodec}.
+ *
+ * Frames of a connection are handled in order by one thread, so the
+ * answers arrive in the order of the requests and the router may send many
+ * frames without waiting.
+ *
+ * Usage: {@code java ShardWorker [--port 0] [--attached]}. With
+ * {@code --attached} the worker ends when its standard input is closed,
+ * i.e. when the process which started it ends.
+ */
+public final class ShardWorker implements AutoCloseable {
+
+    /**
+     * Request to execute the command line in the payload. Answered by
+     * {@link #OUTPUT}, or by {@link #CLOSED} if the command ended the
+     * session.
+     */
+    static final byte COMMAND = 1;
+
+    /**
+     * Request to remove a session and return its state. Answered by
+     * {@link #STATE}, with an empty payload if there is no such session.
+     */
+    static final byte EXPORT = 2;
+
+    /**
+     * Request to host a session with the state in the payload. Answered by
+     * {@link #ACK}.
+     */
+    static final byte IMPORT = 3;
+
+    /**
+     * Request to remove a session. Answered by {@link #ACK}.
+     */
+    static final byte DROP = 4;
+
+    /**
+     * Output of a command, including the prompt.
+     */
+    static final byte OUTPUT = 5;
+
+    /**
+     * Output of the command which ended the session.
+     */
+    static final byte CLOSED = 6;
+
+    /**
+     * State of an exported session.
+     */
+    static final byte STATE = 7;
+
+    /**
+     * Confirmation of a request without output.
+     */
+    static final byte ACK = 8;
+
+    /**
+     * Length of the start of a frame after its length: type and session id.
+     */
+    static final int FRAME_HEADER = 1 + 8;
+
+    /**
+     * Longest accepted frame. Longer frames close the connection.
+     */
+    static final int MAX_FRAME_LENGTH = 1 << 30;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final int MACHINE_OPENS = 1;
+
+    private static final int VERBOSE = 1 << 1;
+
+    private static final int RUNNING_GAME = 1 << 2;
+
+    private final ServerSocket server;
+
+    private final Map<Long, Hosted> sessions = new ConcurrentHashMap<>();
+
+    private volatile boolean running = true;
+
+    /**
+     * A session hosted by the worker, with the buffer its output is
+     * collected in.
+     */
+    private static final class Hosted {
+
+        private final StringBuilder output = new StringBuilder();
+
+        private final Session session;
+
+        Hosted() {
+            session = new Session(output, output);
+        }
+
+        Hosted(Board board, Player beginner, boolean verbose) {
+            session = new Session(output, output, board, beginner, verbose);
+        }
+    }
+
+    /**
+     * Opens the server socket of the worker on the loopback interface.
+     * @param port port to listen on, 0 for any free port
+     * @throws IOException if the server socket can not be opened
+     */
+    public ShardWorker(int port) throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Gets the port the worker listens on.
+     * @return the local port
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return number of sessions hosted by the worker
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Accepts connections of routers until the worker is closed. Every
+     * connection is served by a thread of its own.
+     * @throws IOException if accepting fails for another reason than closing
+     */
+    public void run() throws IOException {
+        int next = 0;
+        while (running) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (!running) {
+                    return;
+                }
+                throw e;
+            }
+            Thread thread = new Thread(() -> serve(socket),
+                    "nim-shard-" + next++);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Handles the frames of a connection until it is closed. The answers
+     * are written in batches, whenever no further request is waiting.
+     */
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            connection.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    connection.getInputStream(), BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(connection.getOutputStream(),
+                            BUFFER_SIZE));
+            while (running) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length < FRAME_HEADER || length > MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length
+                            + ".");
+                }
+                byte type = in.readByte();
+                long id = in.readLong();
+                byte[] payload = new byte[length - FRAME_HEADER];
+                in.readFully(payload);
+                handle(type, id, payload, out);
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // The router is gone; the sessions stay for its next connection.
+        }
+    }
+
+    private void handle(byte type, long id, byte[] payload,
+            DataOutputStream out) throws IOException {
+        switch (type) {
+            case COMMAND:
+                Hosted hosted = sessions.computeIfAbsent(id,
+                        key -> new Hosted());
+                boolean open = hosted.session.execute(new String(payload,
+                        StandardCharsets.ISO_8859_1));
+                if (open) {
+                    hosted.output.append(Constants.SHELL_PROMPT);
+                } else {
+                    sessions.remove(id);
+                }
+                writeFrame(out, open ? OUTPUT : CLOSED, id, hosted.output);
+                hosted.output.setLength(0);
+                break;
+            case EXPORT:
+                Hosted exported = sessions.remove(id);
+                writeFrame(out, STATE, id, exported == null ? new byte[0]
+                        : encode(exported.session));
+                break;
+            case IMPORT:
+                sessions.put(id, decode(payload));
+                writeFrame(out, ACK, id, new byte[0]);
+                break;
+            case DROP:
+                sessions.remove(id);
+                writeFrame(out, ACK, id, new byte[0]);
+                break;
+            default:
+                throw new IOException("Unknown frame type " + type + ".");
+        }
+    }
+
+    /**
+     * Writes a frame with a byte array as payload.
+     */
+    private static void writeFrame(DataOutputStream out, byte type, long id,
+            byte[] payload) throws IOException {
+        out.writeInt(FRAME_HEADER + payload.length);
+        out.writeByte(type);
+        out.writeLong(id);
+        out.write(payload);
+    }
+
+    /**
+     * Writes a frame with text as payload, one byte per character like the
+     * {@link GameServer}.
+     */
+    private static void writeFrame(DataOutputStream out, byte type, long id,
+            CharSequence payload) throws IOException {
+        out.writeInt(FRAME_HEADER + payload.length());
+        out.writeByte(type);
+        out.writeLong(id);
+        for (int i = 0; i < payload.length(); i++) {
+            out.write(payload.charAt(i));
+        }
+    }
+
+    /**
+     * Encodes the state of a session for another worker.
+     */
+    private static byte[] encode(Session session) {
+        Board board = session.getBoard();
+        int flags = (session.getBeginner() == Player.MACHINE
+                ? MACHINE_OPENS : 0) | (session.isVerbose() ? VERBOSE : 0);
+        if (board == null) {
+            return new byte[] {(byte) flags};
+        }
+        byte[] state = new byte[1 + BoardCodec.encodedLength(board)];
+        state[0] = (byte) (flags | RUNNING_GAME);
+        BoardCodec.encode(board, ByteBuffer.wrap(state, 1, state.length - 1));
+        return state;
+    }
+
+    /**
+     * Restores a session from its encoded state.
+     * @throws IllegalArgumentException if the state is invalid
+     */
+    private static Hosted decode(byte[] state) {
+        if (state.length == 0) {
+            throw new IllegalArgumentException("Empty session state.");
+        }
+        Board board = (state[0] & RUNNING_GAME) == 0 ? null
+                : BoardCodec.decode(ByteBuffer.wrap(state, 1,
+                        state.length - 1));
+        return new Hosted(board, (state[0] & MACHINE_OPENS) != 0
+                ? Player.MACHINE : Player.HUMAN, (state[0] & VERBOSE) != 0);
+    }
+
+    /**
+     * Stops accepting connections. Connections being served end with their
+     * next request.
+     * @throws IOException if closing the server socket fails
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        server.close();
+    }
+
+    /**
+     * Ends the process when the standard input is closed.
+     */
+    private static void exitWithParent() {
+        Thread thread = new Thread(() -> {
+            InputStream in = System.in;
+            try {
+                while (in.read() >= 0) {
+                    // Only the end of the input matters.
+                }
+            } catch (IOException e) {
+                // The parent is gone either way.
+            }
+            System.exit(0);
+        }, "nim-shard-parent");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Main method of a worker. Prints the port it listens on as the first
+     * line of the standard output.
+     * @param args options as described in the class comment
+     * @throws IOException if the server socket can not be opened
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 0;
+        boolean attached = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--attached":
+                    attached = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option "
+                            + args[i]);
+            }
+        }
+        try (ShardWorker worker = new ShardWorker(port)) {
+            System.out.println("Serving nim shard on port "
+                    + worker.getPort() + ".");
+            System.out.flush();
+            if (attached) {
+                exitWithParent();
+            }
+            worker.run();
+        }
+    }
+
+}
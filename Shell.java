@@ -1,10 +1,15 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Locale;
 import java.util.Scanner;
 
 /**
  * Shell class to get and evaluate user input. The user input is converted
  * into commands and passed to the game, which then executes the commands
- * given to the shell.
+ * given to the shell. The commands themselves are evaluated by a
+ * {@link Session}, which the shell drives from the console.
  */
 public final class Shell {
 
@@ -12,7 +17,8 @@ public final class Shell {
      * Global flag, which indicates whether verbose mode is on or off. If it
      * is on, additional information about the game, such as the current nim
      * sum and the binary representation of the sticks, is printed out when
-     * the print command is called.
+     * the print command is called. It follows the console session and is
+     * used by {@link Board#toString()}.
      * By default, verbose mode is turned off.
      */
     private static boolean verboseMode = false;
@@ -23,6 +29,11 @@ public final class Shell {
      */
     private static Scanner reader = new Scanner(System.in);
 
+    /**
+     * Id of the console session in a session store.
+     */
+    static final long CONSOLE_SESSION = 0;
+
     /**
      * The shell class does not have a public constructor.
      */
@@ -37,6 +48,16 @@ public final class Shell {
         return verboseMode;
     }
 
+    /**
+     * Setter method for the global verbose mode flag. Only meant for tools
+     * in this package, such as the benchmarks, which have to render boards
+     * in both modes without going through the VERBOSE command.
+     * @param verbose true to turn verbose mode on, false to turn it off.
+     */
+    static void setVerboseMode(boolean verbose) {
+        verboseMode = verbose;
+    }
+
 
     /**
      * Method to get input from the user by using the nextLine method of the
@@ -48,346 +69,102 @@ public final class Shell {
     }
 
     /**
-     *  This method evaluates the input given to the shell and prints an error
-     *  message if it is invalid. The input is first converted into valid
-     *  input and then evaluated. The evaluated input is then passed to the
-     *  correct helper method, which executes the command and performs the
-     *  requested action on the game.
+     *  This method reads the input given to the shell line by line and
+     *  passes it to the console session, which evaluates it and performs the
+     *  requested action on the game. The global verbose flag follows the
+     *  verbose mode of the console session.
+     * @param store store in which the console session is persisted, or null
+     * @param archive archive of the finished games, or null
      */
-    private static void evaluateInput() {
-
-        System.out.println(Constants.HUMAN_OPENER);
-        String[] inputArray = readInput();
-        char input = evaluateCommand(inputArray[0]);
-        Board board = null;
-        Player beginner = Player.HUMAN;
-
-        while (!(input == 'Q')) {
-
-            switch (input) {
-
-                // Normal Game
-                case ('N'):
-
-                    board = startNormalGame(beginner, Arrays.copyOfRange(
-                            inputArray, 1, inputArray.length));
-                    break;
-
-                // Misere game
-                case ('M'):
-
-                    board = startMisereGame(beginner, Arrays.copyOfRange(
-                            inputArray, 1, inputArray.length));
-                    break;
-
-                // SWITCH
-                case ('S'):
-
-                    beginner = switchOpener(beginner);
-                    break;
-
-                // REMOVE s sticks from row r
-                case ('R'):
-
-                    Integer row = tryParseStrToInt(inputArray[1]);
-                    Integer sticks = tryParseStrToInt(inputArray[2]);
-                    removeSticks(board, row, sticks);
-                    break;
-
-                // Verbose mode
-                case ('V'):
-
-                    switchVerbose(inputArray[1]);
-                    break;
-
-                // Prints the state of the game
-                case ('P'):
-
-                    printGame(board);
-                    break;
-
-                case ('H'):
-
-                    printHelp();
-                    break;
-
-                default:
-                    System.out.println("Error! Invalid command.");
+    private static void evaluateInput(SessionStore store,
+            GameArchive archive) {
+
+        Session session = store == null
+                ? new Session(System.out, System.err)
+                : new Session(System.out, System.err,
+                        store.attach(CONSOLE_SESSION));
+        session.setArchive(archive);
+        verboseMode = session.isVerbose();
+        // A restored session may have switched the opener
+        System.out.println(session.getBeginner() == Player.MACHINE
+                ? Constants.MACHINE_OPENER : Constants.HUMAN_OPENER);
+        boolean running;
+        do {
+            System.out.print(Constants.SHELL_PROMPT);
+            if (!reader.hasNextLine()) {
+                return;
             }
-            inputArray = readInput();
-            input = evaluateCommand(inputArray[0]);
-        }
+            running = session.execute(getInput());
+            verboseMode = session.isVerbose();
+        } while (running);
     }
 
     /**
-     * Helper method to start a new normal game. The method first checks if
-     * the given input is valid and initializes a new game if it is. If it
-     * isn't an error message is printed and the method terminates.
-     * The input given by the user is converted to an array of integers,
-     * which represent the numbers in each row of the game.
-     * @param input string array, which contains the number of sticks in each
-     *             row
-     */
-    private static Board startNormalGame(Player beginner, String[] input) {
-
-        if (checkIfInputHasParameters(input)) {
-            printInvalidInputError();
-            return null;
-        }
-        int[] sticks = parseInputArrayToInt(input);
-        if (sticks == null || sticks.length == 0) {
-            printInvalidInputError();
-            return null;
-        }
-        Board board = new Nim(sticks, beginner);
-        if (beginner == Player.MACHINE) {
-            board.machineRemove();
-            System.out.println(board.getLastMove());
-        }
-        return board;
-    }
-
-    /**
-     * Helper method to start a new misere game. The method first checks if
-     * the given input is valid and initializes a new game if it is. If it
-     * isn't an error message is printed and the method terminates.
-     * The input given by the user is converted to an array of integers,
-     * which represent the numbers in each row of the game.
-     * @param input string array, which contains the number of sticks in each
-     *             row
+     * Main method for the Shell class. Without arguments, it calls the
+     * evaluateInput method, which then takes input from the console. With
+     * {@code --server <port> [<threads>]} it hosts independent sessions for
+     * clients connecting over TCP instead, see {@link GameServer}. With
+     * {@code --batch [<file>]} it replays a script from the file or from
+     * stdin without prompts, see {@link Batch}. The console and the server
+     * keep their sessions in a {@link SessionStore} if the arguments end
+     * with {@code --store <directory>}, and continue them after a restart.
+     * A script is not persisted, so the store can not be combined with
+     * {@code --batch}. With {@code --archive <file>} at the end of the
+     * arguments, every mode records the finished games in a
+     * {@link GameArchive}.
+     * @param args arguments for main
+     * @throws IOException if the server socket, the script or the store can
+     *         not be opened
+     * @throws IllegalArgumentException if a store is given in batch mode
      */
-    private static Board startMisereGame(Player beginner, String[] input) {
-        if (checkIfInputHasParameters(input)) {
-            printInvalidInputError();
-            return null;
-        }
-        int[] sticks = parseInputArrayToInt(input);
-        if (sticks == null || sticks.length == 0) {
-            printInvalidInputError();
-            return null;
-        }
-        Board board = new Misere(sticks, beginner);
-        if (beginner == Player.MACHINE) {
-            board.machineRemove();
-            System.out.println(board.getLastMove());
-        }
-        return board;
-    }
-
-
-    private static void removeSticks(Board board, Integer row,
-                                     Integer sticks) {
-        if (board == null) {
-            System.out.println(Constants.GAME_NOT_RUNNING_ERROR);
-            return;
-        } else if (board.isGameOver()) {
-            checkIfGameIsOver(board, board.getLastMove());
-            return;
-        }
-
-        try {
-            board.remove(row - 1, sticks);
-        } catch (IllegalStateException e) {
-            System.err.println("It's not the humans turn.");
-            return;
-        } catch (IllegalArgumentException e) {
-            System.err.println("Error! The provided move is illegal.");
-            return;
-        }
-
-        checkIfGameIsOver(board, board.getLastMove());
-
-        if (board.isGameOver()) {
-            return;
-        }
-
-        try {
-            board.machineRemove();
-        } catch (IllegalStateException e) {
-            System.err.println("It's not the machines turn");
-            return;
-        }
-
-        Move lastMove = board.getLastMove();
-        System.out.println(lastMove);
-
-        checkIfGameIsOver(board, lastMove);
-
-    }
-
-    private static Player switchOpener(Player beginner) {
-        if (beginner == Player.HUMAN) {
-            beginner = Player.MACHINE;
-            System.out.println(Constants.MACHINE_OPENER);
-            return beginner;
-        }
-        System.out.println(Constants.HUMAN_OPENER);
-        return Player.HUMAN;
-    }
-
-    private static void checkIfGameIsOver(Board board, Move move) {
-        if (board == null) {
-            System.out.println(Constants.GAME_NOT_RUNNING_ERROR);
-            return;
-        }
-        if (board.isGameOver()) {
-            if (board.getWinner() == Player.HUMAN) {
-                System.out.println("Congratulations! You won.");
+    public static void main(String[] args) throws IOException {
+        int length = args.length;
+        Path directory = null;
+        Path archiveFile = null;
+        while (length >= 2 && (args[length - 2].equals("--store")
+                || args[length - 2].equals("--archive"))) {
+            if (args[length - 2].equals("--store")) {
+                directory = Paths.get(args[length - 1]);
             } else {
-                System.out.println("Sorry! Machine wins.");
+                archiveFile = Paths.get(args[length - 1]);
             }
+            length -= 2;
+        }
+        if (directory != null && length >= 1 && args[0].equals("--batch")) {
+            throw new IllegalArgumentException("A session store can not be "
+                    + "used in batch mode.");
+        }
+        try (SessionStore store = directory == null ? null
+                : new SessionStore(directory);
+                GameArchive archive = archiveFile == null ? null
+                        : new GameArchive(archiveFile)) {
+            if (store != null) {
+                System.err.println(String.format(Locale.ROOT, "Restored %d "
+                        + "session(s) in %.1f ms.", store.getRestoredSessions(),
+                        store.getRestoreNanos() / 1e6));
+            }
+            run(Arrays.copyOf(args, length), store, archive);
         }
     }
 
-    private static void switchVerbose(String v) {
-
-        if (checkForInvalidKey(v)) {
-            printInvalidInputError();
+    private static void run(String[] args, SessionStore store,
+            GameArchive archive) throws IOException {
+        if (args.length >= 1 && args[0].equals("--batch")) {
+            Batch.run(args.length >= 2 ? args[1] : null, archive);
             return;
         }
-
-        v = v.toUpperCase();
-
-        if (v.equals("ON")) {
-            verboseMode = true;
-        } else if (v.equals("OFF")) {
-            verboseMode = false;
-        } else {
-            printInvalidInputError();
-        }
-    }
-
-    /**
-     * Prints a helpful info about how to use the trie, which commands are
-     * valid and what kind of input is accepted.
-     */
-    private static void printHelp() {
-
-        String helpString = "NEW <s1> <s2> ... <sn>: Creates a new nim game "
-                + "with n >= 1 rows and si >= 1 sticks per row. The human "
-                + "player starts by default.\n"
-                + "MISERE <s1> <s2> ... <sn>: Creates a new misere game.\n"
-                + "SWITCH: Changes the opener of the next game.\n"
-                + "PRINT: Prints the current board.\n"
-                + "VERBOSE (ON|OFF): Provides additional details about the "
-                + "state of the game\n"
-                + "QUIT: Quits the game"
-                + "HELP: Show this helpful guide\n";
-        System.out.println(helpString);
-
-    }
-
-    /**
-     * Prints out the current game board. If verbose mode is enabled,
-     * additional information about the game, like the nim sum and the binary
-     * representation of the sticks, is also printed out.
-     */
-    private static void printGame(Board board) {
-        if (board == null) {
-            System.out.println(Constants.GAME_NOT_RUNNING_ERROR);
+        if (args.length >= 2 && args[0].equals("--server")) {
+            int threads = args.length >= 3 ? Integer.parseInt(args[2])
+                    : Runtime.getRuntime().availableProcessors();
+            GameServer server = new GameServer(Integer.parseInt(args[1]),
+                    threads, store);
+            server.setArchive(archive);
+            System.out.println("Serving nim sessions on port "
+                    + server.getPort() + ".");
+            server.run();
             return;
         }
-        System.out.println(board);
-    }
-
-    private static char evaluateCommand(String command) {
-        if (checkForInvalidKey(command)) {
-            return ' ';
-        }
-        return Character.toUpperCase(command.charAt(0));
-    }
-
-    private static String[] readInput() {
-        System.out.print(Constants.SHELL_PROMPT);
-        return splitInput(getInput());
-    }
-
-    /**
-     * This method cleans up user input and converts it into a string array
-     * of size 3, as that is the maximum number of parameters allowed for any
-     * given input. First trim is called to remove any unnecessary whitespace
-     * from the input. The input is then split and transferred into a new
-     * array, which is then returned. This method makes it easier to evaluate
-     * user input.
-     * @param input input given by the user as a string
-     * @return cleaned up input, split by whitespace and stored in a string
-     * array of size 3.
-     */
-    private static String[] splitInput(String input) {
-
-        input = input.trim();
-        String[] inputArray = input.split(" ");
-        String[] trimmedArray;
-        if (inputArray.length < 3) {
-            trimmedArray = Arrays.copyOfRange(inputArray, 0, 3);
-        } else {
-            trimmedArray = Arrays.copyOfRange(inputArray, 0,
-                    inputArray.length);
-        }
-        return trimmedArray;
-    }
-
-    /**
-     * This method tries to convert a string into an Integer object. If the
-     * given string can be converted, the parsed string is returned as an
-     * Integer. If the given input is not valid, null is returned.
-     * @param stringToParse string to convert to an integer object
-     * @return parsed string, null if it couldn't be converted.
-     */
-    private static Integer tryParseStrToInt(String stringToParse) {
-        try {
-            return Integer.parseInt(stringToParse);
-        } catch (NumberFormatException e) {
-            return -1;
-        }
-    }
-
-    /**
-     * This method is just a helper method to make the code more readable. It
-     * prints an error message in case the input is invalid.
-     */
-    private static void printInvalidInputError() {
-        System.err.println("Error! The input is invalid.");
-    }
-
-    /**
-     * This method checks if a given key is a valid input for the
-     * trie. Key may not be null, it mustn't contain any uppercase
-     * characters and it mustn't be empty.
-     * @param key key to check
-     * @return true if key is invalid, false otherwise.
-     */
-    private static boolean checkForInvalidKey(String key) {
-        if (key == null) {
-            return true;
-        }
-        return (key.equals("") || key.equals(" "));
-    }
-
-    private static boolean checkIfInputHasParameters(String[] inputArray) {
-        return (inputArray.length < 2);
-    }
-
-    private static int[] parseInputArrayToInt(String[] input) {
-        int[] sticks = new int[input.length];
-
-        for (int i = 0; i < input.length; i++) {
-            int j = tryParseStrToInt(input[i]);
-            if (j < 1) {
-                return null;
-            }
-            sticks[i] = j;
-        }
-        return sticks;
-    }
-
-    /**
-     * Main method for the Shell class. Calls the evaluateInput method, which
-     * then takes input
-     * @param args arguments for main
-     */
-    public static void main(String[] args) {
-        Shell.evaluateInput();
+        Shell.evaluateInput(store, archive);
     }
 
 }
@@ -0,0 +1,442 @@
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Engine which plays many games of the machine against an opponent
+ * without any console, in parallel on all cores. The games are divided into
+ * shards of a fixed size, each with its own generator seeded from the seed
+ * of the simulation, and the shards are played by a fork/join pool. Since
+ * the shards do not depend on the number of threads, the results are
+ * reproducible from the seed on any machine.
+ *
+ * Every game starts on a given board or on a random board, under normal or
+ * misere rules or under either at random, and the opener alternates between
+ * the human side, played by the {@link Strategy} of the opponent, and the
+ * machine.
+ *
+ * Usage: {@code java SimulationEngine [--games 1000000] [--opponent random]
+ * [--rules both] [--rows 3-8] [--sticks 20] [--board 3,4,5] [--seed 42]
+ * [--threads 4]}
+ */
+public final class SimulationEngine {
+
+    /**
+     * Number of games played with the generator of one shard.
+     */
+    static final int SHARD_GAMES = 1 << 12;
+
+    /**
+     * The rules under which the simulated games are played.
+     */
+    public enum Rules {
+
+        /**
+         * All games are played under normal rules.
+         */
+        NORMAL,
+
+        /**
+         * All games are played under misere rules.
+         */
+        MISERE,
+
+        /**
+         * Every game is played under normal or misere rules at random.
+         */
+        BOTH
+    }
+
+    private long games = 1_000_000;
+
+    private Strategy opponent = StandardStrategy.RANDOM;
+
+    private Rules rules = Rules.BOTH;
+
+    private int minRows = 3;
+
+    private int maxRows = 8;
+
+    private int maxSticks = 20;
+
+    private int[] board;
+
+    private long seed = 42;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Sets the number of games to play.
+     * @param games number of games, at least one
+     * @return this engine
+     */
+    public SimulationEngine games(long games) {
+        if (games < 1) {
+            throw new IllegalArgumentException("At least one game must be "
+                    + "played.");
+        }
+        this.games = games;
+        return this;
+    }
+
+    /**
+     * Sets the opponent of the machine.
+     * @param opponent strategy playing the human side, which is shared by
+     *        all threads
+     * @return this engine
+     */
+    public SimulationEngine opponent(Strategy opponent) {
+        this.opponent = opponent;
+        return this;
+    }
+
+    /**
+     * Sets the rules of the games.
+     * @param rules normal, misere or both
+     * @return this engine
+     */
+    public SimulationEngine rules(Rules rules) {
+        this.rules = rules;
+        return this;
+    }
+
+    /**
+     * Lets every game start on a random board.
+     * @param minRows least number of rows, at least one
+     * @param maxRows largest number of rows
+     * @param maxSticks largest number of sticks per row, at least one
+     * @return this engine
+     */
+    public SimulationEngine randomBoards(int minRows, int maxRows,
+            int maxSticks) {
+        if (minRows < 1 || maxRows < minRows || maxSticks < 1) {
+            throw new IllegalArgumentException("Invalid board dimensions.");
+        }
+        this.minRows = minRows;
+        this.maxRows = maxRows;
+        this.maxSticks = maxSticks;
+        this.board = null;
+        return this;
+    }
+
+    /**
+     * Lets every game start on the same board.
+     * @param sticks number of sticks per row, each at least one
+     * @return this engine
+     */
+    public SimulationEngine board(int[] sticks) {
+        for (int s : sticks) {
+            if (s < 1) {
+                throw new IllegalArgumentException("Every row needs at "
+                        + "least one stick.");
+            }
+        }
+        this.board = sticks.clone();
+        return this;
+    }
+
+    /**
+     * Sets the seed from which all games are generated.
+     * @param seed seed of the simulation
+     * @return this engine
+     */
+    public SimulationEngine seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads playing the games.
+     * @param threads number of threads, at least one
+     * @return this engine
+     */
+    public SimulationEngine threads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * Plays all games and collects their statistics.
+     * @return statistics of the simulation
+     */
+    public Statistics run() {
+        SplittableRandom root = new SplittableRandom(seed);
+        long[] shardSeeds = new long[(int) ((games + SHARD_GAMES - 1)
+                / SHARD_GAMES)];
+        for (int i = 0; i < shardSeeds.length; i++) {
+            shardSeeds[i] = root.nextLong();
+        }
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Statistics statistics;
+        try {
+            statistics = pool.invoke(new ShardTask(shardSeeds, 0,
+                    shardSeeds.length));
+        } finally {
+            pool.shutdown();
+        }
+        statistics.nanos = System.nanoTime() - start;
+        return statistics;
+    }
+
+    /**
+     * Plays the games of one shard.
+     * @param shard index of the shard
+     * @param shardSeed seed of the generator of the shard
+     * @return statistics of the games of the shard
+     */
+    private Statistics playShard(int shard, long shardSeed) {
+        SplittableRandom random = new SplittableRandom(shardSeed);
+        Statistics statistics = new Statistics();
+        long first = (long) shard * SHARD_GAMES;
+        long last = Math.min(games, first + SHARD_GAMES);
+        for (long game = first; game < last; game++) {
+            boolean misere = rules == Rules.MISERE
+                    || rules == Rules.BOTH && random.nextBoolean();
+            Player opener = (game & 1) == 0 ? Player.HUMAN : Player.MACHINE;
+            int[] sticks = board != null ? board : randomBoard(random);
+            Board b = misere ? new Misere(sticks, opener)
+                    : new Nim(sticks, opener);
+            int moves = 0;
+            while (!b.isGameOver()) {
+                if (b.getCurrentPlayer() == Player.MACHINE) {
+                    b.machineRemove();
+                } else {
+                    b.play(opponent.chooseMove(b, random));
+                }
+                moves++;
+            }
+            statistics.add(misere, b.getWinner() == Player.MACHINE, moves);
+        }
+        return statistics;
+    }
+
+    private int[] randomBoard(SplittableRandom random) {
+        int[] sticks = new int[random.nextInt(minRows, maxRows + 1)];
+        for (int i = 0; i < sticks.length; i++) {
+            sticks[i] = random.nextInt(1, maxSticks + 1);
+        }
+        return sticks;
+    }
+
+    /**
+     * Aggregate results of simulated games.
+     */
+    public static final class Statistics {
+
+        private long normalGames;
+
+        private long normalMachineWins;
+
+        private long misereGames;
+
+        private long misereMachineWins;
+
+        private long moves;
+
+        private long nanos;
+
+        void add(boolean misere, boolean machineWon, int gameMoves) {
+            if (misere) {
+                misereGames++;
+                misereMachineWins += machineWon ? 1 : 0;
+            } else {
+                normalGames++;
+                normalMachineWins += machineWon ? 1 : 0;
+            }
+            moves += gameMoves;
+        }
+
+        Statistics merge(Statistics other) {
+            normalGames += other.normalGames;
+            normalMachineWins += other.normalMachineWins;
+            misereGames += other.misereGames;
+            misereMachineWins += other.misereMachineWins;
+            moves += other.moves;
+            return this;
+        }
+
+        /**
+         * @return number of games played
+         */
+        public long getGames() {
+            return normalGames + misereGames;
+        }
+
+        /**
+         * @return number of games won by the machine
+         */
+        public long getMachineWins() {
+            return normalMachineWins + misereMachineWins;
+        }
+
+        /**
+         * @return number of games played under normal rules
+         */
+        public long getNormalGames() {
+            return normalGames;
+        }
+
+        /**
+         * @return number of normal games won by the machine
+         */
+        public long getNormalMachineWins() {
+            return normalMachineWins;
+        }
+
+        /**
+         * @return number of games played under misere rules
+         */
+        public long getMisereGames() {
+            return misereGames;
+        }
+
+        /**
+         * @return number of misere games won by the machine
+         */
+        public long getMisereMachineWins() {
+            return misereMachineWins;
+        }
+
+        /**
+         * @return number of moves of all games, by both players
+         */
+        public long getMoves() {
+            return moves;
+        }
+
+        /**
+         * @return average number of moves per game
+         */
+        public double getAverageGameLength() {
+            return (double) moves / Math.max(1, getGames());
+        }
+
+        /**
+         * @return wall clock time of the simulation in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return games played per second
+         */
+        public double getGamesPerSecond() {
+            return getGames() * 1e9 / Math.max(1, nanos);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(String.format(Locale.ROOT,
+                    "%d games in %.3f s (%.0f games/s), average length "
+                            + "%.2f moves%n", getGames(), nanos / 1e9,
+                    getGamesPerSecond(), getAverageGameLength()));
+            report.append(winRate("total", getGames(), getMachineWins()));
+            report.append(winRate("normal", normalGames, normalMachineWins));
+            report.append(winRate("misere", misereGames, misereMachineWins));
+            return report.toString();
+        }
+
+        private static String winRate(String name, long games, long wins) {
+            return String.format(Locale.ROOT, "%-7s %10d games, machine won "
+                    + "%7.3f %%, opponent won %7.3f %%%n", name, games,
+                    100.0 * wins / Math.max(1, games),
+                    100.0 * (games - wins) / Math.max(1, games));
+        }
+    }
+
+    /**
+     * Fork/join task for a range of shards, which halves its range until it
+     * holds a single shard.
+     */
+    private final class ShardTask extends RecursiveTask<Statistics> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long[] shardSeeds;
+
+        private final int from;
+
+        private final int to;
+
+        ShardTask(long[] shardSeeds, int from, int to) {
+            this.shardSeeds = shardSeeds;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Statistics compute() {
+            if (to - from <= 1) {
+                return from < to ? playShard(from, shardSeeds[from])
+                        : new Statistics();
+            }
+            int middle = (from + to) >>> 1;
+            ShardTask left = new ShardTask(shardSeeds, from, middle);
+            left.fork();
+            Statistics right = new ShardTask(shardSeeds, middle, to)
+                    .compute();
+            return left.join().merge(right);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--games":
+                    games(Long.parseLong(value));
+                    break;
+                case "--opponent":
+                    opponent(StandardStrategy.valueOf(
+                            value.toUpperCase(Locale.ROOT)));
+                    break;
+                case "--rules":
+                    rules(Rules.valueOf(value.toUpperCase(Locale.ROOT)));
+                    break;
+                case "--rows":
+                    String[] range = value.split("-");
+                    randomBoards(Integer.parseInt(range[0]),
+                            Integer.parseInt(range[range.length - 1]),
+                            maxSticks);
+                    break;
+                case "--sticks":
+                    randomBoards(minRows, maxRows, Integer.parseInt(value));
+                    break;
+                case "--board":
+                    String[] rows = value.split(",");
+                    int[] sticks = new int[rows.length];
+                    for (int j = 0; j < rows.length; j++) {
+                        sticks[j] = Integer.parseInt(rows[j].trim());
+                    }
+                    board(sticks);
+                    break;
+                case "--seed":
+                    seed(Long.parseLong(value));
+                    break;
+                case "--threads":
+                    threads(Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option "
+                            + args[i]);
+            }
+        }
+    }
+
+    /**
+     * Main method of the simulation engine.
+     * @param args options as described in the class comment
+     */
+    public static void main(String[] args) {
+        SimulationEngine engine = new SimulationEngine();
+        engine.parseArguments(args);
+        System.out.println("Machine against " + engine.opponent + " on "
+                + engine.threads + " thread(s), seed " + engine.seed + ":");
+        System.out.print(engine.run());
+    }
+
+}
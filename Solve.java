@@ -0,0 +1,67 @@
+/**
+ * One-shot solver for scripts: prints the move the machine makes in a
+ * position, the nim sum and whether the position is winning for the player
+ * to move, and exits. Unlike the {@link Shell}, it reads nothing from the
+ * console and touches only the few classes it needs, so the time of a call
+ * is mostly the start of the JVM. Starting it with
+ * {@code -XX:TieredStopAtLevel=1} and a class data sharing archive, created
+ * once with {@code -XX:ArchiveClassesAtExit=solve.jsa} and used with
+ * {@code -XX:SharedArchiveFile=solve.jsa}, shortens that further.
+ *
+ * Usage: {@code java Solve [--misere] <s1> <s2> ... <sn>}
+ *
+ * The exit status is 0 for a position with a move, 1 for a position
+ * without sticks and 2 for invalid arguments.
+ */
+public final class Solve {
+
+    private Solve() {
+    }
+
+    /**
+     * Main method of the solver.
+     * @param args optionally {@code --misere}, followed by the number of
+     *        sticks of every row
+     */
+    public static void main(String[] args) {
+        boolean misere = args.length > 0 && args[0].equals("--misere");
+        int first = misere ? 1 : 0;
+        int[] rows = new int[args.length - first];
+        try {
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = Integer.parseInt(args[first + i]);
+                if (rows[i] < 0) {
+                    throw new NumberFormatException(args[first + i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            rows = new int[0];
+        }
+        if (rows.length == 0) {
+            System.err.println("Error! The input is invalid.\n"
+                    + "Usage: java Solve [--misere] <s1> <s2> ... <sn>");
+            System.exit(2);
+        }
+        int nimSum = Positions.nimSum(rows);
+        long move = Positions.bestMove(rows, misere);
+        StringBuilder out = new StringBuilder();
+        if (move == Moves.NONE) {
+            out.append("There is no move, the game is over.\n");
+        } else {
+            out.append(Moves.toString(move)).append('\n');
+        }
+        out.append("Nim sum: ").append(nimSum).append(" (")
+                .append(Integer.toBinaryString(nimSum)).append(")\n");
+        if (move != Moves.NONE) {
+            out.append(Positions.isWinning(rows, misere)
+                    ? "The position is winning for the player to move.\n"
+                    : "The position is losing for the player to move.\n");
+        }
+        System.out.print(out);
+        System.out.flush();
+        if (move == Moves.NONE) {
+            System.exit(1);
+        }
+    }
+
+}
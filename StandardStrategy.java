@@ -0,0 +1,67 @@
+import java.util.PrimitiveIterator;
+import java.util.SplittableRandom;
+
+/**
+ * The built-in strategies.
+ */
+public enum StandardStrategy implements Strategy {
+
+    /**
+     * Plays optimally: a winning move if there is one. On the boards of this
+     * game it makes the move of the board's built-in machine, which is
+     * computed from the counters the board keeps up to date. On other boards
+     * it takes the first winning move, or else half of the first non-empty
+     * row.
+     */
+    OPTIMAL {
+        @Override
+        public long chooseMove(Board board, SplittableRandom random) {
+            if (board instanceof Nim) {
+                return ((Nim) board).chooseMachineMove();
+            } else if (board instanceof HistogramNim) {
+                return ((HistogramNim) board).chooseMachineMove();
+            } else if (board instanceof GrundyBoard) {
+                return ((GrundyBoard) board).chooseMachineMove();
+            }
+            PrimitiveIterator.OfLong winning = board.winningMoves();
+            if (winning.hasNext()) {
+                return winning.nextLong();
+            }
+            int row = 0;
+            while (board.getSticks(row) == 0) {
+                row++;
+            }
+            return Moves.encode(row,
+                    Positions.sticksToTake(board.getSticks(row), 0),
+                    board.getCurrentPlayer());
+        }
+    },
+
+    /**
+     * Chooses one of all legal moves with equal probability.
+     */
+    RANDOM {
+        @Override
+        public long chooseMove(Board board, SplittableRandom random) {
+            return board.randomMove(random);
+        }
+    },
+
+    /**
+     * Takes as many sticks as possible, i.e. empties the largest row.
+     */
+    GREEDY {
+        @Override
+        public long chooseMove(Board board, SplittableRandom random) {
+            int largest = 0;
+            for (int row = 1; row < board.getRowCount(); row++) {
+                if (board.getSticks(row) > board.getSticks(largest)) {
+                    largest = row;
+                }
+            }
+            return Moves.encode(largest, board.getSticks(largest),
+                    board.getCurrentPlayer());
+        }
+    };
+
+}
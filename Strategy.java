@@ -0,0 +1,25 @@
+import java.util.SplittableRandom;
+
+/**
+ * A strategy which chooses the moves of one player. The machine of a
+ * {@link Nim} or {@link Misere} board plays with a strategy, by default the
+ * optimal one of {@link StandardStrategy#OPTIMAL}, and simulations and
+ * tournaments let strategies play against each other without a console.
+ *
+ * Randomness must come from the given generator only, so that games are
+ * reproducible from their seed. Strategies without state may be shared by
+ * all threads; others, such as {@link MctsPlayer}, need one instance per
+ * thread.
+ */
+public interface Strategy {
+
+    /**
+     * Chooses the next move of the player whose turn it is on a board which
+     * is not over yet. The board must not be changed.
+     * @param board board on which the strategy's player moves next
+     * @param random generator of the game, for strategies which need one
+     * @return the move encoded for the current player, see {@link Moves}
+     */
+    long chooseMove(Board board, SplittableRandom random);
+
+}
@@ -0,0 +1,516 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+/**
+ * Round-robin tournament between strategies. Every pair of strategies plays
+ * on every starting board twice under normal and twice under misere rules,
+ * so that each of the two opens once under both rules. The results are a
+ * matrix of the games every strategy won against every other one, and the
+ * latencies of the moves of every strategy.
+ *
+ * Like the {@link SimulationEngine}, the boards are divided into shards of
+ * a fixed size with generators seeded from the seed of the tournament, and
+ * the shards are played by a fork/join pool, so the results do not depend
+ * on the number of threads. Every shard creates its own instances of the
+ * strategies, so strategies with state need not be thread-safe.
+ *
+ * Usage: {@code java Tournament [--boards 1000] [--rows 3-8] [--sticks 20]
+ * [--seed 42] [--threads 4] [--strategies optimal,random,greedy,mcts]
+ * [--mcts-rollouts 200] [--mcts-endgame 0]}
+ *
+ * With {@code --mcts-endgame n}, the play-outs of the MCTS player solve
+ * positions with at most n legal moves exactly, sharing the analyzed
+ * positions in the {@link AnalysisCache#shared() shared cache}.
+ */
+public final class Tournament {
+
+    /**
+     * Number of starting boards played with the generator of one shard.
+     */
+    static final int SHARD_BOARDS = 1 << 8;
+
+    private final List<String> names = new ArrayList<>();
+
+    private final List<Supplier<? extends Strategy>> factories =
+            new ArrayList<>();
+
+    private long boards = 1_000;
+
+    private int minRows = 3;
+
+    private int maxRows = 8;
+
+    private int maxSticks = 20;
+
+    private long seed = 42;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Adds a strategy to the tournament.
+     * @param name name of the strategy in the results
+     * @param factory creates an instance of the strategy for every shard
+     * @return this tournament
+     */
+    public Tournament strategy(String name,
+            Supplier<? extends Strategy> factory) {
+        if (names.contains(name)) {
+            throw new IllegalArgumentException("Strategy " + name
+                    + " was already added.");
+        }
+        names.add(name);
+        factories.add(factory);
+        return this;
+    }
+
+    /**
+     * Sets the number of starting boards.
+     * @param boards number of boards, at least one
+     * @return this tournament
+     */
+    public Tournament boards(long boards) {
+        if (boards < 1) {
+            throw new IllegalArgumentException("At least one board must be "
+                    + "played.");
+        }
+        this.boards = boards;
+        return this;
+    }
+
+    /**
+     * Sets the dimensions of the random starting boards.
+     * @param minRows least number of rows, at least one
+     * @param maxRows largest number of rows
+     * @param maxSticks largest number of sticks per row, at least one
+     * @return this tournament
+     */
+    public Tournament randomBoards(int minRows, int maxRows,
+            int maxSticks) {
+        if (minRows < 1 || maxRows < minRows || maxSticks < 1) {
+            throw new IllegalArgumentException("Invalid board dimensions.");
+        }
+        this.minRows = minRows;
+        this.maxRows = maxRows;
+        this.maxSticks = maxSticks;
+        return this;
+    }
+
+    /**
+     * Sets the seed from which all boards and games are generated.
+     * @param seed seed of the tournament
+     * @return this tournament
+     */
+    public Tournament seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads playing the games.
+     * @param threads number of threads, at least one
+     * @return this tournament
+     */
+    public Tournament threads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * Plays all games of the tournament.
+     * @return the results of the tournament
+     */
+    public Results run() {
+        if (names.size() < 2) {
+            throw new IllegalStateException("A tournament needs at least two "
+                    + "strategies.");
+        }
+        SplittableRandom root = new SplittableRandom(seed);
+        long[] shardSeeds = new long[(int) ((boards + SHARD_BOARDS - 1)
+                / SHARD_BOARDS)];
+        for (int i = 0; i < shardSeeds.length; i++) {
+            shardSeeds[i] = root.nextLong();
+        }
+        LatencyHistogram[] latencies = new LatencyHistogram[names.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Results results;
+        try {
+            results = pool.invoke(new ShardTask(shardSeeds, latencies, 0,
+                    shardSeeds.length));
+        } finally {
+            pool.shutdown();
+        }
+        results.nanos = System.nanoTime() - start;
+        return results;
+    }
+
+    /**
+     * Plays all games on the boards of one shard.
+     * @param shard index of the shard
+     * @param shardSeed seed of the generator of the shard
+     * @param latencies histograms of the move latencies per strategy
+     * @return results of the games of the shard
+     */
+    private Results playShard(int shard, long shardSeed,
+            LatencyHistogram[] latencies) {
+        SplittableRandom random = new SplittableRandom(shardSeed);
+        Results results = new Results(names.toArray(new String[0]),
+                latencies);
+        Strategy[] strategies = new Strategy[factories.size()];
+        try {
+            for (int i = 0; i < strategies.length; i++) {
+                strategies[i] = factories.get(i).get();
+            }
+            long first = (long) shard * SHARD_BOARDS;
+            long last = Math.min(boards, first + SHARD_BOARDS);
+            for (long b = first; b < last; b++) {
+                int[] sticks = randomBoard(random);
+                for (int i = 0; i < strategies.length; i++) {
+                    for (int j = i + 1; j < strategies.length; j++) {
+                        for (int game = 0; game < 4; game++) {
+                            boolean misere = game >= 2;
+                            boolean swap = (game & 1) == 1;
+                            playGame(sticks, misere, strategies, swap ? j : i,
+                                    swap ? i : j, random, results);
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (Strategy strategy : strategies) {
+                if (strategy instanceof AutoCloseable) {
+                    try {
+                        ((AutoCloseable) strategy).close();
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Strategy could not "
+                                + "be closed.", e);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Plays one game, in which the opener plays the human side.
+     */
+    private void playGame(int[] sticks, boolean misere,
+            Strategy[] strategies, int opener, int second,
+            SplittableRandom random, Results results) {
+        Board board = misere ? new Misere(sticks, Player.HUMAN)
+                : new Nim(sticks, Player.HUMAN);
+        int moves = 0;
+        while (!board.isGameOver()) {
+            int mover = board.getCurrentPlayer() == Player.HUMAN ? opener
+                    : second;
+            long start = System.nanoTime();
+            long move = strategies[mover].chooseMove(board, random);
+            results.latencies[mover].record(System.nanoTime() - start);
+            try {
+                board.play(move);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                throw new IllegalStateException("Strategy "
+                        + names.get(mover) + " chose an illegal move.", e);
+            }
+            moves++;
+        }
+        boolean openerWon = board.getWinner() == Player.HUMAN;
+        results.add(misere, openerWon ? opener : second,
+                openerWon ? second : opener, moves);
+    }
+
+    private int[] randomBoard(SplittableRandom random) {
+        int[] sticks = new int[random.nextInt(minRows, maxRows + 1)];
+        for (int i = 0; i < sticks.length; i++) {
+            sticks[i] = random.nextInt(1, maxSticks + 1);
+        }
+        return sticks;
+    }
+
+    /**
+     * Results of a tournament: the games won by every strategy against every
+     * other one, per rules, and the latencies of the moves.
+     */
+    public static final class Results {
+
+        private final String[] names;
+
+        private final LatencyHistogram[] latencies;
+
+        /**
+         * Games won, indexed by the rules (0 normal, 1 misere), the winner
+         * and the loser.
+         */
+        private final long[][][] wins;
+
+        private long games;
+
+        private long moves;
+
+        private long nanos;
+
+        Results(String[] names, LatencyHistogram[] latencies) {
+            this.names = names;
+            this.latencies = latencies;
+            this.wins = new long[2][names.length][names.length];
+        }
+
+        void add(boolean misere, int winner, int loser, int gameMoves) {
+            wins[misere ? 1 : 0][winner][loser]++;
+            games++;
+            moves += gameMoves;
+        }
+
+        Results merge(Results other) {
+            for (int r = 0; r < wins.length; r++) {
+                for (int i = 0; i < names.length; i++) {
+                    for (int j = 0; j < names.length; j++) {
+                        wins[r][i][j] += other.wins[r][i][j];
+                    }
+                }
+            }
+            games += other.games;
+            moves += other.moves;
+            return this;
+        }
+
+        /**
+         * @return names of the strategies, in the order of their indices
+         */
+        public String[] getNames() {
+            return names.clone();
+        }
+
+        /**
+         * Gets the number of games a strategy won against another one.
+         * @param misere whether the games under misere or normal rules are
+         *        counted
+         * @param strategy index of the winning strategy
+         * @param opponent index of the losing strategy
+         * @return number of games won
+         */
+        public long getWins(boolean misere, int strategy, int opponent) {
+            return wins[misere ? 1 : 0][strategy][opponent];
+        }
+
+        /**
+         * Gets the share of the games against another strategy which a
+         * strategy won.
+         * @param misere whether the games under misere or normal rules are
+         *        counted
+         * @param strategy index of the strategy
+         * @param opponent index of the opponent
+         * @return share between 0 and 1
+         */
+        public double getWinRate(boolean misere, int strategy, int opponent) {
+            long won = getWins(misere, strategy, opponent);
+            long lost = getWins(misere, opponent, strategy);
+            return (double) won / Math.max(1, won + lost);
+        }
+
+        /**
+         * Gets the latencies of the moves of a strategy in all games.
+         * @param strategy index of the strategy
+         * @return histogram of the move latencies in nanoseconds
+         */
+        public LatencyHistogram getLatencies(int strategy) {
+            return latencies[strategy];
+        }
+
+        /**
+         * @return number of games played
+         */
+        public long getGames() {
+            return games;
+        }
+
+        /**
+         * @return number of moves of all games
+         */
+        public long getMoves() {
+            return moves;
+        }
+
+        /**
+         * @return wall clock time of the tournament in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(String.format(
+                    Locale.ROOT, "%d games with %d moves in %.3f s (%.0f "
+                            + "games/s)%n", games, moves, nanos / 1e9,
+                    games * 1e9 / Math.max(1, nanos)));
+            matrix(report, "normal", false);
+            matrix(report, "misere", true);
+            report.append(String.format(Locale.ROOT,
+                    "%n%-12s %8s %12s %10s %10s %10s %10s%n", "strategy",
+                    "won %", "moves", "mean us", "p50 us", "p99 us",
+                    "max us"));
+            for (int i = 0; i < names.length; i++) {
+                long won = 0;
+                long played = 0;
+                for (int r = 0; r < wins.length; r++) {
+                    for (int j = 0; j < names.length; j++) {
+                        won += wins[r][i][j];
+                        played += wins[r][i][j] + wins[r][j][i];
+                    }
+                }
+                LatencyHistogram h = latencies[i];
+                report.append(String.format(Locale.ROOT,
+                        "%-12s %8.3f %12d %10.3f %10.3f %10.3f %10.3f%n",
+                        names[i], 100.0 * won / Math.max(1, played),
+                        h.getCount(), h.getMean() / 1e3,
+                        h.getPercentile(0.5) / 1e3,
+                        h.getPercentile(0.99) / 1e3, h.getMax() / 1e3));
+            }
+            return report.toString();
+        }
+
+        /**
+         * Appends the percentage of games every strategy of a row won
+         * against the strategy of a column.
+         */
+        private void matrix(StringBuilder report, String title,
+                boolean misere) {
+            report.append(String.format(Locale.ROOT, "%n%-12s", title));
+            for (String name : names) {
+                report.append(String.format(Locale.ROOT, " %10s", name));
+            }
+            report.append(System.lineSeparator());
+            for (int i = 0; i < names.length; i++) {
+                report.append(String.format(Locale.ROOT, "%-12s", names[i]));
+                for (int j = 0; j < names.length; j++) {
+                    report.append(i == j ? String.format(Locale.ROOT,
+                            " %10s", "-") : String.format(Locale.ROOT,
+                            " %10.3f", 100 * getWinRate(misere, i, j)));
+                }
+                report.append(System.lineSeparator());
+            }
+        }
+    }
+
+    /**
+     * Fork/join task for a range of shards, which halves its range until it
+     * holds a single shard.
+     */
+    private final class ShardTask extends RecursiveTask<Results> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long[] shardSeeds;
+
+        private final LatencyHistogram[] latencies;
+
+        private final int from;
+
+        private final int to;
+
+        ShardTask(long[] shardSeeds, LatencyHistogram[] latencies, int from,
+                int to) {
+            this.shardSeeds = shardSeeds;
+            this.latencies = latencies;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Results compute() {
+            if (to - from <= 1) {
+                return from < to ? playShard(from, shardSeeds[from],
+                        latencies) : new Results(names.toArray(new String[0]),
+                        latencies);
+            }
+            int middle = (from + to) >>> 1;
+            ShardTask left = new ShardTask(shardSeeds, latencies, from,
+                    middle);
+            left.fork();
+            Results right = new ShardTask(shardSeeds, latencies, middle, to)
+                    .compute();
+            return left.join().merge(right);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        String strategies = "optimal,random,greedy,mcts";
+        long rollouts = 200;
+        int endgame = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--boards":
+                    boards(Long.parseLong(value));
+                    break;
+                case "--rows":
+                    String[] range = value.split("-");
+                    randomBoards(Integer.parseInt(range[0]),
+                            Integer.parseInt(range[range.length - 1]),
+                            maxSticks);
+                    break;
+                case "--sticks":
+                    randomBoards(minRows, maxRows, Integer.parseInt(value));
+                    break;
+                case "--seed":
+                    seed(Long.parseLong(value));
+                    break;
+                case "--threads":
+                    threads(Integer.parseInt(value));
+                    break;
+                case "--strategies":
+                    strategies = value;
+                    break;
+                case "--mcts-rollouts":
+                    rollouts = Long.parseLong(value);
+                    break;
+                case "--mcts-endgame":
+                    endgame = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option "
+                            + args[i]);
+            }
+        }
+        for (String name : strategies.split(",")) {
+            String key = name.trim().toLowerCase(Locale.ROOT);
+            if (key.equals("mcts")) {
+                long budget = rollouts;
+                long mctsSeed = seed;
+                int endgameMoves = endgame;
+                strategy(key, () -> endgameMoves > 0
+                        ? new MctsPlayer(0, budget, 1, mctsSeed)
+                                .solveEndgames(AnalysisCache.shared(),
+                                        endgameMoves)
+                        : new MctsPlayer(0, budget, 1, mctsSeed));
+            } else {
+                Strategy strategy = StandardStrategy.valueOf(
+                        key.toUpperCase(Locale.ROOT));
+                strategy(key, () -> strategy);
+            }
+        }
+    }
+
+    /**
+     * Main method of the tournament runner.
+     * @param args options as described in the class comment
+     */
+    public static void main(String[] args) {
+        Tournament tournament = new Tournament();
+        tournament.parseArguments(args);
+        System.out.println("Tournament of " + tournament.names + " on "
+                + tournament.boards + " boards, " + tournament.threads
+                + " thread(s), seed " + tournament.seed + ":");
+        System.out.print(tournament.run());
+    }
+
+}